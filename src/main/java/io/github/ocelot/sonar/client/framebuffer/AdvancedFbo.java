@@ -2,17 +2,31 @@ package io.github.ocelot.sonar.client.framebuffer;
 
 import com.mojang.blaze3d.pipeline.RenderTarget;
 import com.mojang.blaze3d.platform.GlStateManager;
+import com.mojang.blaze3d.platform.NativeImage;
 import com.mojang.blaze3d.platform.Window;
 import com.mojang.blaze3d.systems.RenderSystem;
+import io.github.ocelot.sonar.client.util.GlStateTracker;
+import io.github.ocelot.sonar.client.util.PixelReadback;
+import net.minecraft.Util;
 import net.minecraft.client.Minecraft;
 import org.apache.commons.lang3.Validate;
+import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL43C;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.system.NativeResource;
 
 import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 import static org.lwjgl.opengl.GL30.*;
 
@@ -30,6 +44,11 @@ public class AdvancedFbo implements NativeResource
     private final AdvancedFboAttachment[] colorAttachments;
     private final AdvancedFboAttachment depthAttachment;
     private final int clearMask;
+    private final LoadAction[] colorLoadActions;
+    private final StoreAction[] colorStoreActions;
+    private LoadAction depthLoadAction;
+    private StoreAction depthStoreAction;
+    private final int[] drawBuffers;
 
     private AdvancedFbo(int width, int height, AdvancedFboAttachment[] colorAttachments, @Nullable AdvancedFboAttachment depthAttachment)
     {
@@ -45,6 +64,19 @@ public class AdvancedFbo implements NativeResource
         if (this.hasDepthAttachment())
             mask |= GL_DEPTH_BUFFER_BIT;
         this.clearMask = mask;
+
+        this.colorLoadActions = new LoadAction[colorAttachments.length];
+        this.colorStoreActions = new StoreAction[colorAttachments.length];
+        Arrays.fill(this.colorLoadActions, LoadAction.LOAD);
+        Arrays.fill(this.colorStoreActions, StoreAction.STORE);
+        this.depthLoadAction = LoadAction.LOAD;
+        this.depthStoreAction = StoreAction.STORE;
+
+        // New framebuffers only draw into the first color attachment
+        this.drawBuffers = new int[colorAttachments.length];
+        Arrays.fill(this.drawBuffers, GL_NONE);
+        if (this.drawBuffers.length > 0)
+            this.drawBuffers[0] = GL_COLOR_ATTACHMENT0;
     }
 
     /**
@@ -76,6 +108,8 @@ public class AdvancedFbo implements NativeResource
             this.colorAttachments[i].attach(GL_FRAMEBUFFER, i);
         if (this.depthAttachment != null)
             this.depthAttachment.attach(GL_FRAMEBUFFER, 0);
+        if (this.hasCustomDrawBuffers())
+            glDrawBuffers(this.drawBuffers);
 
         int status = glCheckFramebufferStatus(GL_FRAMEBUFFER);
         if (status != GL_FRAMEBUFFER_COMPLETE)
@@ -92,6 +126,124 @@ public class AdvancedFbo implements NativeResource
             GlStateManager._clear(this.clearMask, Minecraft.ON_OSX);
     }
 
+    /**
+     * Binds this framebuffer and applies the load action of each attachment. Attachments that are cleared use the current clear color and depth, and attachments that don't care have their contents discarded. The draw buffers set with {@link #setDrawBuffers(int...)} are kept.
+     *
+     * @param setViewport Whether to set the viewport to fit the bounds of this framebuffer
+     */
+    public void begin(boolean setViewport)
+    {
+        if (!RenderSystem.isOnRenderThreadOrInit())
+        {
+            RenderSystem.recordRenderCall(() -> this._begin(setViewport));
+        }
+        else
+        {
+            this._begin(setViewport);
+        }
+    }
+
+    private void _begin(boolean setViewport)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        this._bind(setViewport);
+
+        try (MemoryStack stack = MemoryStack.stackPush())
+        {
+            IntBuffer discard = stack.mallocInt(this.colorAttachments.length + 1);
+            for (int i = 0; i < this.colorAttachments.length; i++)
+            {
+                if (this.colorLoadActions[i] == LoadAction.DONT_CARE)
+                    discard.put(GL_COLOR_ATTACHMENT0 + i);
+            }
+            if (this.depthAttachment != null && this.depthLoadAction == LoadAction.DONT_CARE)
+                discard.put(GL_DEPTH_ATTACHMENT);
+            discard.flip();
+            invalidate(discard);
+        }
+
+        if (this.depthAttachment != null && this.depthLoadAction == LoadAction.CLEAR)
+            GlStateManager._clear(GL_DEPTH_BUFFER_BIT, Minecraft.ON_OSX);
+        if (!Arrays.asList(this.colorLoadActions).contains(LoadAction.CLEAR))
+            return;
+
+        // Each attachment is cleared through its own draw buffer, so the draw buffers are pointed at the attachments in order and put back afterwards
+        try (MemoryStack stack = MemoryStack.stackPush())
+        {
+            int count = this.colorAttachments.length;
+            IntBuffer drawBuffers = stack.mallocInt(count);
+            boolean changed = false;
+            for (int i = 0; i < count; i++)
+            {
+                drawBuffers.put(i, GL_COLOR_ATTACHMENT0 + i);
+                if (this.drawBuffers[i] != GL_COLOR_ATTACHMENT0 + i)
+                    changed = true;
+            }
+            if (changed)
+                glDrawBuffers(drawBuffers);
+
+            FloatBuffer clearColor = stack.mallocFloat(4);
+            glGetFloatv(GL_COLOR_CLEAR_VALUE, clearColor);
+            for (int i = 0; i < count; i++)
+            {
+                if (this.colorLoadActions[i] == LoadAction.CLEAR)
+                    glClearBufferfv(GL_COLOR, i, clearColor);
+            }
+
+            if (changed)
+                glDrawBuffers(this.drawBuffers);
+        }
+    }
+
+    /**
+     * Applies the store action of each attachment. Attachments that don't care have their contents discarded, so this should be called after this framebuffer has been resolved or read. If anything was discarded, the framebuffer bound for drawing before is bound again, or the main framebuffer if it was this one.
+     */
+    public void end()
+    {
+        if (!RenderSystem.isOnRenderThreadOrInit())
+        {
+            RenderSystem.recordRenderCall(this::_end);
+        }
+        else
+        {
+            this._end();
+        }
+    }
+
+    private void _end()
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        try (MemoryStack stack = MemoryStack.stackPush())
+        {
+            IntBuffer discard = stack.mallocInt(this.colorAttachments.length + 1);
+            for (int i = 0; i < this.colorAttachments.length; i++)
+            {
+                if (this.colorStoreActions[i] == StoreAction.DONT_CARE)
+                    discard.put(GL_COLOR_ATTACHMENT0 + i);
+            }
+            if (this.depthAttachment != null && this.depthStoreAction == StoreAction.DONT_CARE)
+                discard.put(GL_DEPTH_ATTACHMENT);
+            discard.flip();
+            if (discard.hasRemaining())
+            {
+                // Anything drawn after this must not go into the discarded attachments
+                int lastDrawFramebuffer = glGetInteger(GL_DRAW_FRAMEBUFFER_BINDING);
+                this._bindDraw(this.id, false);
+                invalidate(discard);
+                GlStateTracker.bindFramebuffer(GL_DRAW_FRAMEBUFFER, lastDrawFramebuffer == this.id ? getMainFramebuffer() : lastDrawFramebuffer);
+            }
+        }
+    }
+
+    private static void invalidate(IntBuffer attachments)
+    {
+        if (!attachments.hasRemaining())
+            return;
+        GLCapabilities capabilities = GL.getCapabilities();
+        if (capabilities.OpenGL43 || capabilities.GL_ARB_invalidate_subdata)
+            GL43C.glInvalidateFramebuffer(GL_DRAW_FRAMEBUFFER, attachments);
+    }
+
     /**
      * Binds this framebuffer for read and draw requests.
      *
@@ -111,7 +263,7 @@ public class AdvancedFbo implements NativeResource
 
     private void _bind(boolean setViewport)
     {
-        glBindFramebuffer(GL_FRAMEBUFFER, this.id);
+        GlStateTracker.bindFramebuffer(GL_FRAMEBUFFER, this.id);
         if (setViewport)
             RenderSystem.viewport(0, 0, this.width, this.height);
     }
@@ -123,11 +275,11 @@ public class AdvancedFbo implements NativeResource
     {
         if (!RenderSystem.isOnRenderThreadOrInit())
         {
-            RenderSystem.recordRenderCall(() -> glBindFramebuffer(GL_READ_FRAMEBUFFER, this.id));
+            RenderSystem.recordRenderCall(() -> GlStateTracker.bindFramebuffer(GL_READ_FRAMEBUFFER, this.id));
         }
         else
         {
-            glBindFramebuffer(GL_READ_FRAMEBUFFER, this.id);
+            GlStateTracker.bindFramebuffer(GL_READ_FRAMEBUFFER, this.id);
         }
     }
 
@@ -150,7 +302,7 @@ public class AdvancedFbo implements NativeResource
 
     private void _bindDraw(int id, boolean setViewport)
     {
-        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, id);
+        GlStateTracker.bindFramebuffer(GL_DRAW_FRAMEBUFFER, id);
         if (setViewport)
             RenderSystem.viewport(0, 0, this.width, this.height);
     }
@@ -160,36 +312,36 @@ public class AdvancedFbo implements NativeResource
      */
     public static void unbind()
     {
-        RenderTarget mainTarget = Minecraft.getInstance().getMainRenderTarget();
-        if (mainTarget != null)
-        {
-            mainTarget.bindWrite(true);
-            return;
-        }
-
         if (!RenderSystem.isOnRenderThreadOrInit())
         {
-            RenderSystem.recordRenderCall(() -> glBindFramebuffer(GL_FRAMEBUFFER, 0));
+            RenderSystem.recordRenderCall(AdvancedFbo::_unbind);
         }
         else
         {
-            glBindFramebuffer(GL_FRAMEBUFFER, 0);
+            _unbind();
         }
     }
 
+    private static void _unbind()
+    {
+        RenderTarget mainTarget = Minecraft.getInstance().getMainRenderTarget();
+        GlStateTracker.bindFramebuffer(GL_FRAMEBUFFER, mainTarget != null ? mainTarget.frameBufferId : 0);
+        if (mainTarget != null)
+            RenderSystem.viewport(0, 0, mainTarget.viewWidth, mainTarget.viewHeight);
+    }
+
     /**
      * Binds the main Minecraft framebuffer for reading.
      */
     public static void unbindRead()
     {
-        int mainTarget = Minecraft.getInstance().getMainRenderTarget() != null ? Minecraft.getInstance().getMainRenderTarget().frameBufferId : 0;
         if (!RenderSystem.isOnRenderThreadOrInit())
         {
-            RenderSystem.recordRenderCall(() -> glBindFramebuffer(GL_READ_FRAMEBUFFER, mainTarget));
+            RenderSystem.recordRenderCall(() -> GlStateTracker.bindFramebuffer(GL_READ_FRAMEBUFFER, getMainFramebuffer()));
         }
         else
         {
-            glBindFramebuffer(GL_READ_FRAMEBUFFER, mainTarget);
+            GlStateTracker.bindFramebuffer(GL_READ_FRAMEBUFFER, getMainFramebuffer());
         }
     }
 
@@ -198,17 +350,22 @@ public class AdvancedFbo implements NativeResource
      */
     public static void unbindDraw()
     {
-        int mainTarget = Minecraft.getInstance().getMainRenderTarget() != null ? Minecraft.getInstance().getMainRenderTarget().frameBufferId : 0;
         if (!RenderSystem.isOnRenderThreadOrInit())
         {
-            RenderSystem.recordRenderCall(() -> glBindFramebuffer(GL_DRAW_FRAMEBUFFER, mainTarget));
+            RenderSystem.recordRenderCall(() -> GlStateTracker.bindFramebuffer(GL_DRAW_FRAMEBUFFER, getMainFramebuffer()));
         }
         else
         {
-            glBindFramebuffer(GL_DRAW_FRAMEBUFFER, mainTarget);
+            GlStateTracker.bindFramebuffer(GL_DRAW_FRAMEBUFFER, getMainFramebuffer());
         }
     }
 
+    private static int getMainFramebuffer()
+    {
+        RenderTarget mainTarget = Minecraft.getInstance().getMainRenderTarget();
+        return mainTarget != null ? mainTarget.frameBufferId : 0;
+    }
+
     /**
      * Resolves this framebuffer to the framebuffer with the specified id as the target.
      *
@@ -234,7 +391,7 @@ public class AdvancedFbo implements NativeResource
     {
         RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
         this.bindRead();
-        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, id);
+        GlStateTracker.bindFramebuffer(GL_DRAW_FRAMEBUFFER, id);
         glBlitFramebuffer(0, 0, this.width, this.height, 0, 0, width, height, mask, filtering);
         unbind();
     }
@@ -320,6 +477,96 @@ public class AdvancedFbo implements NativeResource
         unbindRead();
     }
 
+    /**
+     * Reads the pixels of the specified color attachment without stalling the render thread. The pixels are copied into a pixel pack buffer and read once the driver has finished, usually a frame or two later.
+     *
+     * @param attachment The color attachment to read from
+     * @param format     The GL format to read the pixels in, such as {@link GL11#GL_RGBA}. Each component is an unsigned byte
+     * @return A future that completes on the render thread with the pixels, starting from the bottom left row. The buffer must be freed with {@link MemoryUtil#memFree(java.nio.Buffer)}
+     * @throws IllegalArgumentException If there is no attachment in the specified slot or it is multisampled
+     */
+    public CompletableFuture<ByteBuffer> readPixelsAsync(int attachment, int format)
+    {
+        AdvancedFboAttachment colorAttachment = this.getColorAttachment(attachment);
+        Validate.isTrue(colorAttachment.getSamples() == 1, "Multisampled attachments must be resolved before they can be read.");
+        if (!RenderSystem.isOnRenderThreadOrInit())
+        {
+            CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+            RenderSystem.recordRenderCall(() ->
+            {
+                try
+                {
+                    this._readPixelsAsync(colorAttachment, attachment, format).whenComplete((pixels, error) ->
+                    {
+                        if (error != null)
+                        {
+                            future.completeExceptionally(error);
+                        }
+                        else
+                        {
+                            future.complete(pixels);
+                        }
+                    });
+                }
+                catch (Throwable t)
+                {
+                    // The framebuffer may have been freed before the call ran
+                    future.completeExceptionally(t);
+                }
+            });
+            return future;
+        }
+        return this._readPixelsAsync(colorAttachment, attachment, format);
+    }
+
+    private CompletableFuture<ByteBuffer> _readPixelsAsync(AdvancedFboAttachment colorAttachment, int attachment, int format)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        Validate.isTrue(this.id != -1, "Framebuffer has not been created.");
+        int width = colorAttachment.getWidth();
+        int height = colorAttachment.getHeight();
+        return PixelReadback.read(width * height * PixelReadback.getComponents(format), () ->
+        {
+            int lastReadFramebuffer = GlStateTracker.isInSequence() ? GlStateTracker.getReadFramebuffer() : -1;
+            if (lastReadFramebuffer == -1)
+                lastReadFramebuffer = glGetInteger(GL_READ_FRAMEBUFFER_BINDING);
+            GlStateTracker.bindFramebuffer(GL_READ_FRAMEBUFFER, this.id);
+            glReadBuffer(GL_COLOR_ATTACHMENT0 + attachment);
+            glReadPixels(0, 0, width, height, format, GL_UNSIGNED_BYTE, 0L);
+            glReadBuffer(GL_COLOR_ATTACHMENT0);
+            GlStateTracker.bindFramebuffer(GL_READ_FRAMEBUFFER, lastReadFramebuffer);
+        }, MemoryUtil::memAlloc);
+    }
+
+    /**
+     * Reads the specified color attachment into a new image without stalling the render thread. The image is filled on a background thread.
+     *
+     * @param attachment The color attachment to read from
+     * @return A future that completes with the image, which is flipped so the top row is first
+     * @throws IllegalArgumentException If there is no attachment in the specified slot or it is multisampled
+     */
+    public CompletableFuture<NativeImage> readImageAsync(int attachment)
+    {
+        return this.readPixelsAsync(attachment, GL_RGBA).thenApplyAsync(pixels ->
+        {
+            try
+            {
+                AdvancedFboAttachment colorAttachment = this.getColorAttachment(attachment);
+                int width = colorAttachment.getWidth();
+                int height = colorAttachment.getHeight();
+                NativeImage image = new NativeImage(width, height, false);
+                for (int y = 0; y < height; y++)
+                    for (int x = 0; x < width; x++)
+                        image.setPixelRGBA(x, height - y - 1, pixels.getInt((x + y * width) * 4));
+                return image;
+            }
+            finally
+            {
+                MemoryUtil.memFree(pixels);
+            }
+        }, Util.backgroundExecutor());
+    }
+
     @Override
     public void free()
     {
@@ -339,6 +586,7 @@ public class AdvancedFbo implements NativeResource
         if (this.id != -1)
         {
             glDeleteFramebuffers(this.id);
+            GlStateTracker.onFramebufferDeleted(this.id);
             this.id = -1;
         }
         for (AdvancedFboAttachment attachment : this.colorAttachments)
@@ -355,6 +603,18 @@ public class AdvancedFbo implements NativeResource
         return id;
     }
 
+    /**
+     * Changes the area of the attachments that is drawn to and resolved from without reallocating them.
+     *
+     * @param width  The new width, which must not be larger than the attachments
+     * @param height The new height, which must not be larger than the attachments
+     */
+    void setSize(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+    }
+
     /**
      * @return The width of this framebuffer
      */
@@ -514,6 +774,171 @@ public class AdvancedFbo implements NativeResource
         return (AdvancedFboRenderAttachment) advancedFboAttachment;
     }
 
+    /**
+     * Binds this framebuffer and sets which color attachment each fragment output is drawn into. Draw buffers should only be changed through this method, since {@link #begin(boolean)} puts back the draw buffers set here.
+     *
+     * @param attachments The color attachment for each fragment output in order or <code>-1</code> to discard that output. Outputs after these are discarded
+     * @throws IllegalArgumentException If there are more outputs than color attachments or an attachment does not exist
+     */
+    public void setDrawBuffers(int... attachments)
+    {
+        Validate.isTrue(attachments.length <= this.colorAttachments.length, "Framebuffer only has " + this.colorAttachments.length + " color attachments");
+        int[] drawBuffers = new int[this.colorAttachments.length];
+        Arrays.fill(drawBuffers, GL_NONE);
+        for (int i = 0; i < attachments.length; i++)
+        {
+            Validate.isTrue(attachments[i] == -1 || this.hasColorAttachment(attachments[i]), "Color attachment " + attachments[i] + " does not exist");
+            if (attachments[i] != -1)
+                drawBuffers[i] = GL_COLOR_ATTACHMENT0 + attachments[i];
+        }
+
+        if (!RenderSystem.isOnRenderThreadOrInit())
+        {
+            RenderSystem.recordRenderCall(() -> this._setDrawBuffers(drawBuffers));
+        }
+        else
+        {
+            this._setDrawBuffers(drawBuffers);
+        }
+    }
+
+    private void _setDrawBuffers(int[] drawBuffers)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        System.arraycopy(drawBuffers, 0, this.drawBuffers, 0, drawBuffers.length);
+        if (this.id == -1)
+            return;
+        this._bind(false);
+        glDrawBuffers(this.drawBuffers);
+    }
+
+    /**
+     * Sets every load and store action back to {@link LoadAction#LOAD} and {@link StoreAction#STORE} and draws only into the first color attachment, the same as a new framebuffer. The framebuffer bound for drawing is kept.
+     */
+    public void resetState()
+    {
+        Arrays.fill(this.colorLoadActions, LoadAction.LOAD);
+        Arrays.fill(this.colorStoreActions, StoreAction.STORE);
+        this.depthLoadAction = LoadAction.LOAD;
+        this.depthStoreAction = StoreAction.STORE;
+        if (!this.hasCustomDrawBuffers())
+            return;
+
+        if (!RenderSystem.isOnRenderThreadOrInit())
+        {
+            RenderSystem.recordRenderCall(this::_resetDrawBuffers);
+        }
+        else
+        {
+            this._resetDrawBuffers();
+        }
+    }
+
+    private void _resetDrawBuffers()
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        Arrays.fill(this.drawBuffers, GL_NONE);
+        if (this.drawBuffers.length > 0)
+            this.drawBuffers[0] = GL_COLOR_ATTACHMENT0;
+        if (this.id == -1)
+            return;
+
+        int lastDrawFramebuffer = GlStateTracker.isInSequence() ? GlStateTracker.getDrawFramebuffer() : -1;
+        if (lastDrawFramebuffer == -1)
+            lastDrawFramebuffer = glGetInteger(GL_DRAW_FRAMEBUFFER_BINDING);
+        this._bindDraw(this.id, false);
+        glDrawBuffers(this.drawBuffers);
+        GlStateTracker.bindFramebuffer(GL_DRAW_FRAMEBUFFER, lastDrawFramebuffer);
+    }
+
+    private boolean hasCustomDrawBuffers()
+    {
+        for (int i = 0; i < this.drawBuffers.length; i++)
+            if (this.drawBuffers[i] != (i == 0 ? GL_COLOR_ATTACHMENT0 : GL_NONE))
+                return true;
+        return false;
+    }
+
+    /**
+     * Sets what happens to the contents of a color attachment when {@link #begin(boolean)} is called.
+     *
+     * @param attachment The color attachment to set the action of
+     * @param action     The action to take
+     */
+    public void setLoadAction(int attachment, LoadAction action)
+    {
+        Validate.validIndex(this.colorLoadActions, attachment);
+        this.colorLoadActions[attachment] = action;
+    }
+
+    /**
+     * Sets what happens to the contents of a color attachment when {@link #end()} is called.
+     *
+     * @param attachment The color attachment to set the action of
+     * @param action     The action to take
+     */
+    public void setStoreAction(int attachment, StoreAction action)
+    {
+        Validate.validIndex(this.colorStoreActions, attachment);
+        this.colorStoreActions[attachment] = action;
+    }
+
+    /**
+     * Sets what happens to the contents of the depth attachment when {@link #begin(boolean)} is called.
+     *
+     * @param action The action to take
+     */
+    public void setDepthLoadAction(LoadAction action)
+    {
+        this.depthLoadAction = action;
+    }
+
+    /**
+     * Sets what happens to the contents of the depth attachment when {@link #end()} is called.
+     *
+     * @param action The action to take
+     */
+    public void setDepthStoreAction(StoreAction action)
+    {
+        this.depthStoreAction = action;
+    }
+
+    /**
+     * @param attachment The color attachment to get the action of
+     * @return What happens to the contents of the color attachment when {@link #begin(boolean)} is called
+     */
+    public LoadAction getLoadAction(int attachment)
+    {
+        Validate.validIndex(this.colorLoadActions, attachment);
+        return this.colorLoadActions[attachment];
+    }
+
+    /**
+     * @param attachment The color attachment to get the action of
+     * @return What happens to the contents of the color attachment when {@link #end()} is called
+     */
+    public StoreAction getStoreAction(int attachment)
+    {
+        Validate.validIndex(this.colorStoreActions, attachment);
+        return this.colorStoreActions[attachment];
+    }
+
+    /**
+     * @return What happens to the contents of the depth attachment when {@link #begin(boolean)} is called
+     */
+    public LoadAction getDepthLoadAction()
+    {
+        return depthLoadAction;
+    }
+
+    /**
+     * @return What happens to the contents of the depth attachment when {@link #end()} is called
+     */
+    public StoreAction getDepthStoreAction()
+    {
+        return depthStoreAction;
+    }
+
     /**
      * @return A {@link RenderTarget} that uses this advanced fbo as the target
      */
@@ -561,6 +986,46 @@ public class AdvancedFbo implements NativeResource
         return new Builder(parent.width, parent.height).addAttachments(parent);
     }
 
+    /**
+     * <p>What happens to the contents of an attachment when a pass begins.</p>
+     *
+     * @author Ocelot
+     * @since 7.1.0
+     */
+    public enum LoadAction
+    {
+        /**
+         * The previous contents are kept.
+         */
+        LOAD,
+        /**
+         * The contents are cleared.
+         */
+        CLEAR,
+        /**
+         * The previous contents are discarded and are undefined until drawn over.
+         */
+        DONT_CARE
+    }
+
+    /**
+     * <p>What happens to the contents of an attachment when a pass ends.</p>
+     *
+     * @author Ocelot
+     * @since 7.1.0
+     */
+    public enum StoreAction
+    {
+        /**
+         * The contents are kept for later passes.
+         */
+        STORE,
+        /**
+         * The contents are discarded, for example depth that is only needed while drawing or samples that have already been resolved.
+         */
+        DONT_CARE
+    }
+
     /**
      * <p>A builder used to attach buffers to an {@link AdvancedFbo}.</p>
      *
@@ -622,18 +1087,18 @@ public class AdvancedFbo implements NativeResource
         public Builder addAttachments(RenderTarget parent)
         {
             this.setMipmaps(0);
+            this.setSamples(1);
             this.addColorTextureBuffer(parent.width, parent.height);
             if (parent.useDepth)
             {
                 Validate.isTrue(this.depthAttachment == null, "Only one depth attachment can be applied to an FBO.");
-                this.setSamples(1);
                 this.setDepthRenderBuffer(parent.width, parent.height);
             }
             return this;
         }
 
         /**
-         * Sets the number of mipmaps levels to use for texture attachments. <code>0</code> is the default for none.
+         * Sets the number of mipmaps levels to use for texture attachments. <code>0</code> is the default for none. Texture attachments only create levels down to <code>1x1</code>, so any more are ignored.
          *
          * @param mipmaps The levels to have
          */
@@ -644,7 +1109,7 @@ public class AdvancedFbo implements NativeResource
         }
 
         /**
-         * Sets the number of samples to use for render buffer attachments. <code>1</code> is the default for single sample buffers.
+         * Sets the number of samples to use for render buffer and texture attachments. <code>1</code> is the default for single sample buffers. Multisampled texture attachments cannot have mipmaps.
          *
          * @param samples The samples to have
          */
@@ -682,7 +1147,7 @@ public class AdvancedFbo implements NativeResource
          */
         public Builder addColorTextureBuffer(int width, int height)
         {
-            this.colorAttachments.add(new AdvancedFboTextureAttachment(GL_COLOR_ATTACHMENT0, this.format, width, height, this.mipmaps));
+            this.colorAttachments.add(new AdvancedFboTextureAttachment(GL_COLOR_ATTACHMENT0, this.format, width, height, this.mipmaps, this.samples));
             this.validateColorSize();
             return this;
         }
@@ -729,7 +1194,7 @@ public class AdvancedFbo implements NativeResource
         public Builder setDepthTextureBuffer(int width, int height)
         {
             Validate.isTrue(this.depthAttachment == null, "Only one depth attachment can be applied to an FBO.");
-            this.depthAttachment = new AdvancedFboTextureAttachment(GL_DEPTH_ATTACHMENT, this.format, width, height, this.mipmaps);
+            this.depthAttachment = new AdvancedFboTextureAttachment(GL_DEPTH_ATTACHMENT, this.format, width, height, this.mipmaps, this.samples);
             return this;
         }
 
@@ -0,0 +1,269 @@
+package io.github.ocelot.sonar.client.framebuffer;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.eventbus.api.SubscribeEvent;
+import org.apache.commons.lang3.Validate;
+import org.lwjgl.system.NativeResource;
+
+import java.util.*;
+
+import static org.lwjgl.opengl.GL11.GL_RGBA;
+
+/**
+ * <p>Leases transient {@link AdvancedFbo} instances that match a {@link Descriptor} for the rest of the frame.</p>
+ * <p>All leases are returned to the pool at the end of every frame, so scratch framebuffers are only created the first time a size and layout is requested. Framebuffers that are not leased for the specified number of frames are deleted.</p>
+ *
+ * @author Ocelot
+ * @since 7.1.0
+ */
+public class AdvancedFboPool implements NativeResource
+{
+    private final int maxAge;
+    private final Map<Descriptor, Deque<Entry>> available;
+    private final Map<AdvancedFbo, Entry> leased;
+    private long frame;
+
+    /**
+     * Creates a new pool that deletes framebuffers after 60 frames without being leased.
+     */
+    public AdvancedFboPool()
+    {
+        this(60);
+    }
+
+    /**
+     * Creates a new pool.
+     *
+     * @param maxAge The number of frames a framebuffer can go without being leased before it is deleted
+     */
+    public AdvancedFboPool(int maxAge)
+    {
+        Validate.isTrue(maxAge >= 0, "Max age must be at least 0");
+        this.maxAge = maxAge;
+        this.available = new HashMap<>();
+        this.leased = new IdentityHashMap<>();
+        this.frame = 0;
+        MinecraftForge.EVENT_BUS.register(this);
+    }
+
+    /**
+     * Leases a framebuffer with one color texture and a depth attachment until the end of the frame.
+     *
+     * @param width  The width of the framebuffer
+     * @param height The height of the framebuffer
+     * @return A framebuffer matching the size. The contents are undefined
+     */
+    public AdvancedFbo lease(int width, int height)
+    {
+        return this.lease(new Descriptor(width, height, GL_RGBA, 1, 1, true));
+    }
+
+    /**
+     * Leases a framebuffer matching the specified descriptor until the end of the frame. The framebuffer must not be freed or kept after the frame ends. Its load and store actions and draw buffers are reset with {@link AdvancedFbo#resetState()}.
+     *
+     * @param descriptor The size and layout of the framebuffer
+     * @return A framebuffer matching the descriptor. The contents are undefined
+     */
+    public AdvancedFbo lease(Descriptor descriptor)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        Deque<Entry> entries = this.available.get(descriptor);
+        Entry entry = entries != null ? entries.pollFirst() : null;
+        if (entry == null)
+        {
+            entry = new Entry(descriptor);
+        }
+        else
+        {
+            // The previous lease may have changed the actions or draw buffers, which would otherwise discard or misdirect the next lease's drawing
+            entry.fbo.resetState();
+        }
+        this.leased.put(entry.fbo, entry);
+        return entry.fbo;
+    }
+
+    /**
+     * Returns a leased framebuffer before the end of the frame so it can be leased again in the same frame.
+     *
+     * @param fbo The framebuffer to return
+     * @throws IllegalArgumentException If the framebuffer is not currently leased from this pool
+     */
+    public void release(AdvancedFbo fbo)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        Entry entry = this.leased.remove(fbo);
+        Validate.isTrue(entry != null, "Framebuffer is not leased from this pool");
+        this.makeAvailable(entry);
+    }
+
+    private void makeAvailable(Entry entry)
+    {
+        entry.lastUsed = this.frame;
+        // Most recently used framebuffers are leased first so the oldest sit at the end and age out
+        this.available.computeIfAbsent(entry.descriptor, key -> new ArrayDeque<>()).addFirst(entry);
+    }
+
+    /**
+     * Returns all leases and deletes any framebuffers that have not been used recently.
+     */
+    public void endFrame()
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        this.leased.values().forEach(this::makeAvailable);
+        this.leased.clear();
+
+        this.available.values().removeIf(entries ->
+        {
+            while (!entries.isEmpty() && this.frame - entries.peekLast().lastUsed > this.maxAge)
+                entries.pollLast().fbo.free();
+            return entries.isEmpty();
+        });
+        this.frame++;
+    }
+
+    @SubscribeEvent
+    public void onEvent(TickEvent.RenderTickEvent event)
+    {
+        if (event.phase == TickEvent.Phase.END)
+            this.endFrame();
+    }
+
+    /**
+     * @return The number of framebuffers currently owned by this pool, including leased framebuffers
+     */
+    public int size()
+    {
+        return this.leased.size() + this.available.values().stream().mapToInt(Deque::size).sum();
+    }
+
+    @Override
+    public void free()
+    {
+        MinecraftForge.EVENT_BUS.unregister(this);
+        this.leased.keySet().forEach(AdvancedFbo::free);
+        this.leased.clear();
+        this.available.values().forEach(entries -> entries.forEach(entry -> entry.fbo.free()));
+        this.available.clear();
+    }
+
+    private static class Entry
+    {
+        private final Descriptor descriptor;
+        private final AdvancedFbo fbo;
+        private long lastUsed;
+
+        private Entry(Descriptor descriptor)
+        {
+            this.descriptor = descriptor;
+            this.fbo = descriptor.create();
+        }
+    }
+
+    /**
+     * <p>The size and attachment layout of a pooled framebuffer. Descriptors can be kept and reused so leasing does not allocate.</p>
+     *
+     * @author Ocelot
+     * @since 7.1.0
+     */
+    public static final class Descriptor
+    {
+        private final int width;
+        private final int height;
+        private final int format;
+        private final int samples;
+        private final int colorBuffers;
+        private final boolean depth;
+        private final int hashCode;
+
+        /**
+         * Creates a new descriptor. Framebuffers with a single sample use color texture attachments, and multisampled framebuffers use color render buffers. Depth is always a render buffer.
+         *
+         * @param width        The width of the framebuffer
+         * @param height       The height of the framebuffer
+         * @param format       The format of the color attachments
+         * @param samples      The number of samples in each attachment
+         * @param colorBuffers The number of color attachments
+         * @param depth        Whether there should be a depth attachment
+         */
+        public Descriptor(int width, int height, int format, int samples, int colorBuffers, boolean depth)
+        {
+            Validate.isTrue(width > 0 && height > 0, "Framebuffer size must be positive");
+            Validate.isTrue(colorBuffers > 0, "Framebuffer needs at least one color attachment to be complete.");
+            this.width = width;
+            this.height = height;
+            this.format = format;
+            this.samples = samples;
+            this.colorBuffers = colorBuffers;
+            this.depth = depth;
+            this.hashCode = Objects.hash(width, height, format, samples, colorBuffers, depth);
+        }
+
+        private AdvancedFbo create()
+        {
+            AdvancedFbo.Builder builder = AdvancedFbo.withSize(this.width, this.height).setFormat(this.format).setSamples(this.samples);
+            for (int i = 0; i < this.colorBuffers; i++)
+            {
+                if (this.samples > 1)
+                {
+                    builder.addColorRenderBuffer();
+                }
+                else
+                {
+                    builder.addColorTextureBuffer();
+                }
+            }
+            if (this.depth)
+                builder.setDepthRenderBuffer();
+            return builder.build(true);
+        }
+
+        public int getWidth()
+        {
+            return width;
+        }
+
+        public int getHeight()
+        {
+            return height;
+        }
+
+        public int getFormat()
+        {
+            return format;
+        }
+
+        public int getSamples()
+        {
+            return samples;
+        }
+
+        public int getColorBuffers()
+        {
+            return colorBuffers;
+        }
+
+        public boolean hasDepth()
+        {
+            return depth;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+                return true;
+            if (o == null || this.getClass() != o.getClass())
+                return false;
+            Descriptor that = (Descriptor) o;
+            return this.width == that.width && this.height == that.height && this.format == that.format && this.samples == that.samples && this.colorBuffers == that.colorBuffers && this.depth == that.depth;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+    }
+}
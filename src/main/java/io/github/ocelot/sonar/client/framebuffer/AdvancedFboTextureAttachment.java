@@ -1,16 +1,26 @@
 package io.github.ocelot.sonar.client.framebuffer;
 
 import com.mojang.blaze3d.platform.GlStateManager;
+import com.mojang.blaze3d.platform.TextureUtil;
 import com.mojang.blaze3d.systems.RenderSystem;
+import io.github.ocelot.sonar.client.util.GlStateTracker;
 import net.minecraft.client.renderer.texture.AbstractTexture;
 import net.minecraft.server.packs.resources.ResourceManager;
 import org.apache.commons.lang3.Validate;
+import org.lwjgl.opengl.ARBTextureMultisample;
+import org.lwjgl.opengl.ARBTextureStorage;
+import org.lwjgl.opengl.ARBTextureStorageMultisample;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
 
-import static org.lwjgl.opengl.GL11.GL_TEXTURE_2D;
-import static org.lwjgl.opengl.GL30.GL_DEPTH_ATTACHMENT;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL14.GL_DEPTH_COMPONENT24;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.GL_TEXTURE_2D_MULTISAMPLE;
 
 /**
  * <p>An attachment for an {@link AdvancedFbo} that represents a color texture buffer.</p>
+ * <p>Storage is allocated as immutable texture storage when it is supported. Attachments with more than one sample are <code>GL_TEXTURE_2D_MULTISAMPLE</code> textures, which can be sampled directly with <code>sampler2DMS</code> instead of being resolved first.</p>
  *
  * @author Ocelot
  * @since 2.4.0
@@ -22,19 +32,53 @@ public class AdvancedFboTextureAttachment extends AbstractTexture implements Adv
     private final int width;
     private final int height;
     private final int mipmapLevels;
+    private final int samples;
 
     public AdvancedFboTextureAttachment(int attachmentType, int format, int width, int height, int mipmapLevels)
     {
+        this(attachmentType, format, width, height, mipmapLevels, 1);
+    }
+
+    public AdvancedFboTextureAttachment(int attachmentType, int format, int width, int height, int mipmapLevels, int samples)
+    {
+        Validate.inclusiveBetween(1, AdvancedFboRenderAttachment.MAX_SAMPLES, samples);
+        Validate.isTrue(samples == 1 || mipmapLevels <= 0, "Multisampled textures cannot have mipmaps");
         this.attachmentType = attachmentType;
         this.format = format;
         this.width = width;
         this.height = height;
-        this.mipmapLevels = mipmapLevels;
+        // Immutable storage can't have more levels than it takes to reach 1x1
+        this.mipmapLevels = Math.min(mipmapLevels, 31 - Integer.numberOfLeadingZeros(Math.max(1, Math.max(width, height))));
+        this.samples = samples;
     }
 
     private void _create()
     {
         RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        // Immutable storage can't be allocated again, so creating the attachment again starts from a new texture
+        if (this.id != -1)
+        {
+            if (this.samples > 1)
+                GlStateTracker.onTextureDeleted(this.id);
+            TextureUtil.releaseTextureId(this.id);
+            this.id = -1;
+        }
+
+        GLCapabilities capabilities = GL.getCapabilities();
+        if (this.samples > 1)
+        {
+            this.bindAttachment();
+            if (capabilities.OpenGL43 || capabilities.GL_ARB_texture_storage_multisample)
+            {
+                ARBTextureStorageMultisample.glTexStorage2DMultisample(GL_TEXTURE_2D_MULTISAMPLE, this.samples, getSizedFormat(this.format), this.width, this.height, true);
+            }
+            else
+            {
+                ARBTextureMultisample.glTexImage2DMultisample(GL_TEXTURE_2D_MULTISAMPLE, this.samples, getSizedFormat(this.format), this.width, this.height, true);
+            }
+            return;
+        }
+
         this.bind();
         this.setBlurMipmap(false, this.mipmapLevels > 1);
         if (this.mipmapLevels >= 0)
@@ -45,12 +89,42 @@ public class AdvancedFboTextureAttachment extends AbstractTexture implements Adv
             GlStateManager._texParameter(3553, 34049, 0.0F);
         }
 
+        if (capabilities.OpenGL42 || capabilities.GL_ARB_texture_storage)
+        {
+            ARBTextureStorage.glTexStorage2D(GL_TEXTURE_2D, Math.max(0, this.mipmapLevels) + 1, getSizedFormat(this.format), this.width, this.height);
+            return;
+        }
+
         for (int m = 0; m <= this.mipmapLevels; ++m)
         {
             GlStateManager._texImage2D(3553, m, this.format, this.width >> m, this.height >> m, 0, 6408, 5121, null);
         }
     }
 
+    /**
+     * Immutable storage requires a sized format, so the unsized formats accepted by <code>glTexImage2D</code> are mapped to the sizes drivers would pick for them.
+     */
+    static int getSizedFormat(int format)
+    {
+        switch (format)
+        {
+            case GL_RED:
+                return GL_R8;
+            case GL_RG:
+                return GL_RG8;
+            case GL_RGB:
+                return GL_RGB8;
+            case GL_RGBA:
+                return GL_RGBA8;
+            case GL_DEPTH_COMPONENT:
+                return GL_DEPTH_COMPONENT24;
+            case GL_DEPTH_STENCIL:
+                return GL_DEPTH24_STENCIL8;
+            default:
+                return format;
+        }
+    }
+
     @Override
     public void create()
     {
@@ -80,10 +154,21 @@ public class AdvancedFboTextureAttachment extends AbstractTexture implements Adv
     private void _attach(int target, int attachment)
     {
         Validate.isTrue(this.attachmentType < GL_DEPTH_ATTACHMENT || attachment == 0, "Only one depth buffer attachment is supported.");
-        for (int level = 0; level <= this.getMipmapLevels(); level++)
+        if (this.samples > 1)
         {
-            GlStateManager._glFramebufferTexture2D(target, this.attachmentType + attachment, GL_TEXTURE_2D, this.getId(), level);
+            glFramebufferTexture2D(target, this.attachmentType + attachment, GL_TEXTURE_2D_MULTISAMPLE, this.getId(), 0);
+            return;
         }
+        // Only the base level is drawn to, the rest of the chain is filled by mipmap generation or a MipPyramid
+        GlStateManager._glFramebufferTexture2D(target, this.attachmentType + attachment, GL_TEXTURE_2D, this.getId(), 0);
+    }
+
+    /**
+     * @return The internal format of this texture, as it was passed in
+     */
+    public int getFormat()
+    {
+        return format;
     }
 
     public int getMipmapLevels()
@@ -94,13 +179,33 @@ public class AdvancedFboTextureAttachment extends AbstractTexture implements Adv
     @Override
     public AdvancedFboTextureAttachment createCopy()
     {
-        return new AdvancedFboTextureAttachment(this.attachmentType, this.format, this.width, this.height, this.mipmapLevels);
+        return new AdvancedFboTextureAttachment(this.attachmentType, this.format, this.width, this.height, this.mipmapLevels, this.samples);
     }
 
     @Override
     public void bindAttachment()
     {
-        this.bind();
+        if (this.samples == 1)
+        {
+            this.bind();
+            return;
+        }
+
+        if (!RenderSystem.isOnRenderThreadOrInit())
+        {
+            RenderSystem.recordRenderCall(this::_bindMultisample);
+        }
+        else
+        {
+            this._bindMultisample();
+        }
+    }
+
+    private void _bindMultisample()
+    {
+        // Multisample textures are bound to the active unit, which the state tracker doesn't know about
+        glBindTexture(GL_TEXTURE_2D_MULTISAMPLE, this.getId());
+        GlStateTracker.invalidateTextures();
     }
 
     @Override
@@ -108,12 +213,23 @@ public class AdvancedFboTextureAttachment extends AbstractTexture implements Adv
     {
         if (!RenderSystem.isOnRenderThreadOrInit())
         {
-            RenderSystem.recordRenderCall(() -> RenderSystem.bindTexture(0));
+            RenderSystem.recordRenderCall(this::_unbindAttachment);
         }
         else
+        {
+            this._unbindAttachment();
+        }
+    }
+
+    private void _unbindAttachment()
+    {
+        if (this.samples == 1)
         {
             RenderSystem.bindTexture(0);
+            return;
         }
+        glBindTexture(GL_TEXTURE_2D_MULTISAMPLE, 0);
+        GlStateTracker.invalidateTextures();
     }
 
     @Override
@@ -131,7 +247,7 @@ public class AdvancedFboTextureAttachment extends AbstractTexture implements Adv
     @Override
     public int getSamples()
     {
-        return 1;
+        return samples;
     }
 
     @Override
@@ -143,6 +259,18 @@ public class AdvancedFboTextureAttachment extends AbstractTexture implements Adv
     @Override
     public void free()
     {
+        if (this.samples > 1 && this.id != -1)
+        {
+            int id = this.id;
+            if (!RenderSystem.isOnRenderThreadOrInit())
+            {
+                RenderSystem.recordRenderCall(() -> GlStateTracker.onTextureDeleted(id));
+            }
+            else
+            {
+                GlStateTracker.onTextureDeleted(id);
+            }
+        }
         this.releaseId();
     }
 
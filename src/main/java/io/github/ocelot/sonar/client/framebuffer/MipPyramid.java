@@ -0,0 +1,383 @@
+package io.github.ocelot.sonar.client.framebuffer;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import io.github.ocelot.sonar.client.shader.ShaderConst;
+import io.github.ocelot.sonar.client.util.GlStateTracker;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import org.apache.commons.lang3.Validate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.lwjgl.system.NativeResource;
+
+import javax.annotation.Nullable;
+
+import static org.lwjgl.opengl.GL43C.*;
+
+/**
+ * <p>Fills the mip chain of an {@link AdvancedFboTextureAttachment} with a dual filter blur pyramid.</p>
+ * <p>{@link #downsample(float)} blurs each level into the next smaller one, and {@link #upsample(float)} blurs them back up into the base level. Each step only takes 5 or 8 bilinear taps at the size of its level, so a wide blur costs a fraction of a separable Gaussian at full resolution. The chain is usable on its own for bloom, or {@link #blur(float)} can run both directions to blur the base level in place.</p>
+ * <p>If compute shaders and image load store are supported, each level is written by a compute dispatch. Otherwise a full screen triangle is drawn into a framebuffer for each level.</p>
+ *
+ * @author Ocelot
+ * @since 7.1.0
+ */
+public class MipPyramid implements NativeResource
+{
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int LOCAL_SIZE = 8;
+    private static final IntSet IMAGE_FORMATS = new IntOpenHashSet(new int[]{GL_RGBA32F, GL_RGBA16F, GL_RG32F, GL_RG16F, GL_R11F_G11F_B10F, GL_R32F, GL_R16F, GL_RGBA16, GL_RGB10_A2, GL_RGBA8, GL_RG16, GL_RG8, GL_R16, GL_R8});
+
+    private static final String VERTEX = "#version 130\n" +
+            "out vec2 texCoord;\n" +
+            "void main() {\n" +
+            "    vec2 position = vec2(float((gl_VertexID & 1) << 2) - 1.0, float((gl_VertexID & 2) << 1) - 1.0);\n" +
+            "    texCoord = position * 0.5 + 0.5;\n" +
+            "    gl_Position = vec4(position, 0.0, 1.0);\n" +
+            "}\n";
+    private static final String FILTER = "uniform sampler2D Source;\n" +
+            "uniform float Level;\n" +
+            "uniform vec2 HalfTexel;\n" +
+            "uniform float Offset;\n" +
+            "vec4 downsample(vec2 uv) {\n" +
+            "    vec2 o = HalfTexel * Offset;\n" +
+            "    vec4 sum = textureLod(Source, uv, Level) * 4.0;\n" +
+            "    sum += textureLod(Source, uv - o, Level);\n" +
+            "    sum += textureLod(Source, uv + o, Level);\n" +
+            "    sum += textureLod(Source, uv + vec2(o.x, -o.y), Level);\n" +
+            "    sum += textureLod(Source, uv - vec2(o.x, -o.y), Level);\n" +
+            "    return sum / 8.0;\n" +
+            "}\n" +
+            "vec4 upsample(vec2 uv) {\n" +
+            "    vec2 o = HalfTexel * Offset;\n" +
+            "    vec4 sum = textureLod(Source, uv + vec2(-o.x * 2.0, 0.0), Level);\n" +
+            "    sum += textureLod(Source, uv + vec2(-o.x, o.y), Level) * 2.0;\n" +
+            "    sum += textureLod(Source, uv + vec2(0.0, o.y * 2.0), Level);\n" +
+            "    sum += textureLod(Source, uv + vec2(o.x, o.y), Level) * 2.0;\n" +
+            "    sum += textureLod(Source, uv + vec2(o.x * 2.0, 0.0), Level);\n" +
+            "    sum += textureLod(Source, uv + vec2(o.x, -o.y), Level) * 2.0;\n" +
+            "    sum += textureLod(Source, uv + vec2(0.0, -o.y * 2.0), Level);\n" +
+            "    sum += textureLod(Source, uv + vec2(-o.x, -o.y), Level) * 2.0;\n" +
+            "    return sum / 12.0;\n" +
+            "}\n";
+    private static final String FRAGMENT = "#version 130\n" +
+            "in vec2 texCoord;\n" +
+            "out vec4 fragColor;\n" +
+            FILTER +
+            "void main() {\n" +
+            "    fragColor = FILTER_FUNCTION(texCoord);\n" +
+            "}\n";
+    private static final String COMPUTE = "#version 430\n" +
+            "layout(local_size_x = " + LOCAL_SIZE + ", local_size_y = " + LOCAL_SIZE + ") in;\n" +
+            "writeonly uniform image2D Target;\n" +
+            FILTER +
+            "void main() {\n" +
+            "    ivec2 size = imageSize(Target);\n" +
+            "    ivec2 pixel = ivec2(gl_GlobalInvocationID.xy);\n" +
+            "    if (pixel.x >= size.x || pixel.y >= size.y)\n" +
+            "        return;\n" +
+            "    imageStore(Target, pixel, FILTER_FUNCTION((vec2(pixel) + 0.5) / vec2(size)));\n" +
+            "}\n";
+
+    private static Program downsampleProgram;
+    private static Program upsampleProgram;
+    private static Program downsampleCompute;
+    private static Program upsampleCompute;
+    private static int vertexArray;
+    private static boolean computeFailed;
+
+    private final AdvancedFboTextureAttachment texture;
+    private final int[] framebuffers;
+
+    /**
+     * Creates a pyramid over the mip chain of the specified texture. The texture should be created with at least one mipmap level.
+     *
+     * @param texture The texture to fill the mip chain of
+     */
+    public MipPyramid(AdvancedFboTextureAttachment texture)
+    {
+        Validate.isTrue(texture.getSamples() == 1, "Multisampled textures do not have mip chains");
+        Validate.isTrue(texture.getMipmapLevels() > 0, "Texture needs at least one mipmap level");
+        this.texture = texture;
+        this.framebuffers = new int[texture.getMipmapLevels() + 1];
+    }
+
+    /**
+     * Blurs the base level in place by downsampling through the whole chain and upsampling back.
+     *
+     * @param offset The distance between taps in texels of each level. <code>1.0</code> is the standard dual filter, and larger values widen the blur at the cost of some artifacts
+     */
+    public void blur(float offset)
+    {
+        this.downsample(offset);
+        this.upsample(offset);
+    }
+
+    /**
+     * Fills every level after the base level with a blurred and downsampled copy of the level before it.
+     *
+     * @param offset The distance between taps in texels of each level
+     */
+    public void downsample(float offset)
+    {
+        if (!RenderSystem.isOnRenderThreadOrInit())
+        {
+            RenderSystem.recordRenderCall(() -> this.run(false, offset));
+        }
+        else
+        {
+            this.run(false, offset);
+        }
+    }
+
+    /**
+     * Replaces every level before the last level with a blurred and upsampled copy of the level after it, ending with the base level.
+     *
+     * @param offset The distance between taps in texels of each level
+     */
+    public void upsample(float offset)
+    {
+        if (!RenderSystem.isOnRenderThreadOrInit())
+        {
+            RenderSystem.recordRenderCall(() -> this.run(true, offset));
+        }
+        else
+        {
+            this.run(true, offset);
+        }
+    }
+
+    private void run(boolean up, float offset)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        GlStateTracker.beginSequence();
+        try
+        {
+            this.draw(up, offset);
+        }
+        finally
+        {
+            GlStateTracker.endSequence();
+        }
+    }
+
+    private void draw(boolean up, float offset)
+    {
+        int levels = this.texture.getMipmapLevels();
+        int format = AdvancedFboTextureAttachment.getSizedFormat(this.texture.getFormat());
+        boolean compute = ShaderConst.isComputeSupported() && ShaderConst.isImageLoadStoreSupported() && IMAGE_FORMATS.contains(format) && getComputePrograms();
+
+        RenderSystem.activeTexture(GL_TEXTURE0);
+        this.texture.bind();
+        int baseLevel = glGetTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL);
+        int maxLevel = glGetTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL);
+        int minFilter = glGetTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER);
+        int magFilter = glGetTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+
+        Program program = compute ? (up ? upsampleCompute : downsampleCompute) : getPrograms(up);
+        GlStateTracker.useProgram(program.id);
+        glUniform1i(program.source, 0);
+        glUniform1f(program.offset, offset);
+        if (compute)
+        {
+            glUniform1i(program.target, 0);
+        }
+        else
+        {
+            RenderSystem.disableBlend();
+            RenderSystem.disableDepthTest();
+            glBindVertexArray(vertexArray);
+        }
+
+        for (int i = 0; i < levels; i++)
+        {
+            int source = up ? levels - i : i;
+            int target = up ? source - 1 : source + 1;
+            int width = Math.max(1, this.texture.getWidth() >> target);
+            int height = Math.max(1, this.texture.getHeight() >> target);
+            glUniform1f(program.level, source);
+            glUniform2f(program.halfTexel, 0.5F / width, 0.5F / height);
+
+            if (compute)
+            {
+                glBindImageTexture(0, this.texture.getId(), target, false, 0, GL_WRITE_ONLY, format);
+                ShaderConst.glDispatchCompute((width + LOCAL_SIZE - 1) / LOCAL_SIZE, (height + LOCAL_SIZE - 1) / LOCAL_SIZE, 1);
+                ShaderConst.glMemoryBarrier(GL_TEXTURE_FETCH_BARRIER_BIT | GL_SHADER_IMAGE_ACCESS_BARRIER_BIT);
+            }
+            else
+            {
+                // Only the source level may be visible to the sampler, otherwise drawing into the target level is a feedback loop
+                glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, source);
+                glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, source);
+                GlStateTracker.bindFramebuffer(GL_FRAMEBUFFER, this.getFramebuffer(target));
+                RenderSystem.viewport(0, 0, width, height);
+                glDrawArrays(GL_TRIANGLES, 0, 3);
+            }
+        }
+
+        if (compute)
+        {
+            glBindImageTexture(0, 0, 0, false, 0, GL_WRITE_ONLY, format);
+            ShaderConst.glMemoryBarrier(GL_FRAMEBUFFER_BARRIER_BIT | GL_TEXTURE_UPDATE_BARRIER_BIT);
+        }
+        else
+        {
+            glBindVertexArray(0);
+            AdvancedFbo.unbind();
+        }
+
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, baseLevel);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, maxLevel);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, minFilter);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, magFilter);
+        GlStateTracker.useProgram(0);
+    }
+
+    private int getFramebuffer(int level)
+    {
+        if (this.framebuffers[level] == 0)
+        {
+            int framebuffer = glGenFramebuffers();
+            GlStateTracker.bindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+            glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, this.texture.getId(), level);
+            int status = glCheckFramebufferStatus(GL_FRAMEBUFFER);
+            if (status != GL_FRAMEBUFFER_COMPLETE)
+            {
+                glDeleteFramebuffers(framebuffer);
+                GlStateTracker.onFramebufferDeleted(framebuffer);
+                throw new IllegalStateException("Mip level " + level + " framebuffer status did not return GL_FRAMEBUFFER_COMPLETE. 0x" + Integer.toHexString(status));
+            }
+            this.framebuffers[level] = framebuffer;
+        }
+        return this.framebuffers[level];
+    }
+
+    private static Program getPrograms(boolean up)
+    {
+        if (downsampleProgram == null)
+        {
+            Program downsample = new Program(VERTEX, GL_FRAGMENT_SHADER, FRAGMENT.replace("FILTER_FUNCTION", "downsample"));
+            Program upsample = new Program(VERTEX, GL_FRAGMENT_SHADER, FRAGMENT.replace("FILTER_FUNCTION", "upsample"));
+            vertexArray = glGenVertexArrays();
+            downsampleProgram = downsample;
+            upsampleProgram = upsample;
+        }
+        return up ? upsampleProgram : downsampleProgram;
+    }
+
+    private static boolean getComputePrograms()
+    {
+        if (computeFailed)
+            return false;
+        if (downsampleCompute == null)
+        {
+            try
+            {
+                Program downsample = new Program(null, GL_COMPUTE_SHADER, COMPUTE.replace("FILTER_FUNCTION", "downsample"));
+                upsampleCompute = new Program(null, GL_COMPUTE_SHADER, COMPUTE.replace("FILTER_FUNCTION", "upsample"));
+                downsampleCompute = downsample;
+            }
+            catch (IllegalStateException e)
+            {
+                LOGGER.error("Failed to compile mip pyramid compute shaders, falling back to fragment shaders", e);
+                computeFailed = true;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void free()
+    {
+        if (!RenderSystem.isOnRenderThreadOrInit())
+        {
+            RenderSystem.recordRenderCall(this::_free);
+        }
+        else
+        {
+            this._free();
+        }
+    }
+
+    private void _free()
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        for (int i = 0; i < this.framebuffers.length; i++)
+        {
+            if (this.framebuffers[i] == 0)
+                continue;
+            glDeleteFramebuffers(this.framebuffers[i]);
+            GlStateTracker.onFramebufferDeleted(this.framebuffers[i]);
+            this.framebuffers[i] = 0;
+        }
+    }
+
+    /**
+     * <p>A program compiled from source built into Sonar, so the pyramid works without any resources.</p>
+     */
+    private static class Program
+    {
+        private final int id;
+        private final int source;
+        private final int level;
+        private final int halfTexel;
+        private final int offset;
+        private final int target;
+
+        private Program(@Nullable String vertexSource, int type, String source)
+        {
+            this.id = glCreateProgram();
+            int vertex = 0;
+            int shader = 0;
+            try
+            {
+                if (vertexSource != null)
+                {
+                    vertex = compileShader(GL_VERTEX_SHADER, vertexSource);
+                    glAttachShader(this.id, vertex);
+                }
+                shader = compileShader(type, source);
+                glAttachShader(this.id, shader);
+                glLinkProgram(this.id);
+                if (glGetProgrami(this.id, GL_LINK_STATUS) != GL_TRUE)
+                    throw new IllegalStateException("Failed to link mip pyramid program: " + glGetProgramInfoLog(this.id));
+            }
+            catch (IllegalStateException e)
+            {
+                glDeleteProgram(this.id);
+                throw e;
+            }
+            finally
+            {
+                // The shaders are only deleted once the program is
+                if (vertex != 0)
+                    glDeleteShader(vertex);
+                if (shader != 0)
+                    glDeleteShader(shader);
+            }
+
+            this.source = glGetUniformLocation(this.id, "Source");
+            this.level = glGetUniformLocation(this.id, "Level");
+            this.halfTexel = glGetUniformLocation(this.id, "HalfTexel");
+            this.offset = glGetUniformLocation(this.id, "Offset");
+            this.target = glGetUniformLocation(this.id, "Target");
+        }
+
+        private static int compileShader(int type, String source)
+        {
+            int shader = glCreateShader(type);
+            glShaderSource(shader, source);
+            glCompileShader(shader);
+            if (glGetShaderi(shader, GL_COMPILE_STATUS) != GL_TRUE)
+            {
+                String log = glGetShaderInfoLog(shader);
+                glDeleteShader(shader);
+                throw new IllegalStateException("Failed to compile mip pyramid shader: " + log);
+            }
+            return shader;
+        }
+    }
+}
@@ -0,0 +1,498 @@
+package io.github.ocelot.sonar.client.framebuffer;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import io.github.ocelot.sonar.client.util.GlStateTracker;
+import org.apache.commons.lang3.Validate;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+import static org.lwjgl.opengl.GL30.*;
+
+/**
+ * <p>A declarative chain of render passes that draw into {@link AdvancedFbo} targets.</p>
+ * <p>Each pass declares the targets it reads and the single target it writes. When the graph is built, passes that do not contribute to an imported target or have side effects are culled, and the rest are ordered so passes writing the same target run back to back and share a single bind.</p>
+ * <p>Transient targets are leased from an {@link AdvancedFboPool} right before their first use and returned right after their last use, so targets with the same descriptor and non-overlapping lifetimes share the same framebuffer. Multisampled transient targets are only resolved when a later pass reads them, and imported targets must be single sample to be read.</p>
+ *
+ * @author Ocelot
+ * @since 7.1.0
+ */
+public class RenderGraph
+{
+    private final Target[] targets;
+    private final Pass[] passes;
+    private final int culledPasses;
+    private final Context context;
+    private Pass currentPass;
+
+    private RenderGraph(Target[] targets, Pass[] passes, int culledPasses)
+    {
+        this.targets = targets;
+        this.passes = passes;
+        this.culledPasses = culledPasses;
+        this.context = this::get;
+    }
+
+    /**
+     * Runs all passes in order. Transient targets are leased from the specified pool and returned as soon as they are no longer needed.
+     *
+     * @param pool The pool to lease transient targets from
+     */
+    public void execute(AdvancedFboPool pool)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        Target bound = null;
+        GlStateTracker.beginSequence();
+        try
+        {
+            for (Pass pass : this.passes)
+            {
+                for (Target read : pass.reads)
+                {
+                    read.acquire(pool);
+                    if (read.resolve(pool))
+                        bound = null;
+                }
+                pass.write.acquire(pool);
+
+                if (bound != pass.write)
+                {
+                    pass.write.fbo.bind(true);
+                    bound = pass.write;
+                }
+                if (pass.clear)
+                    pass.write.fbo.clear();
+
+                this.currentPass = pass;
+                pass.executor.execute(this.context);
+                GlStateTracker.invalidate(); // Passes may bind anything without going through the tracker
+                pass.write.version++;
+
+                for (Target target : pass.releases)
+                    target.release(pool);
+            }
+        }
+        finally
+        {
+            this.currentPass = null;
+            for (Target target : this.targets)
+                target.release(pool);
+            AdvancedFbo.unbind();
+            GlStateTracker.endSequence();
+        }
+    }
+
+    private AdvancedFbo get(Target target)
+    {
+        Validate.validState(this.currentPass != null, "Targets can only be accessed while a pass is executing");
+        if (this.currentPass.write == target)
+            return Objects.requireNonNull(target.fbo);
+        Validate.isTrue(this.currentPass.reads.contains(target), "Pass '" + this.currentPass.name + "' did not declare target '" + target.name + "'");
+        return Objects.requireNonNull(target.resolved != null ? target.resolved : target.fbo);
+    }
+
+    /**
+     * @return The number of passes that will run each time this graph is executed
+     */
+    public int getPassCount()
+    {
+        return this.passes.length;
+    }
+
+    /**
+     * @return The number of passes that were removed because nothing used their output
+     */
+    public int getCulledPassCount()
+    {
+        return this.culledPasses;
+    }
+
+    /**
+     * @return A new builder for a render graph
+     */
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * <p>Draws a single pass of a {@link RenderGraph}.</p>
+     *
+     * @author Ocelot
+     * @since 7.1.0
+     */
+    @FunctionalInterface
+    public interface Executor
+    {
+        /**
+         * Draws this pass. The written target is already bound with the viewport set to its size. If the pass binds another framebuffer, it must bind the written target again before drawing into it or returning. Binds made outside of {@link GlStateTracker}, such as through vanilla render targets or {@link com.mojang.blaze3d.platform.GlStateManager}, must be followed by {@link GlStateTracker#invalidate()} first, otherwise binding the written target again is skipped.
+         *
+         * @param context Access to the framebuffers of the targets declared by the pass
+         */
+        void execute(Context context);
+    }
+
+    /**
+     * <p>Provides the framebuffers backing targets while a pass is executing.</p>
+     *
+     * @author Ocelot
+     * @since 7.1.0
+     */
+    @FunctionalInterface
+    public interface Context
+    {
+        /**
+         * Fetches the framebuffer for a target declared by the current pass. Multisampled transient targets that are read return the resolved single sample framebuffer.
+         *
+         * @param target The target to get
+         * @return The framebuffer backing the target for the rest of this pass
+         * @throws IllegalArgumentException If the current pass did not declare the target
+         */
+        AdvancedFbo get(Target target);
+    }
+
+    /**
+     * <p>A framebuffer read or written by passes in a {@link RenderGraph}.</p>
+     *
+     * @author Ocelot
+     * @since 7.1.0
+     */
+    public static final class Target
+    {
+        private final Builder owner;
+        private final String name;
+        private final AdvancedFboPool.Descriptor descriptor;
+        private final AdvancedFbo imported;
+        private AdvancedFbo fbo;
+        private AdvancedFbo resolved;
+        private int version;
+        private int resolvedVersion;
+
+        private Target(Builder owner, String name, @Nullable AdvancedFboPool.Descriptor descriptor, @Nullable AdvancedFbo imported)
+        {
+            this.owner = owner;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.imported = imported;
+            this.resolvedVersion = -1;
+        }
+
+        private void acquire(AdvancedFboPool pool)
+        {
+            if (this.fbo != null)
+                return;
+            this.fbo = this.imported != null ? this.imported : pool.lease(this.descriptor);
+        }
+
+        private boolean resolve(AdvancedFboPool pool)
+        {
+            if (this.descriptor == null || this.descriptor.getSamples() <= 1 || this.resolvedVersion == this.version)
+                return false;
+
+            if (this.resolved == null)
+                this.resolved = pool.lease(new AdvancedFboPool.Descriptor(this.descriptor.getWidth(), this.descriptor.getHeight(), this.descriptor.getFormat(), 1, this.descriptor.getColorBuffers(), this.descriptor.hasDepth()));
+            this.fbo.resolveToAdvancedFbo(this.resolved, this.descriptor.hasDepth() ? GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT : GL_COLOR_BUFFER_BIT, GL_NEAREST);
+            this.resolvedVersion = this.version;
+            return true;
+        }
+
+        private void release(AdvancedFboPool pool)
+        {
+            if (this.imported == null && this.fbo != null)
+                pool.release(this.fbo);
+            if (this.resolved != null)
+                pool.release(this.resolved);
+            this.fbo = null;
+            this.resolved = null;
+            this.version = 0;
+            this.resolvedVersion = -1;
+        }
+
+        /**
+         * @return Whether this target is owned outside of the graph
+         */
+        public boolean isImported()
+        {
+            return this.imported != null;
+        }
+
+        /**
+         * @return The name of this target
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.name;
+        }
+    }
+
+    /**
+     * <p>Declares the targets used by a single pass.</p>
+     *
+     * @author Ocelot
+     * @since 7.1.0
+     */
+    public static final class PassBuilder
+    {
+        private final Pass pass;
+
+        private PassBuilder(Pass pass)
+        {
+            this.pass = pass;
+        }
+
+        /**
+         * Declares that this pass samples from the specified target. Imported targets must not be multisampled, since only transient targets are resolved.
+         *
+         * @param target The target to read
+         */
+        public PassBuilder read(Target target)
+        {
+            Validate.isTrue(target.owner == this.pass.owner, "Target '" + target.name + "' does not belong to this graph");
+            Validate.isTrue(target.imported == null || !target.imported.hasColorAttachment(0) || target.imported.getColorAttachment(0).getSamples() <= 1, "Imported target '" + target.name + "' is multisampled and cannot be read");
+            Validate.isTrue(this.pass.write != target, "Pass '" + this.pass.name + "' cannot read and write '" + target.name + "'");
+            if (!this.pass.reads.contains(target))
+                this.pass.reads.add(target);
+            return this;
+        }
+
+        /**
+         * Declares that this pass draws into the specified target. Every pass writes exactly one target.
+         *
+         * @param target The target to write
+         * @param clear  Whether to clear the target before this pass draws. If <code>false</code>, the pass draws over the previous contents
+         */
+        public PassBuilder write(Target target, boolean clear)
+        {
+            Validate.isTrue(target.owner == this.pass.owner, "Target '" + target.name + "' does not belong to this graph");
+            Validate.validState(this.pass.write == null, "Pass '" + this.pass.name + "' already writes '" + this.pass.write + "'");
+            Validate.isTrue(!this.pass.reads.contains(target), "Pass '" + this.pass.name + "' cannot read and write '" + target.name + "'");
+            this.pass.write = target;
+            this.pass.clear = clear;
+            return this;
+        }
+
+        /**
+         * Marks this pass as having effects outside of its target, so it is never culled.
+         */
+        public PassBuilder setSideEffect()
+        {
+            this.pass.sideEffect = true;
+            return this;
+        }
+    }
+
+    /**
+     * <p>Collects targets and passes and compiles them into a {@link RenderGraph}.</p>
+     *
+     * @author Ocelot
+     * @since 7.1.0
+     */
+    public static class Builder
+    {
+        private final List<Target> targets;
+        private final List<Pass> passes;
+
+        private Builder()
+        {
+            this.targets = new ArrayList<>();
+            this.passes = new ArrayList<>();
+        }
+
+        /**
+         * Creates a target that only exists while the graph executes. Its contents are undefined until a pass writes it.
+         *
+         * @param name       The name of the target for debugging
+         * @param descriptor The size and layout of the target
+         * @return The new target
+         */
+        public Target createTarget(String name, AdvancedFboPool.Descriptor descriptor)
+        {
+            Target target = new Target(this, name, descriptor, null);
+            this.targets.add(target);
+            return target;
+        }
+
+        /**
+         * Imports a framebuffer owned outside of the graph. Passes that write imported targets are never culled. Multisampled framebuffers can be imported to be written, but must be resolved outside of the graph to be read.
+         *
+         * @param name The name of the target for debugging
+         * @param fbo  The framebuffer to import
+         * @return The new target
+         */
+        public Target importTarget(String name, AdvancedFbo fbo)
+        {
+            Target target = new Target(this, name, null, fbo);
+            this.targets.add(target);
+            return target;
+        }
+
+        /**
+         * Adds a pass to the graph. Passes are declared in the order they would run, so a pass reading a target sees the output of the last pass declared before it that writes the target.
+         *
+         * @param name     The name of the pass for debugging
+         * @param executor The function to draw the pass
+         * @return A builder to declare the targets used by the pass
+         */
+        public PassBuilder addPass(String name, Executor executor)
+        {
+            Pass pass = new Pass(this, name, executor);
+            this.passes.add(pass);
+            return new PassBuilder(pass);
+        }
+
+        /**
+         * Culls, orders, and schedules the passes into a graph. The builder should not be used afterwards.
+         *
+         * @return The compiled graph
+         * @throws IllegalStateException If a pass does not write a target
+         */
+        public RenderGraph build()
+        {
+            int count = this.passes.size();
+            for (int i = 0; i < count; i++)
+            {
+                Pass pass = this.passes.get(i);
+                Validate.validState(pass.write != null, "Pass '" + pass.name + "' does not write a target");
+                pass.index = i;
+            }
+
+            // Data dependencies decide which passes are needed, ordering dependencies also keep overwrites after reads
+            Map<Target, Pass> lastWriter = new HashMap<>();
+            Map<Target, List<Pass>> readers = new HashMap<>();
+            for (Pass pass : this.passes)
+            {
+                for (Target read : pass.reads)
+                {
+                    Pass writer = lastWriter.get(read);
+                    if (writer != null)
+                        pass.dataDependencies.add(writer);
+                    readers.computeIfAbsent(read, key -> new ArrayList<>()).add(pass);
+                }
+
+                Pass writer = lastWriter.get(pass.write);
+                if (writer != null && !pass.clear)
+                    pass.dataDependencies.add(writer);
+                pass.orderDependencies.addAll(pass.dataDependencies);
+                if (writer != null)
+                    pass.orderDependencies.add(writer);
+                List<Pass> previousReaders = readers.remove(pass.write);
+                if (previousReaders != null)
+                    pass.orderDependencies.addAll(previousReaders);
+                pass.orderDependencies.remove(pass);
+                lastWriter.put(pass.write, pass);
+            }
+
+            boolean[] kept = new boolean[count];
+            Deque<Pass> queue = new ArrayDeque<>();
+            for (Pass pass : this.passes)
+            {
+                if (pass.sideEffect || pass.write.isImported())
+                {
+                    kept[pass.index] = true;
+                    queue.add(pass);
+                }
+            }
+            while (!queue.isEmpty())
+            {
+                for (Pass dependency : queue.poll().dataDependencies)
+                {
+                    if (!kept[dependency.index])
+                    {
+                        kept[dependency.index] = true;
+                        queue.add(dependency);
+                    }
+                }
+            }
+
+            int[] remaining = new int[count];
+            Map<Pass, List<Pass>> dependents = new HashMap<>();
+            List<Pass> ready = new ArrayList<>();
+            int keptCount = 0;
+            for (Pass pass : this.passes)
+            {
+                if (!kept[pass.index])
+                    continue;
+                keptCount++;
+                for (Pass dependency : pass.orderDependencies)
+                {
+                    if (kept[dependency.index])
+                    {
+                        remaining[pass.index]++;
+                        dependents.computeIfAbsent(dependency, key -> new ArrayList<>()).add(pass);
+                    }
+                }
+                if (remaining[pass.index] == 0)
+                    ready.add(pass);
+            }
+
+            // Prefer passes that write the target already bound, otherwise keep the declared order
+            Pass[] order = new Pass[keptCount];
+            Target bound = null;
+            for (int i = 0; i < keptCount; i++)
+            {
+                Pass next = null;
+                for (Pass pass : ready)
+                {
+                    if (pass.write == bound)
+                    {
+                        next = pass;
+                        break;
+                    }
+                    if (next == null || pass.index < next.index)
+                        next = pass;
+                }
+                Validate.validState(next != null, "Render graph has a dependency cycle");
+
+                ready.remove(next);
+                order[i] = next;
+                bound = next.write;
+                for (Pass dependent : dependents.getOrDefault(next, Collections.emptyList()))
+                    if (--remaining[dependent.index] == 0)
+                        ready.add(dependent);
+            }
+
+            Map<Target, Pass> lastUse = new HashMap<>();
+            for (Pass pass : order)
+            {
+                for (Target read : pass.reads)
+                    lastUse.put(read, pass);
+                lastUse.put(pass.write, pass);
+            }
+            lastUse.forEach((target, pass) -> pass.releases.add(target));
+
+            return new RenderGraph(this.targets.toArray(new Target[0]), order, count - keptCount);
+        }
+    }
+
+    private static class Pass
+    {
+        private final Builder owner;
+        private final String name;
+        private final Executor executor;
+        private final List<Target> reads;
+        private final Set<Pass> dataDependencies;
+        private final Set<Pass> orderDependencies;
+        private final List<Target> releases;
+        private Target write;
+        private boolean clear;
+        private boolean sideEffect;
+        private int index;
+
+        private Pass(Builder owner, String name, Executor executor)
+        {
+            this.owner = owner;
+            this.name = name;
+            this.executor = executor;
+            this.reads = new ArrayList<>();
+            this.dataDependencies = new HashSet<>();
+            this.orderDependencies = new HashSet<>();
+            this.releases = new ArrayList<>();
+        }
+    }
+}
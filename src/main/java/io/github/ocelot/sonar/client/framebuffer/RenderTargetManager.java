@@ -0,0 +1,241 @@
+package io.github.ocelot.sonar.client.framebuffer;
+
+import com.mojang.blaze3d.platform.Window;
+import com.mojang.blaze3d.systems.RenderSystem;
+import net.minecraft.Util;
+import net.minecraft.client.Minecraft;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.eventbus.api.SubscribeEvent;
+import org.apache.commons.lang3.Validate;
+import org.lwjgl.system.NativeResource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Keeps {@link AdvancedFbo} targets sized relative to the window without reallocating them for every change in window size.</p>
+ * <p>Each target only draws into a sub-rect of its attachments that matches the current window size. While the window is being resized, attachments are only reallocated when they are too small, and then grow by half again so the next few frames of the drag fit. Once the size has not changed for the debounce time, attachments are reallocated to fit exactly.</p>
+ *
+ * @author Ocelot
+ * @since 7.1.0
+ */
+public class RenderTargetManager implements NativeResource
+{
+    private static final float GROWTH_FACTOR = 1.5F;
+
+    private final long debounceMillis;
+    private final List<Target> targets;
+    private int windowWidth;
+    private int windowHeight;
+    private long lastResize;
+
+    /**
+     * Creates a new manager that waits 250 milliseconds after the last resize before reallocating to fit.
+     */
+    public RenderTargetManager()
+    {
+        this(250);
+    }
+
+    /**
+     * Creates a new manager.
+     *
+     * @param debounceMillis The time the window size must stay the same before targets are reallocated to fit exactly
+     */
+    public RenderTargetManager(long debounceMillis)
+    {
+        Validate.isTrue(debounceMillis >= 0, "Debounce time must be at least 0");
+        this.debounceMillis = debounceMillis;
+        this.targets = new ArrayList<>();
+        this.windowWidth = -1;
+        this.windowHeight = -1;
+        this.lastResize = 0;
+        MinecraftForge.EVENT_BUS.register(this);
+    }
+
+    /**
+     * Registers a new target that scales with the window.
+     *
+     * @param scale   The size of the target relative to the window, such as <code>0.5</code> for half resolution
+     * @param factory The function to create the framebuffer with the size of the attachments
+     * @return The new target
+     */
+    public Target register(float scale, Factory factory)
+    {
+        Validate.isTrue(scale > 0, "Scale must be positive");
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        Target target = new Target(this, scale, factory);
+        this.targets.add(target);
+        if (this.windowWidth != -1)
+            target.update(this.windowWidth, this.windowHeight, true);
+        return target;
+    }
+
+    /**
+     * Checks the window size and updates all targets. This is called at the start of every frame.
+     */
+    public void update()
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        Window window = Minecraft.getInstance().getWindow();
+        int width = window.getWidth();
+        int height = window.getHeight();
+        long now = Util.getMillis();
+        boolean first = this.windowWidth == -1;
+        if (width != this.windowWidth || height != this.windowHeight)
+        {
+            this.windowWidth = width;
+            this.windowHeight = height;
+            this.lastResize = now;
+        }
+
+        boolean settled = first || now - this.lastResize >= this.debounceMillis;
+        for (Target target : this.targets)
+            target.update(width, height, settled);
+    }
+
+    @SubscribeEvent
+    public void onEvent(TickEvent.RenderTickEvent event)
+    {
+        if (event.phase == TickEvent.Phase.START)
+            this.update();
+    }
+
+    @Override
+    public void free()
+    {
+        MinecraftForge.EVENT_BUS.unregister(this);
+        this.targets.forEach(Target::freeFbo);
+        this.targets.clear();
+    }
+
+    /**
+     * <p>Creates the framebuffer for a managed target.</p>
+     *
+     * @author Ocelot
+     * @since 7.1.0
+     */
+    @FunctionalInterface
+    public interface Factory
+    {
+        /**
+         * Creates a new framebuffer. The framebuffer is created again every time the attachments need to change size.
+         *
+         * @param width  The width of the attachments
+         * @param height The height of the attachments
+         * @return A new framebuffer with all attachments created
+         */
+        AdvancedFbo create(int width, int height);
+    }
+
+    /**
+     * <p>A framebuffer that follows the size of the window.</p>
+     *
+     * @author Ocelot
+     * @since 7.1.0
+     */
+    public static class Target implements NativeResource
+    {
+        private final RenderTargetManager owner;
+        private final float scale;
+        private final Factory factory;
+        private AdvancedFbo fbo;
+        private int storageWidth;
+        private int storageHeight;
+
+        private Target(RenderTargetManager owner, float scale, Factory factory)
+        {
+            this.owner = owner;
+            this.scale = scale;
+            this.factory = factory;
+        }
+
+        private void update(int windowWidth, int windowHeight, boolean settled)
+        {
+            int width = Math.max(1, Math.round(windowWidth * this.scale));
+            int height = Math.max(1, Math.round(windowHeight * this.scale));
+
+            if (this.fbo == null || (settled && (width != this.storageWidth || height != this.storageHeight)))
+            {
+                this.allocate(width, height);
+            }
+            else if (width > this.storageWidth || height > this.storageHeight)
+            {
+                int maxSize = RenderSystem.maxSupportedTextureSize();
+                this.allocate(this.grow(width, this.storageWidth, maxSize), this.grow(height, this.storageHeight, maxSize));
+            }
+            this.fbo.setSize(width, height);
+        }
+
+        private int grow(int size, int storage, int maxSize)
+        {
+            if (size <= storage)
+                return storage;
+            return Math.max(size, Math.min(maxSize, (int) (storage * GROWTH_FACTOR)));
+        }
+
+        private void allocate(int width, int height)
+        {
+            this.freeFbo();
+            this.fbo = this.factory.create(width, height);
+            this.storageWidth = width;
+            this.storageHeight = height;
+        }
+
+        private void freeFbo()
+        {
+            if (this.fbo != null)
+            {
+                this.fbo.free();
+                this.fbo = null;
+            }
+        }
+
+        /**
+         * Fetches the framebuffer for this target. The framebuffer may be replaced at the start of any frame, so it should not be kept.
+         *
+         * @return The framebuffer sized to the used area of the attachments
+         * @throws IllegalStateException If the manager has not updated since this target was registered
+         */
+        public AdvancedFbo getFbo()
+        {
+            Validate.validState(this.fbo != null, "Target has not been allocated yet");
+            return fbo;
+        }
+
+        /**
+         * @return The fraction of the attachment width used for drawing. Texture coordinates should be multiplied by this when sampling
+         */
+        public float getUScale()
+        {
+            return this.fbo != null ? (float) this.fbo.getWidth() / this.storageWidth : 1.0F;
+        }
+
+        /**
+         * @return The fraction of the attachment height used for drawing. Texture coordinates should be multiplied by this when sampling
+         */
+        public float getVScale()
+        {
+            return this.fbo != null ? (float) this.fbo.getHeight() / this.storageHeight : 1.0F;
+        }
+
+        /**
+         * @return The size of this target relative to the window
+         */
+        public float getScale()
+        {
+            return scale;
+        }
+
+        /**
+         * Deletes the framebuffer and removes this target from the manager.
+         */
+        @Override
+        public void free()
+        {
+            this.owner.targets.remove(this);
+            this.freeFbo();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package io.github.ocelot.sonar.client.render;
+
+import com.mojang.blaze3d.vertex.BufferBuilder;
+import com.mojang.blaze3d.vertex.DefaultVertexFormat;
+import com.mojang.blaze3d.vertex.VertexConsumer;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.ItemBlockRenderTypes;
+import net.minecraft.client.renderer.LevelRenderer;
+import net.minecraft.client.renderer.RenderType;
+import net.minecraft.client.renderer.block.model.BakedQuad;
+import net.minecraft.client.renderer.texture.OverlayTexture;
+import net.minecraft.client.renderer.texture.TextureAtlasSprite;
+import net.minecraft.client.resources.model.BakedModel;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.core.Vec3i;
+import net.minecraft.world.level.BlockAndTintGetter;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.RenderShape;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraftforge.client.model.data.EmptyModelData;
+
+import java.util.*;
+
+/**
+ * <p>Merges the faces of opaque full-cube blocks into larger quads. Faces are only merged if they use the same quad, tint, and light.</p>
+ * <p>Merged faces repeat their texture, so each sprite has to be drawn from a standalone texture with repeat wrapping instead of the block atlas. Faces are lit the same way as the flat block renderer.</p>
+ *
+ * @author Ocelot
+ * @since 7.1.0
+ */
+final class GreedyBlockMesher
+{
+    private static final float EPSILON = 1.0E-4F;
+    private static final float[] INVALID_MAPPING = new float[0];
+
+    private final Map<BakedQuad, float[]> textureMappings;
+    private final Object2IntMap<Face> faceIds;
+    private final List<Face> faces;
+    private final Int2ObjectMap<IntList> slices;
+    private final BlockPos origin;
+    private final Vec3i size;
+    private final BakedQuad[] quads;
+
+    GreedyBlockMesher(BlockPos origin, Vec3i size)
+    {
+        this.textureMappings = new IdentityHashMap<>();
+        this.faceIds = new Object2IntOpenHashMap<>();
+        this.faces = new ArrayList<>();
+        this.slices = new Int2ObjectOpenHashMap<>();
+        this.origin = origin;
+        this.size = size;
+        this.quads = new BakedQuad[Direction.values().length];
+    }
+
+    /**
+     * Attempts to add the faces of the specified block to the mesher. The block must be inside the area of this mesher.
+     *
+     * @param level  The level the block is in
+     * @param state  The block to add
+     * @param pos    The position of the block
+     * @param random The random to select model variants with
+     * @return Whether the block was added and should not be rendered normally
+     */
+    boolean add(BlockAndTintGetter level, BlockState state, BlockPos pos, Random random)
+    {
+        if (state.getRenderShape() != RenderShape.MODEL || state.hasTileEntity() || !state.getFluidState().isEmpty() || !state.isSolidRender(level, pos))
+            return false;
+        for (RenderType layer : RenderType.chunkBufferLayers())
+            if (ItemBlockRenderTypes.canRenderInLayer(state, layer) != (layer == RenderType.solid()))
+                return false;
+
+        BakedModel model = Minecraft.getInstance().getBlockRenderer().getBlockModel(state);
+        long seed = state.getSeed(pos);
+        random.setSeed(seed);
+        if (!model.getQuads(state, null, random, EmptyModelData.INSTANCE).isEmpty())
+            return false;
+
+        for (Direction direction : Direction.values())
+        {
+            random.setSeed(seed);
+            List<BakedQuad> quads = model.getQuads(state, direction, random, EmptyModelData.INSTANCE);
+            if (quads.size() != 1)
+                return false;
+            BakedQuad quad = quads.get(0);
+            if (quad.getDirection() != direction || this.getTextureMapping(quad) == INVALID_MAPPING)
+                return false;
+            this.quads[direction.ordinal()] = quad;
+        }
+
+        for (Direction direction : Direction.values())
+        {
+            if (!Block.shouldRenderFace(state, level, pos, direction))
+                continue;
+
+            BakedQuad quad = this.quads[direction.ordinal()];
+            float shade = level.getShade(direction, quad.isShade());
+            int tint = quad.isTinted() ? Minecraft.getInstance().getBlockColors().getColor(state, level, pos, quad.getTintIndex()) : 0xFFFFFF;
+            int red = (int) (((tint >> 16) & 0xFF) * shade);
+            int green = (int) (((tint >> 8) & 0xFF) * shade);
+            int blue = (int) ((tint & 0xFF) * shade);
+            Face face = new Face(quad, red << 16 | green << 8 | blue, LevelRenderer.getLightColor(level, state, pos.relative(direction)));
+
+            int id = this.faceIds.getInt(face);
+            if (id == 0)
+            {
+                this.faces.add(face);
+                id = this.faces.size();
+                this.faceIds.put(face, id);
+            }
+
+            int axis = direction.getAxis().ordinal();
+            IntList slice = this.slices.computeIfAbsent(getSliceKey(direction, this.getLocal(pos, axis)), key -> new IntArrayList());
+            slice.add(this.getLocal(pos, (axis + 1) % 3));
+            slice.add(this.getLocal(pos, (axis + 2) % 3));
+            slice.add(id);
+        }
+        return true;
+    }
+
+    /**
+     * Merges all added faces into quads.
+     *
+     * @return The finished buffers for each sprite
+     */
+    Map<TextureAtlasSprite, BufferBuilder> compile()
+    {
+        Map<TextureAtlasSprite, BufferBuilder> builders = new HashMap<>();
+        int[] dimensions = {this.size.getX(), this.size.getY(), this.size.getZ()};
+        for (Direction direction : Direction.values())
+        {
+            int axis = direction.getAxis().ordinal();
+            int u = (axis + 1) % 3;
+            int v = (axis + 2) % 3;
+            int[] mask = new int[dimensions[u] * dimensions[v]];
+            for (int slice = 0; slice < dimensions[axis]; slice++)
+            {
+                IntList entries = this.slices.get(getSliceKey(direction, slice));
+                if (entries == null)
+                    continue;
+
+                for (int i = 0; i < entries.size(); i += 3)
+                    mask[entries.getInt(i) + entries.getInt(i + 1) * dimensions[u]] = entries.getInt(i + 2);
+
+                float plane = direction.getAxisDirection() == Direction.AxisDirection.POSITIVE ? slice + 1 : slice;
+                GreedyMesher.mesh(mask, dimensions[u], dimensions[v], (id, x, y, width, height) ->
+                {
+                    Face face = this.faces.get(id - 1);
+                    BufferBuilder builder = builders.computeIfAbsent(face.quad.getSprite(), key ->
+                    {
+                        BufferBuilder buffer = new BufferBuilder(DefaultVertexFormat.BLOCK.getVertexSize() * 256);
+                        buffer.begin(7, DefaultVertexFormat.BLOCK);
+                        return buffer;
+                    });
+                    putFace(builder, this.origin, direction, plane, x, y, width, height, face, this.textureMappings.get(face.quad));
+                });
+            }
+        }
+        builders.values().forEach(BufferBuilder::end);
+        return builders;
+    }
+
+    private int getLocal(BlockPos pos, int axis)
+    {
+        Direction.Axis value = Direction.Axis.VALUES[axis];
+        return pos.get(value) - this.origin.get(value);
+    }
+
+    private static int getSliceKey(Direction direction, int slice)
+    {
+        return slice * 6 + direction.ordinal();
+    }
+
+    private float[] getTextureMapping(BakedQuad quad)
+    {
+        float[] mapping = this.textureMappings.get(quad);
+        if (mapping == null)
+        {
+            mapping = createTextureMapping(quad);
+            this.textureMappings.put(quad, mapping);
+        }
+        return mapping;
+    }
+
+    /**
+     * Calculates how the sprite of a quad is mapped onto its face. Merged faces can only repeat a sprite if the quad covers the entire face and uses the entire sprite.
+     */
+    private static float[] createTextureMapping(BakedQuad quad)
+    {
+        TextureAtlasSprite sprite = quad.getSprite();
+        if (sprite.getFrameCount() > 1)
+            return INVALID_MAPPING;
+
+        int[] vertices = quad.getVertices();
+        int stride = vertices.length / 4;
+        Direction direction = quad.getDirection();
+        int axis = direction.getAxis().ordinal();
+        int u = (axis + 1) % 3;
+        int v = (axis + 2) % 3;
+        float plane = direction.getAxisDirection() == Direction.AxisDirection.POSITIVE ? 1.0F : 0.0F;
+        float spriteWidth = sprite.getU1() - sprite.getU0();
+        float spriteHeight = sprite.getV1() - sprite.getV0();
+
+        float[] corners = new float[8];
+        int found = 0;
+        float[] position = new float[3];
+        for (int i = 0; i < 4; i++)
+        {
+            for (int j = 0; j < 3; j++)
+                position[j] = Float.intBitsToFloat(vertices[i * stride + j]);
+            if (Math.abs(position[axis] - plane) > EPSILON || !isCorner(position[u]) || !isCorner(position[v]))
+                return INVALID_MAPPING;
+
+            int corner = Math.round(position[u]) + Math.round(position[v]) * 2;
+            if ((found & (1 << corner)) != 0)
+                return INVALID_MAPPING;
+            found |= 1 << corner;
+            corners[corner * 2] = (Float.intBitsToFloat(vertices[i * stride + 4]) - sprite.getU0()) / spriteWidth;
+            corners[corner * 2 + 1] = (Float.intBitsToFloat(vertices[i * stride + 5]) - sprite.getV0()) / spriteHeight;
+        }
+
+        float[] mapping = {corners[0], corners[1], corners[2] - corners[0], corners[3] - corners[1], corners[4] - corners[0], corners[5] - corners[1]};
+        for (float value : mapping)
+            if (!isCorner(Math.abs(value)))
+                return INVALID_MAPPING;
+        if (Math.abs(mapping[0] + mapping[2] + mapping[4] - corners[6]) > EPSILON || Math.abs(mapping[1] + mapping[3] + mapping[5] - corners[7]) > EPSILON)
+            return INVALID_MAPPING;
+        return mapping;
+    }
+
+    private static boolean isCorner(float value)
+    {
+        return Math.abs(value) < EPSILON || Math.abs(value - 1.0F) < EPSILON;
+    }
+
+    private static void putFace(VertexConsumer consumer, BlockPos origin, Direction direction, float plane, int x, int y, int width, int height, Face face, float[] mapping)
+    {
+        int axis = direction.getAxis().ordinal();
+        float red = ((face.color >> 16) & 0xFF) / 255.0F;
+        float green = ((face.color >> 8) & 0xFF) / 255.0F;
+        float blue = (face.color & 0xFF) / 255.0F;
+        float[] position = new float[3];
+        int[][] corners = direction.getAxisDirection() == Direction.AxisDirection.POSITIVE ? new int[][]{{0, 0}, {1, 0}, {1, 1}, {0, 1}} : new int[][]{{0, 0}, {0, 1}, {1, 1}, {1, 0}};
+        for (int[] corner : corners)
+        {
+            int a = corner[0] * width;
+            int b = corner[1] * height;
+            position[axis] = plane;
+            position[(axis + 1) % 3] = x + a;
+            position[(axis + 2) % 3] = y + b;
+            consumer.vertex(origin.getX() + position[0], origin.getY() + position[1], origin.getZ() + position[2], red, green, blue, 1.0F, mapping[0] + mapping[2] * a + mapping[4] * b, mapping[1] + mapping[3] * a + mapping[5] * b, OverlayTexture.NO_OVERLAY, face.light, direction.getStepX(), direction.getStepY(), direction.getStepZ());
+        }
+    }
+
+    private static class Face
+    {
+        private final BakedQuad quad;
+        private final int color;
+        private final int light;
+
+        private Face(BakedQuad quad, int color, int light)
+        {
+            this.quad = quad;
+            this.color = color;
+            this.light = light;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) return true;
+            if (o == null || this.getClass() != o.getClass()) return false;
+            Face face = (Face) o;
+            return this.quad == face.quad && this.color == face.color && this.light == face.light;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = System.identityHashCode(this.quad);
+            result = 31 * result + this.color;
+            result = 31 * result + this.light;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package io.github.ocelot.sonar.client.render;
+
+/**
+ * <p>Merges a 2D slice of faces into the fewest rectangles that share the same key.</p>
+ *
+ * @author Ocelot
+ * @since 7.1.0
+ */
+final class GreedyMesher
+{
+    private GreedyMesher()
+    {
+    }
+
+    /**
+     * Merges all adjacent cells with the same key in the provided mask. A key of <code>0</code> marks an empty cell. The mask is cleared while meshing so it can be reused for the next slice.
+     *
+     * @param mask     The keys of each cell stored as <code>x + y * width</code>
+     * @param width    The number of cells along the x axis
+     * @param height   The number of cells along the y axis
+     * @param consumer The listener for each merged rectangle
+     */
+    static void mesh(int[] mask, int width, int height, QuadConsumer consumer)
+    {
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; )
+            {
+                int key = mask[x + y * width];
+                if (key == 0)
+                {
+                    x++;
+                    continue;
+                }
+
+                int quadWidth = 1;
+                while (x + quadWidth < width && mask[x + quadWidth + y * width] == key)
+                    quadWidth++;
+
+                int quadHeight = 1;
+                expand:
+                while (y + quadHeight < height)
+                {
+                    for (int i = 0; i < quadWidth; i++)
+                        if (mask[x + i + (y + quadHeight) * width] != key)
+                            break expand;
+                    quadHeight++;
+                }
+
+                consumer.accept(key, x, y, quadWidth, quadHeight);
+
+                for (int j = 0; j < quadHeight; j++)
+                    for (int i = 0; i < quadWidth; i++)
+                        mask[x + i + (y + j) * width] = 0;
+                x += quadWidth;
+            }
+        }
+    }
+
+    /**
+     * <p>Receives merged rectangles from {@link GreedyMesher}.</p>
+     *
+     * @author Ocelot
+     * @since 7.1.0
+     */
+    @FunctionalInterface
+    interface QuadConsumer
+    {
+        /**
+         * Called for each merged rectangle.
+         *
+         * @param key    The key shared by every cell in the rectangle
+         * @param x      The first cell along the x axis
+         * @param y      The first cell along the y axis
+         * @param width  The number of cells along the x axis
+         * @param height The number of cells along the y axis
+         */
+        void accept(int key, int x, int y, int width, int height);
+    }
+}
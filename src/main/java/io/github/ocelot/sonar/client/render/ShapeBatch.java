@@ -0,0 +1,280 @@
+package io.github.ocelot.sonar.client.render;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import com.mojang.blaze3d.vertex.DefaultVertexFormat;
+import com.mojang.blaze3d.vertex.VertexConsumer;
+import com.mojang.blaze3d.vertex.VertexFormat;
+import io.github.ocelot.sonar.client.shader.ShaderConst;
+import net.minecraft.client.renderer.RenderType;
+import net.minecraftforge.api.distmarker.Dist;
+import net.minecraftforge.api.distmarker.OnlyIn;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.system.NativeResource;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+import static org.lwjgl.opengl.GL11C.GL_QUADS;
+import static org.lwjgl.opengl.GL44C.*;
+
+/**
+ * <p>Collects {@link DefaultVertexFormat#POSITION_COLOR_TEX} quads for {@link ShapeRenderer} and draws them from a vertex buffer split into three sections. Quads are grouped by texture and render type, and are drawn whenever either changes.</p>
+ * <p>Each frame writes into the next section, so the driver can still be drawing the previous two while new quads are written. If buffer storage is supported the buffer is persistently mapped and quads are written in place, otherwise they are written to memory and uploaded right before they are drawn.</p>
+ *
+ * @author Ocelot
+ * @since 7.1.0
+ */
+@OnlyIn(Dist.CLIENT)
+final class ShapeBatch implements VertexConsumer, NativeResource
+{
+    private static final VertexFormat FORMAT = DefaultVertexFormat.POSITION_COLOR_TEX;
+    private static final int SECTIONS = 3;
+    private static final int SECTION_VERTICES = 4096 * 4;
+
+    private final int vertexSize;
+    private final long[] fences;
+    private int buffer;
+    private ByteBuffer mapped;
+    private ByteBuffer staging;
+    private int section;
+    private int firstVertex;
+    private int vertexCount;
+    private RenderType renderType;
+    private int texture;
+
+    private double x;
+    private double y;
+    private double z;
+    private int color;
+    private float u;
+    private float v;
+
+    ShapeBatch()
+    {
+        this.vertexSize = FORMAT.getVertexSize();
+        this.fences = new long[SECTIONS];
+        this.buffer = -1;
+        this.texture = -1;
+        this.color = 0xFFFFFFFF;
+    }
+
+    private void create()
+    {
+        int size = SECTIONS * SECTION_VERTICES * this.vertexSize;
+        this.buffer = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, this.buffer);
+        if (ShaderConst.isBufferStorageSupported())
+        {
+            int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+            glBufferStorage(GL_ARRAY_BUFFER, size, flags);
+            this.mapped = glMapBufferRange(GL_ARRAY_BUFFER, 0, size, flags);
+        }
+        else
+        {
+            glBufferData(GL_ARRAY_BUFFER, size, GL_STREAM_DRAW);
+            this.staging = MemoryUtil.memAlloc(SECTION_VERTICES * this.vertexSize);
+        }
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Sets the state quads are drawn with, drawing any quads using the previous state first.
+     *
+     * @param renderType The state to draw with or <code>null</code> to use whatever state is current when the batch is drawn
+     */
+    void setRenderType(@Nullable RenderType renderType)
+    {
+        if (Objects.equals(this.renderType, renderType))
+            return;
+        if (renderType != null && (renderType.format() != FORMAT || renderType.mode() != GL_QUADS))
+            throw new IllegalArgumentException("Render type " + renderType + " must draw quads in the POSITION_COLOR_TEX format");
+        this.flush();
+        this.renderType = renderType;
+    }
+
+    /**
+     * Sets the 2D texture the next quads are drawn with, drawing any quads using the previous texture first.
+     *
+     * @param texture The id of the texture to draw with
+     */
+    void setTexture(int texture)
+    {
+        if (this.texture == texture)
+            return;
+        this.flush();
+        this.texture = texture;
+    }
+
+    /**
+     * Draws all complete quads written since the last flush.
+     */
+    void flush()
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThread);
+        int count = this.vertexCount - this.firstVertex;
+        count -= count % 4;
+        if (count == 0)
+            return;
+
+        // The quads may be drawn after another texture was bound, so the texture they were written with is bound for the draw
+        int lastTexture = glGetInteger(GL_TEXTURE_BINDING_2D);
+        if (this.texture != -1 && this.texture != lastTexture)
+            RenderSystem.bindTexture(this.texture);
+        if (this.renderType != null)
+            this.renderType.setupRenderState();
+        glBindBuffer(GL_ARRAY_BUFFER, this.buffer);
+        if (this.staging != null)
+        {
+            // Only the quads in this flush are uploaded, so earlier draws from this section are left alone
+            long offset = (long) this.firstVertex * this.vertexSize;
+            nglBufferSubData(GL_ARRAY_BUFFER, (long) this.section * SECTION_VERTICES * this.vertexSize + offset, (long) count * this.vertexSize, MemoryUtil.memAddress(this.staging) + offset);
+        }
+        FORMAT.setupBufferState(0L);
+        glDrawArrays(GL_QUADS, this.section * SECTION_VERTICES + this.firstVertex, count);
+        FORMAT.clearBufferState();
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        if (this.renderType != null)
+            this.renderType.clearRenderState();
+        if (this.texture != -1 && this.texture != lastTexture)
+            RenderSystem.bindTexture(lastTexture);
+
+        this.firstVertex += count;
+    }
+
+    /**
+     * Draws all remaining quads and moves on to the next section so the next frame does not write over quads that may still be drawing.
+     */
+    void endFrame()
+    {
+        this.flush();
+        if (this.vertexCount > 0)
+            this.nextSection();
+    }
+
+    private void nextSection()
+    {
+        if (this.mapped != null)
+        {
+            if (this.fences[this.section] != 0)
+                glDeleteSync(this.fences[this.section]);
+            this.fences[this.section] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        }
+        this.section = (this.section + 1) % SECTIONS;
+        this.firstVertex = 0;
+        this.vertexCount = 0;
+    }
+
+    private void waitFence()
+    {
+        long fence = this.fences[this.section];
+        if (fence == 0)
+            return;
+        while (true)
+        {
+            int result = glClientWaitSync(fence, GL_SYNC_FLUSH_COMMANDS_BIT, 1000000L);
+            if (result == GL_ALREADY_SIGNALED || result == GL_CONDITION_SATISFIED || result == GL_WAIT_FAILED)
+                break;
+        }
+        glDeleteSync(fence);
+        this.fences[this.section] = 0;
+    }
+
+    @Override
+    public VertexConsumer vertex(double x, double y, double z)
+    {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        return this;
+    }
+
+    @Override
+    public VertexConsumer color(int red, int green, int blue, int alpha)
+    {
+        this.color = (red & 0xFF) | (green & 0xFF) << 8 | (blue & 0xFF) << 16 | (alpha & 0xFF) << 24;
+        return this;
+    }
+
+    @Override
+    public VertexConsumer uv(float u, float v)
+    {
+        this.u = u;
+        this.v = v;
+        return this;
+    }
+
+    @Override
+    public VertexConsumer overlayCoords(int u, int v)
+    {
+        return this;
+    }
+
+    @Override
+    public VertexConsumer uv2(int u, int v)
+    {
+        return this;
+    }
+
+    @Override
+    public VertexConsumer normal(float x, float y, float z)
+    {
+        return this;
+    }
+
+    @Override
+    public void endVertex()
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThread);
+        if (this.buffer == -1)
+            this.create();
+        if (this.vertexCount == 0)
+            this.waitFence();
+
+        long address = this.mapped != null ? MemoryUtil.memAddress(this.mapped) + (long) (this.section * SECTION_VERTICES + this.vertexCount) * this.vertexSize : MemoryUtil.memAddress(this.staging) + (long) this.vertexCount * this.vertexSize;
+        MemoryUtil.memPutFloat(address, (float) this.x);
+        MemoryUtil.memPutFloat(address + 4, (float) this.y);
+        MemoryUtil.memPutFloat(address + 8, (float) this.z);
+        MemoryUtil.memPutInt(address + 12, this.color);
+        MemoryUtil.memPutFloat(address + 16, this.u);
+        MemoryUtil.memPutFloat(address + 20, this.v);
+        this.vertexCount++;
+
+        if (this.vertexCount == SECTION_VERTICES)
+        {
+            this.flush();
+            this.nextSection();
+        }
+    }
+
+    @Override
+    public void free()
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThread);
+        for (int i = 0; i < SECTIONS; i++)
+        {
+            if (this.fences[i] != 0)
+            {
+                glDeleteSync(this.fences[i]);
+                this.fences[i] = 0;
+            }
+        }
+        if (this.buffer != -1)
+        {
+            if (this.mapped != null)
+            {
+                glBindBuffer(GL_ARRAY_BUFFER, this.buffer);
+                glUnmapBuffer(GL_ARRAY_BUFFER);
+                glBindBuffer(GL_ARRAY_BUFFER, 0);
+                this.mapped = null;
+            }
+            glDeleteBuffers(this.buffer);
+            this.buffer = -1;
+        }
+        if (this.staging != null)
+        {
+            MemoryUtil.memFree(this.staging);
+            this.staging = null;
+        }
+    }
+}
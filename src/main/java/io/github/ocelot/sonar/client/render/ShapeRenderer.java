@@ -3,18 +3,24 @@ package io.github.ocelot.sonar.client.render;
 import com.mojang.blaze3d.systems.RenderSystem;
 import com.mojang.blaze3d.vertex.*;
 import com.mojang.math.Matrix4f;
+import net.minecraft.client.renderer.RenderType;
 import net.minecraft.client.renderer.texture.TextureAtlasSprite;
 import net.minecraft.util.Mth;
 import net.minecraftforge.api.distmarker.Dist;
 import net.minecraftforge.api.distmarker.OnlyIn;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.event.TickEvent;
 import org.lwjgl.opengl.GL11C;
 
+import javax.annotation.Nullable;
+
 import static org.lwjgl.opengl.GL11.GL_TRIANGLES;
 import static org.lwjgl.opengl.GL11C.GL_QUADS;
 
 /**
  * <p>Renders {@link GL11C#GL_QUADS} to the screen using enhanced precision and {@link BufferBuilder}.</p>
  * <p>To use chain rendering, use {@link #begin()} to start rendering and {@link #end()} to complete a batch.</p>
+ * <p>Between {@link #beginBatch()} and {@link #endBatch()}, quads are collected across calls instead of being drawn by every {@link #end()}. The 2D texture bound when {@link #begin()} is called is captured, so quads are grouped by texture and render type and drawn all at once when either changes, {@link #flush()} is called, the batch ends, or the frame ends. Anything else drawn while batching may end up under the collected quads, so call {@link #flush()} first.</p>
  *
  * @author Ocelot
  * @since 2.0.0
@@ -27,11 +33,82 @@ public final class ShapeRenderer
     private static float green = 1.0F;
     private static float blue = 1.0F;
     private static float alpha = 1.0F;
+    private static ShapeBatch batch;
+    private static boolean batching;
+
+    static
+    {
+        MinecraftForge.EVENT_BUS.addListener(ShapeRenderer::onRenderTick);
+    }
 
     private ShapeRenderer()
     {
     }
 
+    private static void onRenderTick(TickEvent.RenderTickEvent event)
+    {
+        if (event.phase == TickEvent.Phase.END && batch != null)
+            batch.endFrame();
+    }
+
+    private static ShapeBatch getBatch()
+    {
+        if (batch == null)
+            batch = new ShapeBatch();
+        return batch;
+    }
+
+    /**
+     * Starts collecting quads across calls. Quads are drawn with the current state when they are flushed unless a render type is set with {@link #setBatchRenderType(RenderType)}.
+     */
+    public static void beginBatch()
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThread);
+        batching = true;
+    }
+
+    /**
+     * Draws all collected quads and goes back to drawing quads in every {@link #end()}.
+     */
+    public static void endBatch()
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThread);
+        flush();
+        batching = false;
+        if (batch != null)
+            batch.setRenderType(null);
+    }
+
+    /**
+     * Sets the state the collected quads are drawn with. Quads collected with a different render type are drawn first.
+     *
+     * @param renderType The render type to draw with or <code>null</code> to draw with whatever state is current when the quads are flushed. Must draw quads in {@link DefaultVertexFormat#POSITION_COLOR_TEX}
+     * @throws IllegalArgumentException If the render type does not use the same mode and format as this renderer
+     */
+    public static void setBatchRenderType(@Nullable RenderType renderType)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThread);
+        getBatch().setRenderType(renderType);
+    }
+
+    /**
+     * Draws all quads collected since the last flush. This must be called before changing any state the quads rely on other than the bound texture and the batch render type.
+     */
+    public static void flush()
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThread);
+        if (batch != null)
+            batch.flush();
+    }
+
+    /**
+     * @return Whether quads are currently being collected across calls
+     */
+    public static boolean isBatching()
+    {
+        return batching;
+    }
+
     /**
      * Draws a quad onto the screen with the specified parameters.
      *
@@ -99,23 +176,30 @@ public final class ShapeRenderer
     }
 
     /**
-     * Begins the rendering of a chain of quads.
+     * Begins the rendering of a chain of quads. While batching, the quads are drawn with the texture bound when this is called.
      *
      * @return The buffer to render into
      */
     public static VertexConsumer begin()
     {
+        if (batching)
+        {
+            ShapeBatch batch = getBatch();
+            batch.setTexture(GL11C.glGetInteger(GL11C.GL_TEXTURE_BINDING_2D));
+            return batch;
+        }
         BufferBuilder buffer = Tesselator.getInstance().getBuilder();
         buffer.begin(GL_QUADS, DefaultVertexFormat.POSITION_COLOR_TEX);
         return buffer;
     }
 
     /**
-     * Ends the rendering of a chain of quads.
+     * Ends the rendering of a chain of quads. While batching, the quads are kept until the batch is flushed.
      */
     public static void end()
     {
-        Tesselator.getInstance().end();
+        if (!batching)
+            Tesselator.getInstance().end();
         zLevel = 0;
         resetColor();
     }
@@ -206,6 +290,9 @@ public final class ShapeRenderer
      */
     public static void drawSunburst(PoseStack matrixStack, float x, float y, float width, float height, int segments)
     {
+        if (batching)
+            flush();
+
         BufferBuilder builder = Tesselator.getInstance().getBuilder();
         builder.begin(GL_TRIANGLES, DefaultVertexFormat.POSITION_COLOR);
 
@@ -222,7 +309,9 @@ public final class ShapeRenderer
         RenderSystem.enableBlend();
         RenderSystem.defaultBlendFunc();
         RenderSystem.disableTexture();
-        end();
+        Tesselator.getInstance().end();
+        zLevel = 0;
+        resetColor();
         RenderSystem.enableTexture();
         RenderSystem.disableBlend();
     }
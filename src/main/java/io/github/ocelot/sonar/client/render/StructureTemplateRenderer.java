@@ -1,24 +1,28 @@
 package io.github.ocelot.sonar.client.render;
 
+import com.mojang.blaze3d.platform.NativeImage;
 import com.mojang.blaze3d.systems.RenderSystem;
 import com.mojang.blaze3d.vertex.*;
 import com.mojang.math.Matrix3f;
 import com.mojang.math.Matrix4f;
 import com.mojang.math.Vector3f;
 import com.mojang.math.Vector4f;
+import io.github.ocelot.sonar.client.framebuffer.AdvancedFbo;
+import io.github.ocelot.sonar.client.util.GlStateTracker;
 import io.github.ocelot.sonar.common.util.OnlineRequest;
-import it.unimi.dsi.fastutil.objects.Object2ObjectArrayMap;
 import it.unimi.dsi.fastutil.objects.ObjectArraySet;
 import net.minecraft.CrashReport;
 import net.minecraft.Util;
+import net.minecraft.client.Camera;
 import net.minecraft.client.Minecraft;
-import net.minecraft.client.color.block.BlockTintCache;
-import net.minecraft.client.renderer.ChunkBufferBuilderPack;
+import net.minecraft.client.renderer.BiomeColors;
 import net.minecraft.client.renderer.ItemBlockRenderTypes;
 import net.minecraft.client.renderer.RenderType;
 import net.minecraft.client.renderer.block.BlockRenderDispatcher;
 import net.minecraft.client.renderer.block.ModelBlockRenderer;
+import net.minecraft.client.renderer.texture.DynamicTexture;
 import net.minecraft.client.renderer.texture.TextureAtlas;
+import net.minecraft.client.renderer.texture.TextureAtlasSprite;
 import net.minecraft.core.*;
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.nbt.NbtIo;
@@ -38,6 +42,7 @@ import net.minecraft.world.level.chunk.LightChunkGetter;
 import net.minecraft.world.level.levelgen.structure.templatesystem.StructureTemplate;
 import net.minecraft.world.level.lighting.LevelLightEngine;
 import net.minecraft.world.level.material.FluidState;
+import net.minecraft.world.level.material.MaterialColor;
 import net.minecraftforge.client.model.data.EmptyModelData;
 import net.minecraftforge.fml.common.ObfuscationReflectionHelper;
 import org.apache.commons.io.IOUtils;
@@ -48,10 +53,13 @@ import org.lwjgl.system.NativeResource;
 import javax.annotation.Nullable;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL30.*;
 
 /**
  * <p>Renders the blocks from a template the same way as the level renderer.</p>
@@ -63,19 +71,44 @@ import java.util.stream.Collectors;
 public class StructureTemplateRenderer implements NativeResource
 {
     private static final Logger LOGGER = LogManager.getLogger();
+    private static final int SPRITE_SIZE = 128;
+    private static final float SPRITE_PITCH = 30.0F;
+    private static final float SPRITE_YAW = 45.0F;
 
     private final Supplier<CompletableFuture<StructureTemplate>> template;
     private final boolean constantAmbientLight;
     private final Function<LightChunkGetter, LevelLightEngine> lightManager;
     private final BiFunction<BlockPos, ColorResolver, Integer> colorResolver;
     private CompletableFuture<LoadedWorld> level;
+    private boolean levelOfDetail;
+    private boolean bakedSprite;
+    private boolean greedyMeshing;
+    private ProgressListener progressListener;
+    private volatile double lastCameraX;
+    private volatile double lastCameraY;
+    private volatile double lastCameraZ;
 
+    /**
+     * Creates a new renderer and starts loading the template.
+     *
+     * @param template             A supplier of the template to load, called again each time the renderer is reloaded
+     * @param constantAmbientLight Whether faces should be shaded the same way as the nether
+     * @param lightManager         A factory for the light engine of the level
+     * @param colorResolver        The source of tint colors for each column. This is called from several background threads at once while the level loads, so it must be thread-safe
+     */
     public StructureTemplateRenderer(Supplier<CompletableFuture<StructureTemplate>> template, boolean constantAmbientLight, Function<LightChunkGetter, LevelLightEngine> lightManager, BiFunction<BlockPos, ColorResolver, Integer> colorResolver)
     {
         this.template = template;
         this.constantAmbientLight = constantAmbientLight;
         this.lightManager = lightManager;
         this.colorResolver = colorResolver;
+        this.levelOfDetail = false;
+        this.bakedSprite = false;
+        this.greedyMeshing = false;
+        this.progressListener = null;
+        this.lastCameraX = Double.NaN;
+        this.lastCameraY = Double.NaN;
+        this.lastCameraZ = Double.NaN;
         this.reload();
     }
 
@@ -113,12 +146,34 @@ public class StructureTemplateRenderer implements NativeResource
         minecraft.getProfiler().push("filterempty");
         minecraft.getProfiler().popPush(() -> "render_" + blockLayerIn);
 
-        VertexBuffer vertexbuffer = level.vertexBuffers.get(blockLayerIn);
         matrixStackIn.pushPose();
         matrixStackIn.translate(-cameraX, -cameraY, -cameraZ);
-        vertexbuffer.bind();
-        DefaultVertexFormat.BLOCK.setupBufferState(0L);
-        vertexbuffer.draw(matrixStackIn.last().pose(), 7);
+        Matrix4f matrix4f = matrixStackIn.last().pose();
+        for (RenderSection section : level.sections)
+        {
+            VertexBuffer vertexbuffer = section.vertexBuffers.get(blockLayerIn);
+            if (vertexbuffer != null)
+            {
+                vertexbuffer.bind();
+                DefaultVertexFormat.BLOCK.setupBufferState(0L);
+                vertexbuffer.draw(matrix4f, 7);
+            }
+        }
+
+        // Greedy quads use their own textures, so they are drawn after every atlas buffer
+        if (blockLayerIn == RenderType.solid())
+        {
+            for (RenderSection section : level.sections)
+            {
+                for (Map.Entry<TextureAtlasSprite, VertexBuffer> entry : section.greedyBuffers.entrySet())
+                {
+                    level.greedyTextures.get(entry.getKey()).bind();
+                    entry.getValue().bind();
+                    DefaultVertexFormat.BLOCK.setupBufferState(0L);
+                    entry.getValue().draw(matrix4f, 7);
+                }
+            }
+        }
         matrixStackIn.popPose();
 
         VertexBuffer.unbind();
@@ -128,65 +183,294 @@ public class StructureTemplateRenderer implements NativeResource
         blockLayerIn.clearRenderState();
     }
 
+    private void renderLevelOfDetail(LoadedWorld level, LevelOfDetail levelOfDetail, PoseStack matrixStackIn, double cameraX, double cameraY, double cameraZ)
+    {
+        Minecraft minecraft = Minecraft.getInstance();
+        minecraft.getProfiler().push("render_" + levelOfDetail.name().toLowerCase(Locale.ROOT));
+        RenderSystem.disableTexture();
+        RenderSystem.enableDepthTest();
+        RenderSystem.enableCull();
+
+        VertexBuffer vertexbuffer = level.lodBuffers.get(levelOfDetail);
+        matrixStackIn.pushPose();
+        matrixStackIn.translate(-cameraX, -cameraY, -cameraZ);
+        vertexbuffer.bind();
+        DefaultVertexFormat.POSITION_COLOR.setupBufferState(0L);
+        vertexbuffer.draw(matrixStackIn.last().pose(), 7);
+        matrixStackIn.popPose();
+
+        VertexBuffer.unbind();
+        RenderSystem.clearCurrentColor();
+        DefaultVertexFormat.POSITION_COLOR.clearBufferState();
+        RenderSystem.enableTexture();
+        minecraft.getProfiler().pop();
+    }
+
+    @SuppressWarnings("deprecation")
+    private void renderSprite(LoadedWorld level, PoseStack matrixStackIn, double cameraX, double cameraY, double cameraZ)
+    {
+        Minecraft minecraft = Minecraft.getInstance();
+        minecraft.getProfiler().push("render_sprite");
+        if (level.sprite == null)
+            level.sprite = this.bakeSprite(level);
+
+        Vec3i size = level.getSize();
+        float radius = getRadius(size);
+        Camera camera = minecraft.gameRenderer.getMainCamera();
+        matrixStackIn.pushPose();
+        matrixStackIn.translate(size.getX() / 2.0 - cameraX, size.getY() / 2.0 - cameraY, size.getZ() / 2.0 - cameraZ);
+        matrixStackIn.mulPose(camera.rotation());
+        Matrix4f matrix4f = matrixStackIn.last().pose();
+
+        RenderSystem.enableAlphaTest();
+        RenderSystem.defaultAlphaFunc();
+        RenderSystem.disableCull();
+        level.sprite.getColorTextureAttachment(0).bindAttachment();
+        BufferBuilder builder = Tesselator.getInstance().getBuilder();
+        builder.begin(7, DefaultVertexFormat.POSITION_TEX);
+        builder.vertex(matrix4f, -radius, -radius, 0).uv(1, 0).endVertex();
+        builder.vertex(matrix4f, -radius, radius, 0).uv(1, 1).endVertex();
+        builder.vertex(matrix4f, radius, radius, 0).uv(0, 1).endVertex();
+        builder.vertex(matrix4f, radius, -radius, 0).uv(0, 0).endVertex();
+        Tesselator.getInstance().end();
+        level.sprite.getColorTextureAttachment(0).unbindAttachment();
+        RenderSystem.enableCull();
+        RenderSystem.disableAlphaTest();
+        matrixStackIn.popPose();
+        minecraft.getProfiler().pop();
+    }
+
+    @SuppressWarnings("deprecation")
+    private AdvancedFbo bakeSprite(LoadedWorld level)
+    {
+        Vec3i size = level.getSize();
+        float radius = getRadius(size);
+        // The sprite is baked in the middle of rendering, so whatever the caller was drawing into is bound again afterwards
+        int lastDrawFramebuffer = glGetInteger(GL_DRAW_FRAMEBUFFER_BINDING);
+        int lastReadFramebuffer = glGetInteger(GL_READ_FRAMEBUFFER_BINDING);
+        int[] lastViewport = new int[4];
+        glGetIntegerv(GL_VIEWPORT, lastViewport);
+
+        AdvancedFbo fbo = AdvancedFbo.withSize(SPRITE_SIZE, SPRITE_SIZE).addColorTextureBuffer().setDepthRenderBuffer().build(true);
+        fbo.bind(true);
+        RenderSystem.clearColor(0.0F, 0.0F, 0.0F, 0.0F);
+        fbo.clear();
+
+        RenderSystem.matrixMode(GL_PROJECTION);
+        RenderSystem.pushMatrix();
+        RenderSystem.loadIdentity();
+        RenderSystem.ortho(-radius, radius, -radius, radius, 0.0, radius * 4.0);
+        RenderSystem.matrixMode(GL_MODELVIEW);
+        RenderSystem.pushMatrix();
+        RenderSystem.loadIdentity();
+
+        PoseStack matrixStack = new PoseStack();
+        matrixStack.translate(0, 0, -radius * 2.0);
+        matrixStack.mulPose(Vector3f.XP.rotationDegrees(SPRITE_PITCH));
+        matrixStack.mulPose(Vector3f.YP.rotationDegrees(SPRITE_YAW));
+        this.renderLayers(level, matrixStack, size.getX() / 2.0, size.getY() / 2.0, size.getZ() / 2.0);
+
+        RenderSystem.matrixMode(GL_PROJECTION);
+        RenderSystem.popMatrix();
+        RenderSystem.matrixMode(GL_MODELVIEW);
+        RenderSystem.popMatrix();
+        GlStateTracker.bindFramebuffer(GL_DRAW_FRAMEBUFFER, lastDrawFramebuffer);
+        GlStateTracker.bindFramebuffer(GL_READ_FRAMEBUFFER, lastReadFramebuffer);
+        RenderSystem.viewport(lastViewport[0], lastViewport[1], lastViewport[2], lastViewport[3]);
+        return fbo;
+    }
+
+    @SuppressWarnings("deprecation")
+    private void renderLayers(LoadedWorld level, PoseStack matrixStack, double cameraX, double cameraY, double cameraZ)
+    {
+        Minecraft minecraft = Minecraft.getInstance();
+        RenderSystem.disableBlend();
+        RenderSystem.disableAlphaTest();
+        RenderSystem.runAsFancy(() ->
+        {
+            this.renderBlockLayer(level, RenderType.solid(), matrixStack, cameraX, cameraY, cameraZ);
+            minecraft.getModelManager().getAtlas(TextureAtlas.LOCATION_BLOCKS).setBlurMipmap(false, minecraft.options.mipmapLevels > 0); // FORGE: fix flickering leaves when mods mess up the blurMipmap settings
+            this.renderBlockLayer(level, RenderType.cutoutMipped(), matrixStack, cameraX, cameraY, cameraZ);
+            minecraft.getModelManager().getAtlas(TextureAtlas.LOCATION_BLOCKS).restoreLastBlurMipmap();
+            this.renderBlockLayer(level, RenderType.cutout(), matrixStack, cameraX, cameraY, cameraZ);
+//            RenderHelper.setupLevelDiffuseLighting(matrixStack.getLast().getMatrix());
+            this.renderBlockLayer(level, RenderType.translucent(), matrixStack, cameraX, cameraY, cameraZ);
+        });
+    }
+
     /**
-     * Renders the level relative to the camera position.
+     * Renders the level relative to the camera position. If level of detail is enabled, a simplified version of the level is drawn when it only covers a small part of the screen.
      *
      * @param matrixStack The stack of matrix transformations
      * @param cameraX     The x position of the camera
      * @param cameraY     The y position of the camera
      * @param cameraZ     The z position of the camera
      */
-    @SuppressWarnings("deprecation")
     public void render(PoseStack matrixStack, double cameraX, double cameraY, double cameraZ)
     {
+        this.lastCameraX = cameraX;
+        this.lastCameraY = cameraY;
+        this.lastCameraZ = cameraZ;
         LoadedWorld loadedWorld = this.level.getNow(null);
         if (loadedWorld == null)
             return;
+        switch (this.getLevelOfDetail(loadedWorld, cameraX, cameraY, cameraZ))
+        {
+            case FULL:
+                this.renderLayers(loadedWorld, matrixStack, cameraX, cameraY, cameraZ);
+                RenderSystem.runAsFancy(() -> Minecraft.getInstance().renderBuffers().bufferSource().endBatch());
+                break;
+            case MERGED:
+                this.renderLevelOfDetail(loadedWorld, LevelOfDetail.MERGED, matrixStack, cameraX, cameraY, cameraZ);
+                break;
+            case BOXES:
+                this.renderLevelOfDetail(loadedWorld, LevelOfDetail.BOXES, matrixStack, cameraX, cameraY, cameraZ);
+                break;
+            case SPRITE:
+                this.renderSprite(loadedWorld, matrixStack, cameraX, cameraY, cameraZ);
+                break;
+        }
+    }
+
+    private LevelOfDetail getLevelOfDetail(LoadedWorld level, double cameraX, double cameraY, double cameraZ)
+    {
+        if (!this.levelOfDetail)
+            return LevelOfDetail.FULL;
+        CompletableFuture<?> lodFuture = level.getLodFuture();
+        if (!lodFuture.isDone() || lodFuture.isCompletedExceptionally())
+            return LevelOfDetail.FULL;
+
+        Vec3i size = level.getSize();
+        float radius = getRadius(size);
+        double dx = size.getX() / 2.0 - cameraX;
+        double dy = size.getY() / 2.0 - cameraY;
+        double dz = size.getZ() / 2.0 - cameraZ;
+        double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        if (distance <= radius)
+            return LevelOfDetail.FULL;
+
         Minecraft minecraft = Minecraft.getInstance();
-        RenderSystem.disableBlend();
-        RenderSystem.disableAlphaTest();
-        RenderSystem.runAsFancy(() ->
+        double projectedSize = radius / (distance * Math.tan(Math.toRadians(minecraft.options.fov) / 2.0)) * minecraft.getWindow().getHeight();
+        for (LevelOfDetail levelOfDetail : LevelOfDetail.values())
         {
-            this.renderBlockLayer(loadedWorld, RenderType.solid(), matrixStack, cameraX, cameraY, cameraZ);
-            minecraft.getModelManager().getAtlas(TextureAtlas.LOCATION_BLOCKS).setBlurMipmap(false, minecraft.options.mipmapLevels > 0); // FORGE: fix flickering leaves when mods mess up the blurMipmap settings
-            this.renderBlockLayer(loadedWorld, RenderType.cutoutMipped(), matrixStack, cameraX, cameraY, cameraZ);
-            minecraft.getModelManager().getAtlas(TextureAtlas.LOCATION_BLOCKS).restoreLastBlurMipmap();
-            this.renderBlockLayer(loadedWorld, RenderType.cutout(), matrixStack, cameraX, cameraY, cameraZ);
-//            RenderHelper.setupLevelDiffuseLighting(matrixStack.getLast().getMatrix());
-            this.renderBlockLayer(loadedWorld, RenderType.translucent(), matrixStack, cameraX, cameraY, cameraZ);
-            minecraft.renderBuffers().bufferSource().endBatch();
-        });
+            if (levelOfDetail == LevelOfDetail.SPRITE && (!this.bakedSprite || !level.completeFuture.isDone()))
+                continue;
+            if (projectedSize >= levelOfDetail.getMinimumSize())
+                return levelOfDetail;
+        }
+        return LevelOfDetail.BOXES;
+    }
+
+    /**
+     * Checks which level of detail will be drawn when rendering from the specified position.
+     *
+     * @param cameraX The x position of the camera
+     * @param cameraY The y position of the camera
+     * @param cameraZ The z position of the camera
+     * @return The level of detail the template will be drawn with
+     */
+    public LevelOfDetail getLevelOfDetail(double cameraX, double cameraY, double cameraZ)
+    {
+        LoadedWorld loadedWorld = this.level.getNow(null);
+        return loadedWorld == null ? LevelOfDetail.FULL : this.getLevelOfDetail(loadedWorld, cameraX, cameraY, cameraZ);
+    }
+
+    /**
+     * Sets whether to draw simplified versions of the level when it covers a small part of the screen. The simplified versions are built in the background the first time they are needed, and the full level is drawn until they finish. Disabled by default.
+     *
+     * @param levelOfDetail Whether to use level of detail
+     */
+    public void setLevelOfDetail(boolean levelOfDetail)
+    {
+        this.levelOfDetail = levelOfDetail;
+    }
+
+    /**
+     * Sets whether to merge the faces of opaque full-cube blocks into larger quads when compiling the level. Merged blocks use flat lighting instead of smooth lighting. Disabled by default.
+     * <p>This is checked when the template starts loading, so it should be set immediately after creating the renderer or before calling {@link #reload()}.</p>
+     *
+     * @param greedyMeshing Whether to merge block faces
+     */
+    public void setGreedyMeshing(boolean greedyMeshing)
+    {
+        this.greedyMeshing = greedyMeshing;
+    }
+
+    /**
+     * Sets whether to bake the level into a fixed-angle sprite and draw it when the level covers very few pixels. Disabled by default.
+     *
+     * @param bakedSprite Whether to draw a baked sprite
+     */
+    public void setBakedSprite(boolean bakedSprite)
+    {
+        this.bakedSprite = bakedSprite;
+    }
+
+    /**
+     * Sets the listener notified as the template is loaded. Sections of the level are drawn as soon as they finish meshing, so this can be used to show how much of the level is still loading.
+     *
+     * @param progressListener The new listener or <code>null</code> to remove the current listener
+     */
+    public void setProgressListener(@Nullable ProgressListener progressListener)
+    {
+        this.progressListener = progressListener;
+    }
+
+    private void notifyLater(LoadStage stage, int completed, int total)
+    {
+        RenderSystem.recordRenderCall(() -> this.notifyProgress(stage, completed, total));
+    }
+
+    private void notifyProgress(LoadStage stage, int completed, int total)
+    {
+        if (!RenderSystem.isOnRenderThread())
+        {
+            RenderSystem.recordRenderCall(() -> this.notifyProgress(stage, completed, total));
+            return;
+        }
+
+        ProgressListener listener = this.progressListener;
+        if (listener != null)
+            listener.onProgress(stage, completed, total);
     }
 
     @Override
     public void free()
     {
-        this.level.thenAcceptAsync(level ->
-        {
-            if (level == null)
-                return;
-            level.vertexBuffers.values().forEach(VertexBuffer::close);
-        }, Util.backgroundExecutor());
+        close(this.level);
     }
 
     /**
-     * Reloads the current template if it has already been loaded.
+     * Reloads the current template if it has already been loaded. The previous level is freed, including any sections that are still meshing.
      */
     public void reload()
     {
-        if (this.level != null && !this.level.isDone())
-            return;
-        this.level = loadLevel(this.template.get(), this.constantAmbientLight, this.lightManager, this.colorResolver);
+        if (this.level != null)
+        {
+            if (!this.level.isDone())
+                return;
+            close(this.level);
+        }
+        this.level = loadLevel(this.template.get(), this);
     }
 
     /**
-     * @return A future of the level that will exist after it has loaded.
+     * @return A future of the level that will exist after the blocks have been placed and lit. Sections of the level are meshed after this completes.
      */
     public CompletableFuture<? extends BlockAndTintGetter> getLevel()
     {
         return level;
     }
 
+    /**
+     * @return Whether every section of the level has been meshed and can be drawn
+     */
+    public boolean isComplete()
+    {
+        LoadedWorld loadedWorld = this.level.getNow(null);
+        return loadedWorld != null && loadedWorld.completeFuture.isDone();
+    }
+
     /**
      * @return Whether the level loading has failed
      */
@@ -205,29 +489,45 @@ public class StructureTemplateRenderer implements NativeResource
 
     private static class LoadedWorld implements BlockAndTintGetter, LightChunkGetter
     {
+        private final StructureTemplateRenderer renderer;
         private final BiFunction<BlockPos, ColorResolver, Integer> colorResolver;
         private final boolean constantAmbientLight;
+        private final boolean greedyMeshing;
         private final LevelLightEngine lightManager;
-        private final Object2ObjectArrayMap<ColorResolver, BlockTintCache> tintCaches = new Object2ObjectArrayMap<>(3);
+        private final Map<ColorResolver, TintField> tintFields = new ConcurrentHashMap<>();
+        private final int blendRadius;
         private final Vec3i size;
         private final Map<Long, BlockState> blocks;
         private final Map<BlockPos, BlockEntity> tileEntities;
-        private final Map<RenderType, VertexBuffer> vertexBuffers = RenderType.chunkBufferLayers().stream().collect(Collectors.toMap(it -> it, __ -> new VertexBuffer(DefaultVertexFormat.BLOCK)));
+        private final List<RenderSection> sections = new ArrayList<>();
+        private final List<Map.Entry<SectionPos, List<BlockPos>>> pendingSections = new ArrayList<>();
+        private final Map<TextureAtlasSprite, DynamicTexture> greedyTextures = new HashMap<>();
+        private final Map<LevelOfDetail, VertexBuffer> lodBuffers = new EnumMap<>(LevelOfDetail.class);
+        private final CompletableFuture<Set<BlockPos>> loadFuture;
         private final CompletableFuture<?> completeFuture;
+        private CompletableFuture<?> lodFuture;
+        private AdvancedFbo sprite;
+        private volatile int totalSections;
+        private volatile boolean closed;
 
-        private LoadedWorld(StructureTemplate template, boolean constantAmbientLight, Function<LightChunkGetter, LevelLightEngine> lightManager, BiFunction<BlockPos, ColorResolver, Integer> colorResolver)
+        private LoadedWorld(StructureTemplate template, StructureTemplateRenderer renderer)
         {
-            this.colorResolver = colorResolver;
-            this.constantAmbientLight = constantAmbientLight;
-            this.lightManager = lightManager.apply(this);
+            this.renderer = renderer;
+            this.colorResolver = renderer.colorResolver;
+            this.constantAmbientLight = renderer.constantAmbientLight;
+            this.greedyMeshing = renderer.greedyMeshing;
+            this.lightManager = renderer.lightManager.apply(this);
+            this.blendRadius = Minecraft.getInstance().options.biomeBlendRadius;
             this.size = template.getSize();
             this.blocks = new HashMap<>();
             this.tileEntities = new HashMap<>();
 
-            this.completeFuture = CompletableFuture.supplyAsync(() ->
+            CompletableFuture<Set<BlockPos>> blocksFuture = CompletableFuture.supplyAsync(() ->
             {
+                List<StructureTemplate.StructureBlockInfo> templateBlocks = getTemplateBlocks(template);
+                this.renderer.notifyProgress(LoadStage.BLOCKS, 0, templateBlocks.size());
                 Set<BlockPos> positions = new HashSet<>();
-                for (StructureTemplate.StructureBlockInfo info : getTemplateBlocks(template))
+                for (StructureTemplate.StructureBlockInfo info : templateBlocks)
                 {
                     positions.add(info.pos);
                     this.blocks.put(info.pos.asLong(), info.state);
@@ -240,6 +540,7 @@ public class StructureTemplateRenderer implements NativeResource
                     }
                     this.lightManager.checkBlock(info.pos);
                 }
+                this.renderer.notifyProgress(LoadStage.LIGHTING, 0, 1);
                 for (int x = 0; x < Math.ceil(template.getSize().getX() / 16F); x++)
                 {
                     for (int y = 0; y < Math.ceil(template.getSize().getY() / 16F); y++)
@@ -259,32 +560,164 @@ public class StructureTemplateRenderer implements NativeResource
                 }
                 this.lightManager.runUpdates(Integer.MAX_VALUE, true, true);
 
+                // Most blocks are tinted by the vanilla resolvers, so build their fields before meshing starts
+                this.getTintField(BiomeColors.GRASS_COLOR_RESOLVER);
+                this.getTintField(BiomeColors.FOLIAGE_COLOR_RESOLVER);
+                this.getTintField(BiomeColors.WATER_COLOR_RESOLVER);
+
                 return positions;
-            }, Util.backgroundExecutor()).thenAcceptAsync(positions ->
+            }, Util.backgroundExecutor());
+            this.loadFuture = blocksFuture;
+            this.completeFuture = blocksFuture.thenComposeAsync(positions ->
             {
-                CompiledChunk compiledChunk = new CompiledChunk();
-                this.compile(compiledChunk, positions);
+                Map<SectionPos, List<BlockPos>> sections = new HashMap<>();
+                for (BlockPos pos : positions)
+                    sections.computeIfAbsent(SectionPos.of(pos), key -> new ArrayList<>()).add(pos);
+                synchronized (this.pendingSections)
+                {
+                    this.pendingSections.addAll(sections.entrySet());
+                }
+                this.totalSections = sections.size();
+                this.renderer.notifyProgress(LoadStage.MESHING, 0, this.totalSections);
+
+                ItemBlockRenderTypes.setFancy(true);
+                int workers = Math.max(1, Math.min(sections.size(), Runtime.getRuntime().availableProcessors() - 1));
+                CompletableFuture<?>[] futures = new CompletableFuture[workers];
+                for (int i = 0; i < workers; i++)
+                    futures[i] = CompletableFuture.runAsync(this::compileSections, Util.backgroundExecutor());
+                return CompletableFuture.allOf(futures);
+            }, Util.backgroundExecutor()).thenRunAsync(() -> this.renderer.notifyProgress(LoadStage.COMPLETE, this.totalSections, this.totalSections), task -> RenderSystem.recordRenderCall(task::run));
+        }
 
-                try
+        /**
+         * @return A future for the simplified versions of the level, which starts building them the first time this is called
+         */
+        private CompletableFuture<?> getLodFuture()
+        {
+            if (this.lodFuture == null)
+            {
+                this.lodFuture = this.loadFuture.thenApplyAsync(this::compileLevelOfDetail, Util.backgroundExecutor()).thenAcceptAsync(builders -> builders.forEach((levelOfDetail, builder) ->
                 {
-                    ChunkBufferBuilderPack builder = Minecraft.getInstance().renderBuffers().fixedBufferPack();
-                    if (compiledChunk.state != null && compiledChunk.layersUsed.contains(RenderType.translucent()))
-                    {
-                        BufferBuilder bufferbuilder = builder.builder(RenderType.translucent());
-                        bufferbuilder.begin(7, DefaultVertexFormat.BLOCK);
-                        bufferbuilder.restoreState(compiledChunk.state);
-                        bufferbuilder.sortQuads(0, 0, 0);
-                        compiledChunk.state = bufferbuilder.getState();
-                        bufferbuilder.end();
-                        this.vertexBuffers.get(RenderType.translucent()).uploadLater(builder.builder(RenderType.translucent())).join();
-                    }
-                    CompletableFuture.allOf(compiledChunk.layersStarted.stream().map(renderType -> this.vertexBuffers.get(renderType).uploadLater(builder.builder(renderType))).toArray(CompletableFuture[]::new)).join();
+                    if (this.closed)
+                        return;
+                    VertexBuffer vertexBuffer = new VertexBuffer(DefaultVertexFormat.POSITION_COLOR);
+                    vertexBuffer.upload(builder);
+                    this.lodBuffers.put(levelOfDetail, vertexBuffer);
+                }), command -> RenderSystem.recordRenderCall(command::run));
+                this.lodFuture.exceptionally(e ->
+                {
+                    LOGGER.error("Failed to compile level of detail", e);
+                    return null;
+                });
+            }
+            return this.lodFuture;
+        }
+
+        private void compileSections()
+        {
+            Random random = new Random();
+            ModelBlockRenderer.enableCaching();
+            try
+            {
+                Map.Entry<SectionPos, List<BlockPos>> next;
+                while (!this.closed && (next = this.pollNearestSection()) != null)
+                {
+                    SectionPos pos = next.getKey();
+                    CompiledChunk compiledChunk = this.compile(pos, next.getValue(), random);
+                    RenderSystem.recordRenderCall(() -> this.upload(compiledChunk));
                 }
-                catch (Exception e)
+            }
+            catch (Exception e)
+            {
+                Minecraft.getInstance().delayCrash(CrashReport.forThrowable(e, "Rendering chunk"));
+            }
+            finally
+            {
+                ModelBlockRenderer.clearCache();
+            }
+        }
+
+        /**
+         * @return The closest section to the camera that has not started meshing or <code>null</code> if all sections have started
+         */
+        @Nullable
+        private Map.Entry<SectionPos, List<BlockPos>> pollNearestSection()
+        {
+            synchronized (this.pendingSections)
+            {
+                if (this.pendingSections.isEmpty())
+                    return null;
+
+                double cameraX = this.renderer.lastCameraX;
+                double cameraY = this.renderer.lastCameraY;
+                double cameraZ = this.renderer.lastCameraZ;
+                int nearest = this.pendingSections.size() - 1;
+                if (!Double.isNaN(cameraX) && !Double.isNaN(cameraY) && !Double.isNaN(cameraZ))
                 {
-                    Minecraft.getInstance().delayCrash(CrashReport.forThrowable(e, "Rendering chunk"));
+                    double nearestDistance = Double.MAX_VALUE;
+                    for (int i = 0; i < this.pendingSections.size(); i++)
+                    {
+                        SectionPos pos = this.pendingSections.get(i).getKey();
+                        double dx = pos.minBlockX() + 8 - cameraX;
+                        double dy = pos.minBlockY() + 8 - cameraY;
+                        double dz = pos.minBlockZ() + 8 - cameraZ;
+                        double distance = dx * dx + dy * dy + dz * dz;
+                        if (distance < nearestDistance)
+                        {
+                            nearestDistance = distance;
+                            nearest = i;
+                        }
+                    }
                 }
-            }, command -> RenderSystem.recordRenderCall(command::run));
+
+                Map.Entry<SectionPos, List<BlockPos>> section = this.pendingSections.get(nearest);
+                this.pendingSections.set(nearest, this.pendingSections.get(this.pendingSections.size() - 1));
+                this.pendingSections.remove(this.pendingSections.size() - 1);
+                return section;
+            }
+        }
+
+        private void upload(CompiledChunk compiledChunk)
+        {
+            RenderSystem.assertThread(RenderSystem::isOnRenderThread);
+            if (this.closed)
+                return;
+
+            RenderSection section = new RenderSection();
+            compiledChunk.builders.forEach((renderType, builder) ->
+            {
+                if (!compiledChunk.layersUsed.contains(renderType))
+                    return;
+                VertexBuffer vertexBuffer = new VertexBuffer(DefaultVertexFormat.BLOCK);
+                vertexBuffer.upload(builder);
+                section.vertexBuffers.put(renderType, vertexBuffer);
+            });
+            compiledChunk.greedyLayers.forEach((sprite, builder) ->
+            {
+                this.greedyTextures.computeIfAbsent(sprite, StructureTemplateRenderer::createRepeatingTexture);
+                VertexBuffer vertexBuffer = new VertexBuffer(DefaultVertexFormat.BLOCK);
+                vertexBuffer.upload(builder);
+                section.greedyBuffers.put(sprite, vertexBuffer);
+            });
+            this.sections.add(section);
+            this.renderer.notifyProgress(LoadStage.MESHING, this.sections.size(), this.totalSections);
+        }
+
+        private void close()
+        {
+            RenderSystem.assertThread(RenderSystem::isOnRenderThread);
+            this.closed = true;
+            this.sections.forEach(RenderSection::close);
+            this.sections.clear();
+            this.lodBuffers.values().forEach(VertexBuffer::close);
+            this.lodBuffers.clear();
+            this.greedyTextures.values().forEach(DynamicTexture::close);
+            this.greedyTextures.clear();
+            if (this.sprite != null)
+            {
+                this.sprite.free();
+                this.sprite = null;
+            }
         }
 
         @Override
@@ -317,35 +750,19 @@ public class StructureTemplateRenderer implements NativeResource
         @Override
         public int getBlockTint(BlockPos pos, ColorResolver colorResolver)
         {
-            return this.tintCaches.computeIfAbsent(colorResolver, key -> new BlockTintCache()).getColor(pos, () -> this.calculateBlockTint(pos, colorResolver));
+            return this.getTintField(colorResolver).getColor(pos.getX(), pos.getZ());
         }
 
-        private int calculateBlockTint(BlockPos pos, ColorResolver colorResolver)
+        private TintField getTintField(ColorResolver colorResolver)
         {
-            int i = Minecraft.getInstance().options.biomeBlendRadius;
-            if (i == 0)
-            {
-                return this.colorResolver.apply(pos, colorResolver);
-            }
-            else
-            {
-                int j = (i * 2 + 1) * (i * 2 + 1);
-                int k = 0;
-                int l = 0;
-                int i1 = 0;
-                Cursor3D cubecoordinateiterator = new Cursor3D(pos.getX() - i, pos.getY(), pos.getZ() - i, pos.getX() + i, pos.getY(), pos.getZ() + i);
-
-                int j1;
-                for (BlockPos.MutableBlockPos blockpos$mutable = new BlockPos.MutableBlockPos(); cubecoordinateiterator.advance(); i1 += j1 & 255)
-                {
-                    blockpos$mutable.set(cubecoordinateiterator.nextX(), cubecoordinateiterator.nextY(), cubecoordinateiterator.nextZ());
-                    j1 = this.colorResolver.apply(blockpos$mutable, colorResolver);
-                    k += (j1 & 16711680) >> 16;
-                    l += (j1 & '\uff00') >> 8;
-                }
+            TintField field = this.tintFields.get(colorResolver);
+            if (field != null)
+                return field;
 
-                return (k / j & 255) << 16 | (l / j & 255) << 8 | i1 / j & 255;
-            }
+            // Building the field waits on other tasks, so it must not happen while the map is locked
+            field = TintField.create(this.size.getX(), this.size.getZ(), this.blendRadius, (x, z) -> this.colorResolver.apply(new BlockPos(x, 0, z), colorResolver), Util.backgroundExecutor());
+            TintField existing = this.tintFields.putIfAbsent(colorResolver, field);
+            return existing != null ? existing : field;
         }
 
         @Nullable
@@ -385,18 +802,22 @@ public class StructureTemplateRenderer implements NativeResource
             return size;
         }
 
-        private void compile(CompiledChunk compiledChunkIn, Set<BlockPos> positions)
+        private CompiledChunk compile(SectionPos sectionPos, List<BlockPos> positions, Random random)
         {
-            ChunkBufferBuilderPack builderIn = Minecraft.getInstance().renderBuffers().fixedBufferPack();
+            CompiledChunk compiledChunkIn = new CompiledChunk();
+            BlockPos origin = sectionPos.origin();
             PoseStack matrixstack = new PoseStack();
-            ModelBlockRenderer.enableCaching();
-            Random random = new Random();
             BlockRenderDispatcher blockrendererdispatcher = Minecraft.getInstance().getBlockRenderer();
+            PoseStack liquidStack = new PoseStack();
+            liquidStack.translate(origin.getX(), origin.getY(), origin.getZ());
+            LiquidVertexBuffer liquidBuffer = new LiquidVertexBuffer(liquidStack.last().pose(), liquidStack.last().normal());
+            GreedyBlockMesher greedyMesher = this.greedyMeshing ? new GreedyBlockMesher(origin, new Vec3i(Math.min(16, this.size.getX() - origin.getX()), Math.min(16, this.size.getY() - origin.getY()), Math.min(16, this.size.getZ() - origin.getZ()))) : null;
 
-            ItemBlockRenderTypes.setFancy(true);
             for (BlockPos blockpos2 : positions)
             {
                 BlockState blockstate = this.getBlockState(blockpos2);
+                if (greedyMesher != null && greedyMesher.add(this, blockstate, blockpos2, random))
+                    continue;
 
                 FluidState fluidstate = this.getFluidState(blockpos2);
                 for (RenderType rendertype : RenderType.chunkBufferLayers())
@@ -404,28 +825,16 @@ public class StructureTemplateRenderer implements NativeResource
                     net.minecraftforge.client.ForgeHooksClient.setRenderLayer(rendertype);
                     if (!fluidstate.isEmpty() && ItemBlockRenderTypes.canRenderInLayer(fluidstate, rendertype))
                     {
-                        BufferBuilder bufferbuilder = builderIn.builder(rendertype);
-                        if (compiledChunkIn.layersStarted.add(rendertype))
-                        {
-                            bufferbuilder.begin(7, DefaultVertexFormat.BLOCK);
-                        }
-
-                        matrixstack.pushPose();
-                        matrixstack.translate((int) (blockpos2.getX() / 16.0) * 16.0, (int) (blockpos2.getY() / 16.0) * 16.0, (int) (blockpos2.getZ() / 16.0) * 16.0);
-                        if (blockrendererdispatcher.renderLiquid(blockpos2, this, new LiquidVertexBuffer(bufferbuilder, matrixstack.last().pose(), matrixstack.last().normal()), fluidstate))
+                        BufferBuilder bufferbuilder = compiledChunkIn.builder(rendertype);
+                        if (blockrendererdispatcher.renderLiquid(blockpos2, this, liquidBuffer.setDelegate(bufferbuilder), fluidstate))
                         {
                             compiledChunkIn.layersUsed.add(rendertype);
                         }
-                        matrixstack.popPose();
                     }
 
                     if (blockstate.getRenderShape() != RenderShape.INVISIBLE && ItemBlockRenderTypes.canRenderInLayer(blockstate, rendertype))
                     {
-                        BufferBuilder bufferbuilder2 = builderIn.builder(rendertype);
-                        if (compiledChunkIn.layersStarted.add(rendertype))
-                        {
-                            bufferbuilder2.begin(7, DefaultVertexFormat.BLOCK);
-                        }
+                        BufferBuilder bufferbuilder2 = compiledChunkIn.builder(rendertype);
 
                         matrixstack.pushPose();
                         matrixstack.translate(blockpos2.getX(), blockpos2.getY(), blockpos2.getZ());
@@ -442,35 +851,171 @@ public class StructureTemplateRenderer implements NativeResource
 
             if (compiledChunkIn.layersUsed.contains(RenderType.translucent()))
             {
-                BufferBuilder bufferbuilder1 = builderIn.builder(RenderType.translucent());
-                bufferbuilder1.sortQuads(0, 0, 0);
-                compiledChunkIn.state = bufferbuilder1.getState();
+                double cameraX = this.renderer.lastCameraX;
+                double cameraY = this.renderer.lastCameraY;
+                double cameraZ = this.renderer.lastCameraZ;
+                if (Double.isNaN(cameraX) || Double.isNaN(cameraY) || Double.isNaN(cameraZ))
+                    compiledChunkIn.builder(RenderType.translucent()).sortQuads(origin.getX() + 8, origin.getY() + 8, origin.getZ() + 8);
+                else
+                    compiledChunkIn.builder(RenderType.translucent()).sortQuads((float) cameraX, (float) cameraY, (float) cameraZ);
             }
 
-            compiledChunkIn.layersStarted.stream().map(builderIn::builder).forEach(BufferBuilder::end);
-            ModelBlockRenderer.clearCache();
+            compiledChunkIn.builders.values().forEach(BufferBuilder::end);
+            if (greedyMesher != null)
+                compiledChunkIn.greedyLayers.putAll(greedyMesher.compile());
+            return compiledChunkIn;
+        }
+
+        private Map<LevelOfDetail, BufferBuilder> compileLevelOfDetail(Set<BlockPos> positions)
+        {
+            int[] dimensions = {this.size.getX(), this.size.getY(), this.size.getZ()};
+            int sectionsX = (dimensions[0] + 15) >> 4;
+            int sectionsY = (dimensions[1] + 15) >> 4;
+            int sectionsZ = (dimensions[2] + 15) >> 4;
+            int[] colors = new int[dimensions[0] * dimensions[1] * dimensions[2]];
+            int[] sectionMin = new int[sectionsX * sectionsY * sectionsZ * 3];
+            int[] sectionMax = new int[sectionsX * sectionsY * sectionsZ * 3];
+            long[] sectionColors = new long[sectionsX * sectionsY * sectionsZ * 3];
+            int[] sectionBlocks = new int[sectionsX * sectionsY * sectionsZ];
+
+            for (BlockPos pos : positions)
+            {
+                if (pos.getX() < 0 || pos.getY() < 0 || pos.getZ() < 0 || pos.getX() >= dimensions[0] || pos.getY() >= dimensions[1] || pos.getZ() >= dimensions[2])
+                    continue;
+                MaterialColor color = this.getBlockState(pos).getMapColor(this, pos);
+                if (color == MaterialColor.NONE)
+                    continue;
+                colors[(pos.getY() * dimensions[2] + pos.getZ()) * dimensions[0] + pos.getX()] = 0xFF000000 | color.col;
+
+                int section = ((pos.getY() >> 4) * sectionsZ + (pos.getZ() >> 4)) * sectionsX + (pos.getX() >> 4);
+                for (int axis = 0; axis < 3; axis++)
+                {
+                    int value = pos.get(Direction.Axis.VALUES[axis]);
+                    sectionMin[section * 3 + axis] = sectionBlocks[section] == 0 ? value : Math.min(sectionMin[section * 3 + axis], value);
+                    sectionMax[section * 3 + axis] = sectionBlocks[section] == 0 ? value + 1 : Math.max(sectionMax[section * 3 + axis], value + 1);
+                }
+                sectionColors[section * 3] += (color.col >> 16) & 0xFF;
+                sectionColors[section * 3 + 1] += (color.col >> 8) & 0xFF;
+                sectionColors[section * 3 + 2] += color.col & 0xFF;
+                sectionBlocks[section]++;
+            }
+
+            Map<LevelOfDetail, BufferBuilder> builders = new EnumMap<>(LevelOfDetail.class);
+
+            // Merge all exposed faces with the same color into as few quads as possible
+            BufferBuilder merged = new BufferBuilder(DefaultVertexFormat.POSITION_COLOR.getVertexSize() * 256);
+            merged.begin(7, DefaultVertexFormat.POSITION_COLOR);
+            int[] cell = new int[3];
+            for (Direction direction : Direction.values())
+            {
+                int axis = direction.getAxis().ordinal();
+                int u = (axis + 1) % 3;
+                int v = (axis + 2) % 3;
+                int[] mask = new int[dimensions[u] * dimensions[v]];
+                float shade = this.getShade(direction, true);
+                for (int slice = 0; slice < dimensions[axis]; slice++)
+                {
+                    for (int j = 0; j < dimensions[v]; j++)
+                    {
+                        for (int i = 0; i < dimensions[u]; i++)
+                        {
+                            cell[axis] = slice;
+                            cell[u] = i;
+                            cell[v] = j;
+                            int color = getColor(colors, dimensions, cell[0], cell[1], cell[2]);
+                            if (color != 0 && getColor(colors, dimensions, cell[0] + direction.getStepX(), cell[1] + direction.getStepY(), cell[2] + direction.getStepZ()) == 0)
+                                mask[i + j * dimensions[u]] = color;
+                        }
+                    }
+
+                    float plane = direction.getAxisDirection() == Direction.AxisDirection.POSITIVE ? slice + 1 : slice;
+                    GreedyMesher.mesh(mask, dimensions[u], dimensions[v], (color, x, y, width, height) -> putFace(merged, direction, plane, x, y, x + width, y + height, color, shade));
+                }
+            }
+            merged.end();
+            builders.put(LevelOfDetail.MERGED, merged);
+
+            // Replace each section with a single box around the blocks inside it
+            BufferBuilder boxes = new BufferBuilder(DefaultVertexFormat.POSITION_COLOR.getVertexSize() * 24 * sectionBlocks.length);
+            boxes.begin(7, DefaultVertexFormat.POSITION_COLOR);
+            for (int section = 0; section < sectionBlocks.length; section++)
+            {
+                int blocks = sectionBlocks[section];
+                if (blocks == 0)
+                    continue;
+
+                int color = 0xFF000000 | (int) (sectionColors[section * 3] / blocks) << 16 | (int) (sectionColors[section * 3 + 1] / blocks) << 8 | (int) (sectionColors[section * 3 + 2] / blocks);
+                for (Direction direction : Direction.values())
+                {
+                    int axis = direction.getAxis().ordinal();
+                    int u = (axis + 1) % 3;
+                    int v = (axis + 2) % 3;
+                    float plane = direction.getAxisDirection() == Direction.AxisDirection.POSITIVE ? sectionMax[section * 3 + axis] : sectionMin[section * 3 + axis];
+                    putFace(boxes, direction, plane, sectionMin[section * 3 + u], sectionMin[section * 3 + v], sectionMax[section * 3 + u], sectionMax[section * 3 + v], color, this.getShade(direction, true));
+                }
+            }
+            boxes.end();
+            builders.put(LevelOfDetail.BOXES, boxes);
+
+            return builders;
+        }
+
+        private static int getColor(int[] colors, int[] dimensions, int x, int y, int z)
+        {
+            if (x < 0 || y < 0 || z < 0 || x >= dimensions[0] || y >= dimensions[1] || z >= dimensions[2])
+                return 0;
+            return colors[(y * dimensions[2] + z) * dimensions[0] + x];
+        }
+
+        private static void putFace(VertexConsumer consumer, Direction direction, float plane, float u0, float v0, float u1, float v1, int color, float shade)
+        {
+            int axis = direction.getAxis().ordinal();
+            int red = (int) (((color >> 16) & 0xFF) * shade);
+            int green = (int) (((color >> 8) & 0xFF) * shade);
+            int blue = (int) ((color & 0xFF) * shade);
+            float[] position = new float[3];
+            float[][] corners = direction.getAxisDirection() == Direction.AxisDirection.POSITIVE ? new float[][]{{u0, v0}, {u1, v0}, {u1, v1}, {u0, v1}} : new float[][]{{u0, v0}, {u0, v1}, {u1, v1}, {u1, v0}};
+            for (float[] corner : corners)
+            {
+                position[axis] = plane;
+                position[(axis + 1) % 3] = corner[0];
+                position[(axis + 2) % 3] = corner[1];
+                consumer.vertex(position[0], position[1], position[2]).color(red, green, blue, 255).endVertex();
+            }
         }
     }
 
+    /**
+     * <p>Transforms liquid vertices into section space. A single instance is reused for every liquid in a section, so the scratch vectors are never shared between threads.</p>
+     */
     private static class LiquidVertexBuffer implements VertexConsumer
     {
-        private final VertexConsumer delegate;
         private final Matrix4f position;
         private final Matrix3f normal;
+        private final Vector4f positionVector;
+        private final Vector3f normalVector;
+        private VertexConsumer delegate;
 
-        private LiquidVertexBuffer(VertexConsumer delegate, Matrix4f position, Matrix3f normal)
+        private LiquidVertexBuffer(Matrix4f position, Matrix3f normal)
         {
-            this.delegate = delegate;
             this.position = position;
             this.normal = normal;
+            this.positionVector = new Vector4f();
+            this.normalVector = new Vector3f();
+        }
+
+        private LiquidVertexBuffer setDelegate(VertexConsumer delegate)
+        {
+            this.delegate = delegate;
+            return this;
         }
 
         @Override
         public VertexConsumer vertex(double x, double y, double z)
         {
-            Vector4f vector4f = new Vector4f((float) x, (float) y, (float) z, 1.0F);
-            vector4f.transform(this.position);
-            this.delegate.vertex(vector4f.x(), vector4f.y(), vector4f.z());
+            this.positionVector.set((float) x, (float) y, (float) z, 1.0F);
+            this.positionVector.transform(this.position);
+            this.delegate.vertex(this.positionVector.x(), this.positionVector.y(), this.positionVector.z());
             return this;
         }
 
@@ -505,9 +1050,9 @@ public class StructureTemplateRenderer implements NativeResource
         @Override
         public VertexConsumer normal(float x, float y, float z)
         {
-            Vector3f vector3f = new Vector3f(x, y, z);
-            vector3f.transform(this.normal);
-            this.delegate.normal(vector3f.x(), vector3f.y(), vector3f.z());
+            this.normalVector.set(x, y, z);
+            this.normalVector.transform(this.normal);
+            this.delegate.normal(this.normalVector.x(), this.normalVector.y(), this.normalVector.z());
             return this;
         }
 
@@ -518,12 +1063,122 @@ public class StructureTemplateRenderer implements NativeResource
         }
     }
 
+    private static class RenderSection
+    {
+        private final Map<RenderType, VertexBuffer> vertexBuffers = new HashMap<>();
+        private final Map<TextureAtlasSprite, VertexBuffer> greedyBuffers = new HashMap<>();
+
+        private void close()
+        {
+            this.vertexBuffers.values().forEach(VertexBuffer::close);
+            this.greedyBuffers.values().forEach(VertexBuffer::close);
+        }
+    }
+
     public static class CompiledChunk
     {
         private final Set<RenderType> layersUsed = new ObjectArraySet<>();
-        private final Set<RenderType> layersStarted = new ObjectArraySet<>();
-        @Nullable
-        private BufferBuilder.State state;
+        private final Map<RenderType, BufferBuilder> builders = new HashMap<>();
+        private final Map<TextureAtlasSprite, BufferBuilder> greedyLayers = new HashMap<>();
+
+        private BufferBuilder builder(RenderType renderType)
+        {
+            return this.builders.computeIfAbsent(renderType, key ->
+            {
+                BufferBuilder builder = new BufferBuilder(DefaultVertexFormat.BLOCK.getVertexSize() * 1024);
+                builder.begin(7, DefaultVertexFormat.BLOCK);
+                return builder;
+            });
+        }
+    }
+
+    /**
+     * <p>The stages a {@link StructureTemplateRenderer} goes through while loading a template.</p>
+     *
+     * @author Ocelot
+     * @since 7.1.0
+     */
+    public enum LoadStage
+    {
+        TEMPLATE, BLOCKS, LIGHTING, MESHING, COMPLETE
+    }
+
+    /**
+     * <p>Listens for the loading progress of a {@link StructureTemplateRenderer}.</p>
+     *
+     * @author Ocelot
+     * @since 7.1.0
+     */
+    @FunctionalInterface
+    public interface ProgressListener
+    {
+        /**
+         * Called on the render thread each time loading makes progress.
+         *
+         * @param stage     The stage the template is currently in
+         * @param completed The amount of work completed in the current stage
+         * @param total     The total amount of work in the current stage
+         */
+        void onProgress(LoadStage stage, int completed, int total);
+    }
+
+    private static DynamicTexture createRepeatingTexture(TextureAtlasSprite sprite)
+    {
+        NativeImage image = new NativeImage(sprite.getWidth(), sprite.getHeight(), false);
+        for (int x = 0; x < sprite.getWidth(); x++)
+            for (int y = 0; y < sprite.getHeight(); y++)
+                image.setPixelRGBA(x, y, sprite.getPixelRGBA(0, x, y));
+        DynamicTexture texture = new DynamicTexture(image);
+        texture.bind();
+        RenderSystem.texParameter(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
+        RenderSystem.texParameter(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
+        return texture;
+    }
+
+    /**
+     * <p>The representations a template can be drawn with depending on how much of the screen it covers.</p>
+     *
+     * @author Ocelot
+     * @since 7.1.0
+     */
+    public enum LevelOfDetail
+    {
+        /**
+         * Every block model is drawn the same way as the level renderer.
+         */
+        FULL(192),
+        /**
+         * Exposed faces are drawn with the map color of each block and adjacent faces with the same color are merged.
+         */
+        MERGED(48),
+        /**
+         * Each 16x16x16 section is drawn as a single box with the average map color of the blocks inside it.
+         */
+        BOXES(12),
+        /**
+         * The level is baked into a fixed-angle sprite that always faces the camera. Only used if enabled with {@link #setBakedSprite(boolean)}.
+         */
+        SPRITE(0);
+
+        private final int minimumSize;
+
+        LevelOfDetail(int minimumSize)
+        {
+            this.minimumSize = minimumSize;
+        }
+
+        /**
+         * @return The minimum number of pixels the template must cover on screen to use this level of detail
+         */
+        public int getMinimumSize()
+        {
+            return minimumSize;
+        }
+    }
+
+    private static float getRadius(Vec3i size)
+    {
+        return (float) Math.sqrt(size.getX() * size.getX() + size.getY() * size.getY() + size.getZ() * size.getZ()) / 2.0F;
     }
 
     private static CompletableFuture<StructureTemplate> downloadTemplate(String templateUrl)
@@ -551,9 +1206,21 @@ public class StructureTemplateRenderer implements NativeResource
         });
     }
 
-    private static CompletableFuture<LoadedWorld> loadLevel(CompletableFuture<StructureTemplate> templateFuture, boolean constantAmbientLight, Function<LightChunkGetter, LevelLightEngine> lightManager, BiFunction<BlockPos, ColorResolver, Integer> colorResolver)
+    private static void close(CompletableFuture<LoadedWorld> levelFuture)
+    {
+        levelFuture.thenAcceptAsync(level ->
+        {
+            if (level == null)
+                return;
+            level.close();
+        }, task -> RenderSystem.recordRenderCall(task::run));
+    }
+
+    private static CompletableFuture<LoadedWorld> loadLevel(CompletableFuture<StructureTemplate> templateFuture, StructureTemplateRenderer renderer)
     {
-        return templateFuture.thenApplyAsync(template -> new LoadedWorld(template, constantAmbientLight, lightManager, colorResolver), Util.backgroundExecutor()).thenComposeAsync(level -> level.completeFuture.thenApplyAsync(__ -> level, Util.backgroundExecutor()), Util.backgroundExecutor()).exceptionally(e ->
+        // Reported from the pipeline so listeners registered right after the renderer is created still receive it
+        renderer.notifyLater(LoadStage.TEMPLATE, 0, 1);
+        return templateFuture.thenApplyAsync(template -> new LoadedWorld(template, renderer), Util.backgroundExecutor()).thenComposeAsync(level -> level.loadFuture.thenApplyAsync(__ -> level, Util.backgroundExecutor()), Util.backgroundExecutor()).exceptionally(e ->
         {
             LOGGER.error("Failed to load level template data", e);
             return null;
@@ -0,0 +1,148 @@
+package io.github.ocelot.sonar.client.render;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * <p>A precomputed field of biome blended tint colors for every column of a template.</p>
+ * <p>Colors are blurred with a separable box blur, so building the field costs one sample per column instead of one per block and blend cell.</p>
+ *
+ * @author Ocelot
+ * @since 7.1.0
+ */
+final class TintField
+{
+    private final int sizeX;
+    private final int sizeZ;
+    private final int[] colors;
+
+    private TintField(int sizeX, int sizeZ, int[] colors)
+    {
+        this.sizeX = sizeX;
+        this.sizeZ = sizeZ;
+        this.colors = colors;
+    }
+
+    /**
+     * Samples and blurs the tint of every column in the specified area.
+     *
+     * @param sizeX    The number of columns along the x axis
+     * @param sizeZ    The number of columns along the z axis
+     * @param radius   The blend radius in blocks. <code>0</code> disables blending
+     * @param sampler  The source of unblended colors for each x and z column. Called with coordinates up to <code>radius</code> outside the area and from multiple threads
+     * @param executor The executor to split the work across
+     * @return A new field of blended colors
+     */
+    static TintField create(int sizeX, int sizeZ, int radius, IntBinaryOperator sampler, Executor executor)
+    {
+        int diameter = radius * 2 + 1;
+        int sampleWidth = sizeX + radius * 2;
+        int sampleHeight = sizeZ + radius * 2;
+
+        // Horizontal pass: sum each row of samples over a sliding window along x
+        int[] red = new int[sizeX * sampleHeight];
+        int[] green = new int[sizeX * sampleHeight];
+        int[] blue = new int[sizeX * sampleHeight];
+        run(sampleHeight, executor, (start, end) ->
+        {
+            int[] row = new int[sampleWidth];
+            for (int z = start; z < end; z++)
+            {
+                for (int x = 0; x < sampleWidth; x++)
+                    row[x] = sampler.applyAsInt(x - radius, z - radius);
+
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                for (int x = 0; x < diameter; x++)
+                {
+                    r += (row[x] >> 16) & 255;
+                    g += (row[x] >> 8) & 255;
+                    b += row[x] & 255;
+                }
+                for (int x = 0; x < sizeX; x++)
+                {
+                    int index = x + z * sizeX;
+                    red[index] = r;
+                    green[index] = g;
+                    blue[index] = b;
+                    if (x + 1 < sizeX)
+                    {
+                        int added = row[x + diameter];
+                        int removed = row[x];
+                        r += ((added >> 16) & 255) - ((removed >> 16) & 255);
+                        g += ((added >> 8) & 255) - ((removed >> 8) & 255);
+                        b += (added & 255) - (removed & 255);
+                    }
+                }
+            }
+        });
+
+        // Vertical pass: sum the row sums over a sliding window along z and average
+        int cells = diameter * diameter;
+        int[] colors = new int[sizeX * sizeZ];
+        run(sizeX, executor, (start, end) ->
+        {
+            for (int x = start; x < end; x++)
+            {
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                for (int z = 0; z < diameter; z++)
+                {
+                    r += red[x + z * sizeX];
+                    g += green[x + z * sizeX];
+                    b += blue[x + z * sizeX];
+                }
+                for (int z = 0; z < sizeZ; z++)
+                {
+                    colors[x + z * sizeX] = (r / cells & 255) << 16 | (g / cells & 255) << 8 | b / cells & 255;
+                    if (z + 1 < sizeZ)
+                    {
+                        int added = x + (z + diameter) * sizeX;
+                        int removed = x + z * sizeX;
+                        r += red[added] - red[removed];
+                        g += green[added] - green[removed];
+                        b += blue[added] - blue[removed];
+                    }
+                }
+            }
+        });
+
+        return new TintField(sizeX, sizeZ, colors);
+    }
+
+    private static void run(int count, Executor executor, RangeTask task)
+    {
+        int bands = Math.max(1, Math.min(count, Runtime.getRuntime().availableProcessors()));
+        CompletableFuture<?>[] futures = new CompletableFuture[bands];
+        for (int i = 0; i < bands; i++)
+        {
+            int start = count * i / bands;
+            int end = count * (i + 1) / bands;
+            futures[i] = CompletableFuture.runAsync(() -> task.run(start, end), executor);
+        }
+        CompletableFuture.allOf(futures).join();
+    }
+
+    /**
+     * Retrieves the blended color of the specified column. Columns outside the field use the color of the closest edge.
+     *
+     * @param x The x position of the column
+     * @param z The z position of the column
+     * @return The packed RGB color of that column
+     */
+    int getColor(int x, int z)
+    {
+        x = Math.max(0, Math.min(this.sizeX - 1, x));
+        z = Math.max(0, Math.min(this.sizeZ - 1, z));
+        return this.colors[x + z * this.sizeX];
+    }
+
+    @FunctionalInterface
+    private interface RangeTask
+    {
+        void run(int start, int end);
+    }
+}
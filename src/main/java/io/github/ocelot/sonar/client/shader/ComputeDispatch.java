@@ -0,0 +1,58 @@
+package io.github.ocelot.sonar.client.shader;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+
+/**
+ * <p>Dispatches compute programs over a number of invocations instead of a number of work groups.</p>
+ * <p>The local size of each program is read from the driver, so the same call works no matter what <code>local_size</code> the shader declares. Memory barriers for the storage buffers a dispatch uses are inserted when those buffers are next dispatched, bound or read, so only the barriers that are actually needed are issued.</p>
+ *
+ * @author Ocelot
+ * @since 7.1.0
+ */
+public final class ComputeDispatch
+{
+    private ComputeDispatch()
+    {
+    }
+
+    /**
+     * Dispatches the specified compute program so there is at least one invocation for every element in the specified size. Shaders should discard invocations outside the size, since the last work group in each axis may go past it.
+     *
+     * @param shader  The compute program to dispatch
+     * @param sizeX   The number of invocations in the x axis
+     * @param sizeY   The number of invocations in the y axis
+     * @param sizeZ   The number of invocations in the z axis
+     * @param buffers The storage buffers this dispatch reads or writes. They must already be bound with {@link ShaderStorageBuffer#bind(int)}
+     */
+    public static void dispatch(ShaderInstance shader, int sizeX, int sizeY, int sizeZ, ShaderStorageBuffer<?>... buffers)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        if (!ShaderConst.isComputeSupported())
+            throw new UnsupportedOperationException("Compute shaders are unsupported");
+
+        shader.bind();
+        if (shader.getProgram() <= 0)
+            return;
+
+        for (ShaderStorageBuffer<?> buffer : buffers)
+            buffer.prepareDispatch();
+        int[] localSize = shader.getWorkGroupSize();
+        ShaderConst.glDispatchCompute(getGroupCount(sizeX, localSize[0]), getGroupCount(sizeY, localSize[1]), getGroupCount(sizeZ, localSize[2]));
+        for (ShaderStorageBuffer<?> buffer : buffers)
+            buffer.markUsed();
+    }
+
+    /**
+     * Calculates the number of work groups needed to cover the specified number of invocations.
+     *
+     * @param size      The number of invocations
+     * @param localSize The number of invocations in each work group
+     * @return The number of work groups to dispatch
+     */
+    public static int getGroupCount(int size, int localSize)
+    {
+        if (size <= 0 || localSize <= 0)
+            return 0;
+        return (size + localSize - 1) / localSize;
+    }
+}
@@ -0,0 +1,313 @@
+package io.github.ocelot.sonar.client.shader;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import net.minecraft.Util;
+import net.minecraft.client.Minecraft;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.lwjgl.opengl.GL20C.*;
+import static org.lwjgl.opengl.GL41C.GL_PROGRAM_BINARY_LENGTH;
+import static org.lwjgl.opengl.GL41C.GL_PROGRAM_BINARY_RETRIEVABLE_HINT;
+
+/**
+ * <p>Persists linked program binaries to disk so programs can skip compiling and linking the next time the same sources are loaded.</p>
+ * <p>Binaries are keyed by the preprocessed source of every attached shader and the current driver, so any change to either is a cache miss. The cache is cleared when the driver changes, and once it grows past {@value #MAX_CACHE_BYTES} bytes the least recently used binaries are deleted.</p>
+ *
+ * @author Ocelot
+ * @since 7.1.0
+ */
+final class ProgramBinaryCache
+{
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final long MAX_CACHE_BYTES = 32L * 1024 * 1024;
+    private static final String DRIVER_FILE = "driver.txt";
+
+    private static Path cacheFolder;
+    private static String driver;
+
+    private ProgramBinaryCache()
+    {
+    }
+
+    /**
+     * Creates a key for a program made of the specified shaders.
+     *
+     * @param shaderHashes The hash of each attached shader, prefixed with the shader type
+     * @return A key unique to those sources on the current driver
+     */
+    static String getKey(List<String> shaderHashes)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        if (driver == null)
+        {
+            driver = glGetString(GL_VENDOR) + ";" + glGetString(GL_RENDERER) + ";" + glGetString(GL_VERSION);
+            checkDriver();
+        }
+        return DigestUtils.sha1Hex(driver + ";" + String.join(";", shaderHashes));
+    }
+
+    /**
+     * Attempts to create a program from the cached binary with the specified key.
+     *
+     * @param key The key of the program
+     * @return The linked program or nothing if there was no valid binary
+     */
+    static OptionalInt load(String key)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        if (!ShaderConst.isProgramBinarySupported())
+            return OptionalInt.empty();
+
+        Path file = getFile(key);
+        if (!Files.exists(file))
+            return OptionalInt.empty();
+
+        int format;
+        byte[] data;
+        try (DataInputStream stream = new DataInputStream(Files.newInputStream(file)))
+        {
+            format = stream.readInt();
+            // A corrupt length would otherwise fail to allocate instead of being treated as a bad file
+            int length = stream.readInt();
+            if (length < 0 || length != Files.size(file) - 8)
+                throw new IOException("Invalid program binary length: " + length);
+            data = new byte[length];
+            stream.readFully(data);
+        }
+        catch (IOException e)
+        {
+            LOGGER.warn("Failed to read program binary: " + file, e);
+            delete(file);
+            return OptionalInt.empty();
+        }
+
+        ByteBuffer binary = MemoryUtil.memAlloc(data.length);
+        int program = glCreateProgram();
+        try
+        {
+            binary.put(data);
+            binary.flip();
+            ShaderConst.glProgramBinary(program, format, binary);
+        }
+        finally
+        {
+            MemoryUtil.memFree(binary);
+        }
+
+        // The driver is allowed to reject any binary, usually after an update
+        if (glGetProgrami(program, GL_LINK_STATUS) != GL_TRUE)
+        {
+            glDeleteProgram(program);
+            delete(file);
+            return OptionalInt.empty();
+        }
+
+        // The modified time is used as the last use when pruning
+        Util.backgroundExecutor().execute(() ->
+        {
+            try
+            {
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            }
+            catch (IOException ignored)
+            {
+            }
+        });
+        return OptionalInt.of(program);
+    }
+
+    /**
+     * Marks the specified program so its binary can be retrieved after linking. Must be called before the program is linked.
+     *
+     * @param program The program to mark
+     */
+    static void prepare(int program)
+    {
+        if (ShaderConst.isProgramBinarySupported())
+            ShaderConst.glProgramParameteri(program, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+    }
+
+    /**
+     * Saves the binary of the specified linked program under the specified key. The file is written on a background thread.
+     *
+     * @param key     The key of the program
+     * @param program The linked program
+     */
+    static void save(String key, int program)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        if (!ShaderConst.isProgramBinarySupported())
+            return;
+
+        int length = glGetProgrami(program, GL_PROGRAM_BINARY_LENGTH);
+        if (length <= 0)
+            return;
+
+        int format;
+        byte[] data;
+        ByteBuffer binary = MemoryUtil.memAlloc(length);
+        try (MemoryStack stack = MemoryStack.stackPush())
+        {
+            IntBuffer lengthBuffer = stack.mallocInt(1);
+            IntBuffer formatBuffer = stack.mallocInt(1);
+            ShaderConst.glGetProgramBinary(program, lengthBuffer, formatBuffer, binary);
+            format = formatBuffer.get(0);
+            data = new byte[lengthBuffer.get(0)];
+            binary.get(data);
+        }
+        finally
+        {
+            MemoryUtil.memFree(binary);
+        }
+
+        Path file = getFile(key);
+        Util.backgroundExecutor().execute(() ->
+        {
+            try
+            {
+                // Write to a temporary file first so a partially written binary is never loaded
+                Files.createDirectories(file.getParent());
+                Path tempFile = Files.createTempFile(file.getParent(), key, ".tmp");
+                try (DataOutputStream stream = new DataOutputStream(Files.newOutputStream(tempFile)))
+                {
+                    stream.writeInt(format);
+                    stream.writeInt(data.length);
+                    stream.write(data);
+                }
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("Failed to write program binary: " + file, e);
+                delete(file);
+                return;
+            }
+            prune();
+        });
+    }
+
+    /**
+     * Deletes every binary if they were created by a different driver. Binaries from other drivers can never be loaded again, since the driver is part of every key.
+     */
+    private static void checkDriver()
+    {
+        Path folder = getCacheFolder();
+        Path driverFile = folder.resolve(DRIVER_FILE);
+        try
+        {
+            if (Files.exists(driverFile) && driver.equals(new String(Files.readAllBytes(driverFile), StandardCharsets.UTF_8)))
+                return;
+
+            List<Path> binaries = listBinaries(folder);
+            if (!binaries.isEmpty())
+            {
+                LOGGER.info("Graphics driver changed, deleting " + binaries.size() + " cached program binaries");
+                binaries.forEach(ProgramBinaryCache::delete);
+            }
+            Files.createDirectories(folder);
+            Files.write(driverFile, driver.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (IOException e)
+        {
+            LOGGER.warn("Failed to check program binary cache driver", e);
+        }
+    }
+
+    /**
+     * Deletes the least recently used binaries until the cache fits in {@value #MAX_CACHE_BYTES} bytes. Binaries deleted by another thread while pruning are skipped.
+     */
+    private static synchronized void prune()
+    {
+        List<Path> binaries;
+        try
+        {
+            binaries = listBinaries(getCacheFolder());
+        }
+        catch (IOException e)
+        {
+            LOGGER.warn("Failed to list program binaries", e);
+            return;
+        }
+
+        long size = 0;
+        Map<Path, Long> sizes = new HashMap<>();
+        Map<Path, Long> lastUsed = new HashMap<>();
+        for (Path file : binaries)
+        {
+            try
+            {
+                long fileSize = Files.size(file);
+                lastUsed.put(file, Files.getLastModifiedTime(file).toMillis());
+                sizes.put(file, fileSize);
+                size += fileSize;
+            }
+            catch (IOException ignored)
+            {
+            }
+        }
+        if (size <= MAX_CACHE_BYTES)
+            return;
+
+        List<Path> files = new ArrayList<>(sizes.keySet());
+        files.sort(Comparator.comparingLong(lastUsed::get));
+        for (Path file : files)
+        {
+            if (size <= MAX_CACHE_BYTES)
+                break;
+            size -= sizes.get(file);
+            delete(file);
+        }
+    }
+
+    private static List<Path> listBinaries(Path folder) throws IOException
+    {
+        if (!Files.isDirectory(folder))
+            return new ArrayList<>();
+        try (Stream<Path> files = Files.list(folder))
+        {
+            return files.filter(file -> file.getFileName().toString().endsWith(".bin")).collect(Collectors.toList());
+        }
+    }
+
+    private static Path getCacheFolder()
+    {
+        if (cacheFolder == null)
+            cacheFolder = Minecraft.getInstance().gameDirectory.toPath().resolve("sonar-program-cache");
+        return cacheFolder;
+    }
+
+    private static Path getFile(String key)
+    {
+        return getCacheFolder().resolve(key + ".bin");
+    }
+
+    private static void delete(Path file)
+    {
+        try
+        {
+            Files.deleteIfExists(file);
+        }
+        catch (IOException e)
+        {
+            LOGGER.warn("Failed to delete program binary: " + file, e);
+        }
+    }
+}
@@ -5,13 +5,14 @@ import net.minecraftforge.client.event.ColorHandlerEvent;
 import net.minecraftforge.eventbus.api.EventPriority;
 import net.minecraftforge.eventbus.api.IEventBus;
 import org.jetbrains.annotations.ApiStatus;
-import org.lwjgl.opengl.ARBComputeShader;
-import org.lwjgl.opengl.GL;
-import org.lwjgl.opengl.GL43C;
-import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.opengl.*;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 
 /**
  * <p>Constants for potentially supported shader options.</p>
+ * <p>Where a feature is available through either a core version or an ARB extension, the extension shares the core function names, so the core <code>GLxxC</code> classes can be used in either case.</p>
  *
  * @author Ocelot
  * @since 7.0.0
@@ -20,6 +21,13 @@ public class ShaderConst
 {
     private static ShaderMode computeMode;
     private static ShaderMode geometryMode;
+    private static ShaderMode programBinaryMode;
+    private static ShaderMode parallelCompileMode;
+    private static ShaderMode programUniformMode;
+    private static ShaderMode uniformBufferMode;
+    private static ShaderMode bufferStorageMode;
+    private static ShaderMode storageBufferMode;
+    private static ShaderMode memoryBarrierMode;
 
     @ApiStatus.Internal
     public static void init(IEventBus bus)
@@ -58,6 +66,104 @@ public class ShaderConst
             {
                 geometryMode = ShaderMode.UNSUPPORTED;
             }
+
+            if (gLCapabilities.OpenGL41)
+            {
+                programBinaryMode = ShaderMode.BASE;
+            }
+            else if (gLCapabilities.GL_ARB_get_program_binary)
+            {
+                programBinaryMode = ShaderMode.ARB;
+            }
+            else
+            {
+                programBinaryMode = ShaderMode.UNSUPPORTED;
+            }
+
+            // Drivers are allowed to expose the extension without supporting any binary formats
+            if (programBinaryMode != ShaderMode.UNSUPPORTED && GL11C.glGetInteger(GL41C.GL_NUM_PROGRAM_BINARY_FORMATS) <= 0)
+                programBinaryMode = ShaderMode.UNSUPPORTED;
+
+            if (gLCapabilities.OpenGL41)
+            {
+                programUniformMode = ShaderMode.BASE;
+            }
+            else if (gLCapabilities.GL_ARB_separate_shader_objects)
+            {
+                programUniformMode = ShaderMode.ARB;
+            }
+            else
+            {
+                programUniformMode = ShaderMode.UNSUPPORTED;
+            }
+
+            if (gLCapabilities.OpenGL31)
+            {
+                uniformBufferMode = ShaderMode.BASE;
+            }
+            else if (gLCapabilities.GL_ARB_uniform_buffer_object)
+            {
+                uniformBufferMode = ShaderMode.ARB;
+            }
+            else
+            {
+                uniformBufferMode = ShaderMode.UNSUPPORTED;
+            }
+
+            // Persistent mappings are only safe to write with fences
+            if (gLCapabilities.OpenGL44)
+            {
+                bufferStorageMode = ShaderMode.BASE;
+            }
+            else if (gLCapabilities.GL_ARB_buffer_storage && (gLCapabilities.OpenGL32 || gLCapabilities.GL_ARB_sync))
+            {
+                bufferStorageMode = ShaderMode.ARB;
+            }
+            else
+            {
+                bufferStorageMode = ShaderMode.UNSUPPORTED;
+            }
+
+            if (gLCapabilities.OpenGL43)
+            {
+                storageBufferMode = ShaderMode.BASE;
+            }
+            else if (gLCapabilities.GL_ARB_shader_storage_buffer_object && gLCapabilities.GL_ARB_program_interface_query)
+            {
+                storageBufferMode = ShaderMode.ARB;
+            }
+            else
+            {
+                storageBufferMode = ShaderMode.UNSUPPORTED;
+            }
+
+            if (gLCapabilities.OpenGL42)
+            {
+                memoryBarrierMode = ShaderMode.BASE;
+            }
+            else if (gLCapabilities.GL_ARB_shader_image_load_store)
+            {
+                memoryBarrierMode = ShaderMode.ARB;
+            }
+            else
+            {
+                memoryBarrierMode = ShaderMode.UNSUPPORTED;
+            }
+
+            if (gLCapabilities.GL_KHR_parallel_shader_compile)
+            {
+                parallelCompileMode = ShaderMode.KHR;
+                KHRParallelShaderCompile.glMaxShaderCompilerThreadsKHR(0xFFFFFFFF);
+            }
+            else if (gLCapabilities.GL_ARB_parallel_shader_compile)
+            {
+                parallelCompileMode = ShaderMode.ARB;
+                ARBParallelShaderCompile.glMaxShaderCompilerThreadsARB(0xFFFFFFFF);
+            }
+            else
+            {
+                parallelCompileMode = ShaderMode.UNSUPPORTED;
+            }
         });
     }
 
@@ -103,6 +209,112 @@ public class ShaderConst
         }
     }
 
+    /**
+     * If memory barriers are supported, utilizes the base or ARB image load store extensions to order shader writes before later reads. Does nothing if memory barriers are unsupported, since nothing can write memory incoherently without them.
+     *
+     * @see GL42C#glMemoryBarrier(int)
+     * @see ARBShaderImageLoadStore#glMemoryBarrier(int)
+     */
+    public static void glMemoryBarrier(int barriers)
+    {
+        switch (memoryBarrierMode)
+        {
+            case BASE:
+                GL42C.glMemoryBarrier(barriers);
+                break;
+            case ARB:
+                ARBShaderImageLoadStore.glMemoryBarrier(barriers);
+                break;
+        }
+    }
+
+    /**
+     * If program binaries are supported, utilizes the base or ARB program binary extensions to load a program from a binary.
+     *
+     * @see GL41C#glProgramBinary(int, int, ByteBuffer)
+     * @see ARBGetProgramBinary#glProgramBinary(int, int, ByteBuffer)
+     */
+    public static void glProgramBinary(int program, int binaryFormat, ByteBuffer binary)
+    {
+        switch (programBinaryMode)
+        {
+            default:
+                throw new UnsupportedOperationException("glProgramBinary is unsupported");
+            case BASE:
+                GL41C.glProgramBinary(program, binaryFormat, binary);
+                break;
+            case ARB:
+                ARBGetProgramBinary.glProgramBinary(program, binaryFormat, binary);
+                break;
+        }
+    }
+
+    /**
+     * If program binaries are supported, utilizes the base or ARB program binary extensions to retrieve the binary of a linked program.
+     *
+     * @see GL41C#glGetProgramBinary(int, IntBuffer, IntBuffer, ByteBuffer)
+     * @see ARBGetProgramBinary#glGetProgramBinary(int, IntBuffer, IntBuffer, ByteBuffer)
+     */
+    public static void glGetProgramBinary(int program, IntBuffer length, IntBuffer binaryFormat, ByteBuffer binary)
+    {
+        switch (programBinaryMode)
+        {
+            default:
+                throw new UnsupportedOperationException("glGetProgramBinary is unsupported");
+            case BASE:
+                GL41C.glGetProgramBinary(program, length, binaryFormat, binary);
+                break;
+            case ARB:
+                ARBGetProgramBinary.glGetProgramBinary(program, length, binaryFormat, binary);
+                break;
+        }
+    }
+
+    /**
+     * If program binaries are supported, utilizes the base or ARB program binary extensions to set a program parameter.
+     *
+     * @see GL41C#glProgramParameteri(int, int, int)
+     * @see ARBGetProgramBinary#glProgramParameteri(int, int, int)
+     */
+    public static void glProgramParameteri(int program, int pname, int value)
+    {
+        switch (programBinaryMode)
+        {
+            default:
+                throw new UnsupportedOperationException("glProgramParameteri is unsupported");
+            case BASE:
+                GL41C.glProgramParameteri(program, pname, value);
+                break;
+            case ARB:
+                ARBGetProgramBinary.glProgramParameteri(program, pname, value);
+                break;
+        }
+    }
+
+    /**
+     * Checks whether the driver has finished compiling the specified shader. If parallel compilation is unsupported, compiles are always treated as complete since querying the status will block.
+     *
+     * @param shader The shader to check
+     * @return Whether querying the compile status will not block
+     * @see KHRParallelShaderCompile#GL_COMPLETION_STATUS_KHR
+     */
+    public static boolean isShaderComplete(int shader)
+    {
+        return parallelCompileMode == ShaderMode.UNSUPPORTED || GL20C.glGetShaderi(shader, KHRParallelShaderCompile.GL_COMPLETION_STATUS_KHR) == GL11C.GL_TRUE;
+    }
+
+    /**
+     * Checks whether the driver has finished linking the specified program. If parallel compilation is unsupported, links are always treated as complete since querying the status will block.
+     *
+     * @param program The program to check
+     * @return Whether querying the link status will not block
+     * @see KHRParallelShaderCompile#GL_COMPLETION_STATUS_KHR
+     */
+    public static boolean isProgramComplete(int program)
+    {
+        return parallelCompileMode == ShaderMode.UNSUPPORTED || GL20C.glGetProgrami(program, KHRParallelShaderCompile.GL_COMPLETION_STATUS_KHR) == GL11C.GL_TRUE;
+    }
+
     /**
      * @return Whether compute shaders are supported in any capacity
      */
@@ -119,6 +331,62 @@ public class ShaderConst
         return geometryMode != ShaderMode.UNSUPPORTED;
     }
 
+    /**
+     * @return Whether linked programs can be saved and loaded as binaries in any capacity
+     */
+    public static boolean isProgramBinarySupported()
+    {
+        return programBinaryMode != ShaderMode.UNSUPPORTED;
+    }
+
+    /**
+     * @return Whether the driver can compile shaders and link programs on its own threads
+     */
+    public static boolean isParallelCompileSupported()
+    {
+        return parallelCompileMode != ShaderMode.UNSUPPORTED;
+    }
+
+    /**
+     * @return Whether uniforms can be uploaded into programs that are not bound
+     */
+    public static boolean isProgramUniformSupported()
+    {
+        return programUniformMode != ShaderMode.UNSUPPORTED;
+    }
+
+    /**
+     * @return Whether uniform blocks can be backed by buffers
+     */
+    public static boolean isUniformBufferSupported()
+    {
+        return uniformBufferMode != ShaderMode.UNSUPPORTED;
+    }
+
+    /**
+     * @return Whether buffers can be allocated with immutable storage and persistently mapped. Fences are always available when this is supported
+     */
+    public static boolean isBufferStorageSupported()
+    {
+        return bufferStorageMode != ShaderMode.UNSUPPORTED;
+    }
+
+    /**
+     * @return Whether shader storage buffers are supported in any capacity
+     */
+    public static boolean isStorageBufferSupported()
+    {
+        return storageBufferMode != ShaderMode.UNSUPPORTED;
+    }
+
+    /**
+     * @return Whether shaders can write to images with <code>image2D</code>
+     */
+    public static boolean isImageLoadStoreSupported()
+    {
+        return memoryBarrierMode != ShaderMode.UNSUPPORTED;
+    }
+
     /**
      * <p>The current mode of GL shaders.</p>
      *
@@ -126,6 +394,6 @@ public class ShaderConst
      */
     enum ShaderMode
     {
-        UNSUPPORTED, BASE, ARB, EXT
+        UNSUPPORTED, BASE, ARB, EXT, KHR
     }
 }
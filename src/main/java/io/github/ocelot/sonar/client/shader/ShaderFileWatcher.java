@@ -0,0 +1,166 @@
+package io.github.ocelot.sonar.client.shader;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import net.minecraft.client.Minecraft;
+import net.minecraftforge.fml.ModList;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * <p>Watches the shader folders of loose resource packs and mod sources, reloading shaders shortly after any of them change.</p>
+ * <p>Only intended for development, where shaders are edited while the game is running.</p>
+ *
+ * @author Ocelot
+ * @since 7.1.0
+ */
+final class ShaderFileWatcher implements Runnable
+{
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final long DEBOUNCE_MS = 100;
+
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> keys;
+
+    private ShaderFileWatcher(WatchService watchService)
+    {
+        this.watchService = watchService;
+        this.keys = new HashMap<>();
+    }
+
+    /**
+     * Starts watching all loose resource packs and mod folders on a new daemon thread.
+     */
+    static void start()
+    {
+        List<Path> roots = new ArrayList<>();
+        File[] packs = Minecraft.getInstance().getResourcePackDirectory().listFiles(File::isDirectory);
+        if (packs != null)
+            for (File pack : packs)
+                roots.add(pack.toPath());
+        ModList.get().getModFiles().forEach(info -> roots.add(info.getFile().getFilePath()));
+
+        try
+        {
+            ShaderFileWatcher watcher = new ShaderFileWatcher(FileSystems.getDefault().newWatchService());
+            for (Path root : roots)
+            {
+                Path assets = root.resolve("assets");
+                if (!Files.isDirectory(assets))
+                    continue;
+                try (Stream<Path> namespaces = Files.list(assets))
+                {
+                    for (Path namespace : (Iterable<Path>) namespaces::iterator)
+                    {
+                        Path shaders = namespace.resolve("shaders");
+                        if (Files.isDirectory(shaders))
+                            watcher.register(shaders);
+                    }
+                }
+            }
+
+            if (watcher.keys.isEmpty())
+            {
+                watcher.watchService.close();
+                return;
+            }
+
+            Thread thread = new Thread(watcher, "Sonar Shader Watcher");
+            thread.setDaemon(true);
+            thread.start();
+            LOGGER.info("Watching " + watcher.keys.size() + " shader folders for changes");
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Failed to start shader file watcher", e);
+        }
+    }
+
+    private void register(Path folder) throws IOException
+    {
+        try (Stream<Path> folders = Files.walk(folder))
+        {
+            for (Path path : (Iterable<Path>) folders::iterator)
+                if (Files.isDirectory(path))
+                    this.keys.put(path.register(this.watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), path);
+        }
+    }
+
+    private boolean processEvents(WatchKey key)
+    {
+        Path folder = this.keys.get(key);
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+            if (folder == null || event.kind() == OVERFLOW)
+            {
+                changed = true;
+                continue;
+            }
+
+            Path path = folder.resolve((Path) event.context());
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(path))
+            {
+                try
+                {
+                    this.register(path);
+                }
+                catch (IOException e)
+                {
+                    LOGGER.error("Failed to watch shader folder: " + path, e);
+                }
+                continue;
+            }
+
+            String fileName = path.getFileName().toString();
+            if (ShaderProgram.Shader.byExtension(fileName) != null || fileName.endsWith(".json") || isInclude(path))
+                changed = true;
+        }
+
+        if (!key.reset())
+            this.keys.remove(key);
+        return changed;
+    }
+
+    private static boolean isInclude(Path path)
+    {
+        for (Path name : path)
+            if ("include".equals(name.toString()))
+                return true;
+        return false;
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (true)
+            {
+                boolean changed = this.processEvents(this.watchService.take());
+
+                // Editors often write files in several steps, so wait for changes to settle
+                WatchKey key;
+                while ((key = this.watchService.poll(DEBOUNCE_MS, TimeUnit.MILLISECONDS)) != null)
+                    changed |= this.processEvents(key);
+
+                if (changed)
+                    RenderSystem.recordRenderCall(ShaderLoader::hotReload);
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException ignored)
+        {
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package io.github.ocelot.sonar.client.shader;
+
+import net.minecraft.resources.ResourceLocation;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Resolves <code>#include &lt;namespace:path&gt;</code> directives in shader sources.</p>
+ * <p>Includes are loaded from <code>assets/namespace/shaders/include/path</code> in any resource pack. Each unit is only parsed again when its source changes and is only included once per shader, even when several files include it.</p>
+ *
+ * @author Ocelot
+ * @since 7.1.0
+ */
+final class ShaderIncludes
+{
+    private static final Pattern INCLUDE = Pattern.compile("^\\s*#\\s*include\\s+<([^>]+)>\\s*$");
+    private static final Pattern LOG_LINE = Pattern.compile("^(ERROR: |WARNING: )?(\\d+)([:(])(\\d+)");
+
+    private final Map<ResourceLocation, IncludeUnit> units;
+
+    ShaderIncludes()
+    {
+        this.units = new HashMap<>();
+    }
+
+    /**
+     * Replaces all include units with the specified sources. Units with the same source as before are not parsed again.
+     *
+     * @param sources The source of each include unit
+     * @return The ids of all includes that were added, changed, or removed
+     */
+    Set<ResourceLocation> update(Map<ResourceLocation, String> sources)
+    {
+        Set<ResourceLocation> changed = new HashSet<>(this.units.keySet());
+        changed.removeAll(sources.keySet());
+        this.units.keySet().retainAll(sources.keySet());
+        sources.forEach((id, source) ->
+        {
+            IncludeUnit unit = this.units.get(id);
+            if (unit != null && unit.source.equals(source))
+                return;
+            this.units.put(id, new IncludeUnit(id, source));
+            changed.add(id);
+        });
+        return changed;
+    }
+
+    /**
+     * Expands all includes in the specified shader source.
+     *
+     * @param id     The id of the shader
+     * @param source The source of the shader
+     * @return The expanded source
+     * @throws ShaderException If an include could not be found or includes itself
+     */
+    Expanded expand(ResourceLocation id, String source) throws ShaderException
+    {
+        Expanded expanded = new Expanded();
+        this.expand(new IncludeUnit(id, source), expanded, new ArrayDeque<>());
+        return expanded;
+    }
+
+    private void expand(IncludeUnit unit, Expanded expanded, Deque<ResourceLocation> stack) throws ShaderException
+    {
+        stack.push(unit.id);
+        for (int i = 0; i < unit.lines.length; i++)
+        {
+            String includeName = unit.includes.get(i);
+            if (includeName == null)
+            {
+                expanded.append(unit.lines[i], unit.id, i + 1);
+                continue;
+            }
+
+            ResourceLocation include = ResourceLocation.tryParse(includeName);
+            if (include == null)
+                throw new ShaderException(unit.id + ":" + (i + 1) + ": Invalid include " + includeName);
+
+            if (stack.contains(include))
+                throw new ShaderException(unit.id + ":" + (i + 1) + ": Circular include of " + include);
+
+            // Keep the line count the same so the line after the include still maps correctly
+            expanded.append("", unit.id, i + 1);
+            if (!expanded.dependencies.add(include))
+                continue;
+
+            IncludeUnit includeUnit = this.units.get(include);
+            if (includeUnit == null)
+                throw new ShaderException(unit.id + ":" + (i + 1) + ": Unknown include " + include);
+            this.expand(includeUnit, expanded, stack);
+        }
+        stack.pop();
+    }
+
+    /**
+     * <p>A parsed shader source file.</p>
+     *
+     * @author Ocelot
+     */
+    private static class IncludeUnit
+    {
+        private final ResourceLocation id;
+        private final String source;
+        private final String[] lines;
+        private final Map<Integer, String> includes;
+
+        private IncludeUnit(ResourceLocation id, String source)
+        {
+            this.id = id;
+            this.source = source;
+            this.lines = source.split("\r?\n", -1);
+            this.includes = new HashMap<>();
+            for (int i = 0; i < this.lines.length; i++)
+            {
+                if (!this.lines[i].contains("#"))
+                    continue;
+                Matcher matcher = INCLUDE.matcher(this.lines[i]);
+                if (matcher.matches())
+                    this.includes.put(i, matcher.group(1));
+            }
+        }
+    }
+
+    /**
+     * <p>A shader source with all includes expanded.</p>
+     *
+     * @author Ocelot
+     */
+    static class Expanded
+    {
+        private final StringBuilder source;
+        private final Set<ResourceLocation> dependencies;
+        private final List<ResourceLocation> lineFiles;
+        private final List<Integer> lineNumbers;
+
+        private Expanded()
+        {
+            this.source = new StringBuilder();
+            this.dependencies = new HashSet<>();
+            this.lineFiles = new ArrayList<>();
+            this.lineNumbers = new ArrayList<>();
+        }
+
+        private void append(String line, ResourceLocation file, int lineNumber)
+        {
+            if (!this.lineFiles.isEmpty())
+                this.source.append('\n');
+            this.source.append(line);
+            this.lineFiles.add(file);
+            this.lineNumbers.add(lineNumber);
+        }
+
+        /**
+         * Creates a copy of this source with the specified macros defined after the <code>#version</code> directive. The defined lines map to the version line in compile logs.
+         *
+         * @param defines The names of the macros to define
+         * @return The source with the macros defined
+         */
+        Expanded withDefines(List<String> defines)
+        {
+            String[] lines = this.getSource().split("\n", -1);
+            int insert = 0;
+            for (int i = 0; i < lines.length; i++)
+            {
+                if (lines[i].trim().startsWith("#version"))
+                {
+                    insert = i + 1;
+                    break;
+                }
+            }
+
+            Expanded expanded = new Expanded();
+            expanded.dependencies.addAll(this.dependencies);
+            int defineLine = Math.max(0, insert - 1);
+            for (int i = 0; i <= lines.length; i++)
+            {
+                if (i == insert)
+                    for (String define : defines)
+                        expanded.append("#define " + define, this.lineFiles.get(defineLine), this.lineNumbers.get(defineLine));
+                if (i < lines.length)
+                    expanded.append(lines[i], this.lineFiles.get(i), this.lineNumbers.get(i));
+            }
+            return expanded;
+        }
+
+        /**
+         * @return The expanded source code
+         */
+        String getSource()
+        {
+            return this.source.toString();
+        }
+
+        /**
+         * @return Every include this source depends on, including indirect includes
+         */
+        Set<ResourceLocation> getDependencies()
+        {
+            return this.dependencies;
+        }
+
+        /**
+         * Replaces the line numbers a driver reports in a compile log with the file and line they originally came from.
+         *
+         * @param log The compile log from the driver
+         * @return The log with remapped line numbers
+         */
+        String remapLog(String log)
+        {
+            StringBuilder builder = new StringBuilder();
+            for (String line : log.split("\r?\n"))
+            {
+                Matcher matcher = LOG_LINE.matcher(line);
+                if (matcher.find())
+                {
+                    int index = Integer.parseInt(matcher.group(4)) - 1;
+                    if (index >= 0 && index < this.lineFiles.size())
+                    {
+                        String prefix = matcher.group(1) != null ? matcher.group(1) : "";
+                        int end = matcher.end();
+                        if ("(".equals(matcher.group(3)) && end < line.length() && line.charAt(end) == ')')
+                            end++;
+                        line = prefix + this.lineFiles.get(index) + ":" + this.lineNumbers.get(index) + line.substring(end);
+                    }
+                }
+                if (builder.length() > 0)
+                    builder.append('\n');
+                builder.append(line);
+            }
+            return builder.toString();
+        }
+    }
+}
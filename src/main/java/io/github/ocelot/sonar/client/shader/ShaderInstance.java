@@ -3,21 +3,26 @@ package io.github.ocelot.sonar.client.shader;
 import com.mojang.math.Matrix4f;
 import com.mojang.math.Vector3f;
 import com.mojang.math.Vector4f;
-import it.unimi.dsi.fastutil.objects.Object2IntArrayMap;
+import io.github.ocelot.sonar.client.util.GlStateTracker;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import org.apache.commons.lang3.Validate;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.lwjgl.BufferUtils;
+import org.jetbrains.annotations.Nullable;
+import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.NativeResource;
 
-import java.nio.FloatBuffer;
-import java.util.Map;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
 import java.util.OptionalInt;
 
 import static org.lwjgl.opengl.GL20C.*;
+import static org.lwjgl.opengl.GL43C.GL_COMPUTE_WORK_GROUP_SIZE;
 
 /**
  * <p>A usable instance of a {@link ShaderProgram}.</p>
+ * <p>Uniforms are only uploaded right away while this shader is bound inside a {@link GlStateTracker} sequence, where the bound program is known. Otherwise they are uploaded by the next {@link #bind()} or {@link #flush()}, so a program bound directly with <code>glUseProgram</code> does not receive them.</p>
  *
  * @author Ocelot
  * @since 7.0.0
@@ -25,15 +30,140 @@ import static org.lwjgl.opengl.GL20C.*;
 public class ShaderInstance implements NativeResource
 {
     private static final Logger LOGGER = LogManager.getLogger();
-    private static final FloatBuffer MATRIX_4_4 = BufferUtils.createFloatBuffer(4 * 4);
 
-    private final Map<CharSequence, Integer> uniforms;
+    private final UniformMap uniforms;
+    private final ShaderInstance base;
+    private final long keywords;
+    private Long2ObjectMap<ShaderInstance> variants;
     private int program;
+    private boolean linkPending;
+    private boolean dirty;
+    private int[] workGroupSize;
 
     ShaderInstance(int program)
     {
-        this.program = program;
-        this.uniforms = new Object2IntArrayMap<>();
+        this(program, null, 0);
+    }
+
+    ShaderInstance(int program, @Nullable ShaderInstance base, long keywords)
+    {
+        this.uniforms = new UniformMap();
+        this.base = base != null ? base : this;
+        this.keywords = keywords;
+        this.setProgram(program);
+    }
+
+    /**
+     * Enumerates every active uniform in the current program and points all handles at their new locations.
+     */
+    private void introspect()
+    {
+        this.uniforms.forEach(uniform -> uniform.update(-1, 0, 0));
+        if (this.program <= 0)
+            return;
+
+        int count = glGetProgrami(this.program, GL_ACTIVE_UNIFORMS);
+        int maxLength = glGetProgrami(this.program, GL_ACTIVE_UNIFORM_MAX_LENGTH);
+        try (MemoryStack stack = MemoryStack.stackPush())
+        {
+            IntBuffer size = stack.mallocInt(1);
+            IntBuffer type = stack.mallocInt(1);
+            for (int i = 0; i < count; i++)
+            {
+                String name = glGetActiveUniform(this.program, i, maxLength, size, type);
+                int location = glGetUniformLocation(this.program, name);
+                if (location == -1) // Uniforms in blocks have no location
+                    continue;
+
+                // Arrays are reported as "name[0]", but are usually referred to by their base name
+                String baseName = name.endsWith("[0]") ? name.substring(0, name.length() - 3) : name;
+                ShaderUniform uniform = this.uniforms.get(baseName);
+                if (uniform == null)
+                {
+                    uniform = new ShaderUniform(this, baseName.intern());
+                    this.uniforms.put(uniform.getName(), uniform);
+                    if (!baseName.equals(name))
+                        this.uniforms.put(name.intern(), uniform);
+                }
+                uniform.update(location, type.get(0), size.get(0));
+            }
+        }
+    }
+
+    /**
+     * Retrieves the variant of this shader with exactly the specified keywords enabled. Keywords are declared with <code>keywords</code> in the program JSON and defined after the <code>#version</code> directive of every shader.
+     * <p>Variants are compiled the first time they are bound and cached for the lifetime of the shader without any keywords. Prefer resolving a mask once with {@link #getKeywordMask(String...)} and using {@link #withKeywords(long)} every frame.</p>
+     *
+     * @param keywords The names of the keywords to enable
+     * @return The variant with those keywords
+     */
+    public ShaderInstance withKeywords(String... keywords)
+    {
+        return this.withKeywords(this.getKeywordMask(keywords));
+    }
+
+    /**
+     * Retrieves the variant of this shader with exactly the specified keywords enabled.
+     *
+     * @param keywords The mask of keywords to enable, where each bit is the index of a keyword in the program JSON
+     * @return The variant with those keywords
+     * @see #getKeywordMask(String...)
+     */
+    public ShaderInstance withKeywords(long keywords)
+    {
+        if (keywords == 0)
+            return this.base;
+        if (this.base != this)
+            return this.base.withKeywords(keywords);
+
+        if (this.variants == null)
+            this.variants = new Long2ObjectOpenHashMap<>();
+        ShaderInstance variant = this.variants.get(keywords);
+        if (variant == null)
+        {
+            variant = ShaderLoader.createVariant(this, keywords);
+            this.variants.put(keywords, variant);
+        }
+        return variant;
+    }
+
+    /**
+     * Converts keyword names into a mask that can be passed to {@link #withKeywords(long)}. Unknown keywords are ignored.
+     *
+     * @param keywords The names of the keywords
+     * @return The mask of those keywords
+     */
+    public long getKeywordMask(String... keywords)
+    {
+        return ShaderLoader.getKeywordMask(this.base, keywords);
+    }
+
+    /**
+     * @return The mask of keywords enabled in this shader
+     */
+    public long getKeywords()
+    {
+        return keywords;
+    }
+
+    /**
+     * Retrieves a handle to the uniform with the specified name. The same handle is returned for the lifetime of this instance and remains valid when the program is reloaded, so it can be stored to skip looking up the uniform every frame.
+     *
+     * @param uniformName The name of the uniform to fetch
+     * @return The handle to the uniform. The handle is invalid if the program does not use a uniform with that name
+     */
+    public ShaderUniform getUniformHandle(CharSequence uniformName)
+    {
+        this.link();
+        ShaderUniform uniform = this.uniforms.get(uniformName);
+        if (uniform == null)
+        {
+            uniform = new ShaderUniform(this, uniformName.toString());
+            this.uniforms.put(uniform.getName(), uniform);
+            if (this.program > 0)
+                LOGGER.warn("Unknown uniform: " + uniformName);
+        }
+        return uniform;
     }
 
     /**
@@ -44,14 +174,8 @@ public class ShaderInstance implements NativeResource
      */
     public OptionalInt getUniform(CharSequence uniformName)
     {
-        int uniform = this.uniforms.computeIfAbsent(uniformName, key ->
-        {
-            int location = glGetUniformLocation(this.program, uniformName);
-            if (location == -1)
-                LOGGER.warn("Unknown uniform: " + uniformName);
-            return location;
-        });
-        return uniform == -1 ? OptionalInt.empty() : OptionalInt.of(uniform);
+        int location = this.getUniformHandle(uniformName).getLocation();
+        return location == -1 ? OptionalInt.empty() : OptionalInt.of(location);
     }
 
     /**
@@ -120,7 +244,7 @@ public class ShaderInstance implements NativeResource
     {
         if (values.length == 0)
             return;
-        this.getUniform(uniformName).ifPresent(uniform -> glUniform1iv(uniform, values));
+        this.getUniformHandle(uniformName).setInt(values);
     }
 
     /**
@@ -134,7 +258,7 @@ public class ShaderInstance implements NativeResource
         if (values.length == 0)
             return;
         Validate.isTrue(values.length % 2 == 0);
-        this.getUniform(uniformName).ifPresent(uniform -> glUniform2iv(uniform, values));
+        this.getUniformHandle(uniformName).setInt(values);
     }
 
     /**
@@ -148,7 +272,7 @@ public class ShaderInstance implements NativeResource
         if (values.length == 0)
             return;
         Validate.isTrue(values.length % 3 == 0);
-        this.getUniform(uniformName).ifPresent(uniform -> glUniform3iv(uniform, values));
+        this.getUniformHandle(uniformName).setInt(values);
     }
 
     /**
@@ -162,7 +286,7 @@ public class ShaderInstance implements NativeResource
         if (values.length == 0)
             return;
         Validate.isTrue(values.length % 4 == 0);
-        this.getUniform(uniformName).ifPresent(uniform -> glUniform4iv(uniform, values));
+        this.getUniformHandle(uniformName).setInt(values);
     }
 
     /**
@@ -175,7 +299,7 @@ public class ShaderInstance implements NativeResource
     {
         if (values.length == 0)
             return;
-        this.getUniform(uniformName).ifPresent(uniform -> glUniform1fv(uniform, values));
+        this.getUniformHandle(uniformName).setFloat(values);
     }
 
     /**
@@ -189,7 +313,7 @@ public class ShaderInstance implements NativeResource
         if (values.length == 0)
             return;
         Validate.isTrue(values.length % 2 == 0);
-        this.getUniform(uniformName).ifPresent(uniform -> glUniform2fv(uniform, values));
+        this.getUniformHandle(uniformName).setFloat(values);
     }
 
     /**
@@ -203,7 +327,7 @@ public class ShaderInstance implements NativeResource
         if (values.length == 0)
             return;
         Validate.isTrue(values.length % 3 == 0);
-        this.getUniform(uniformName).ifPresent(uniform -> glUniform3fv(uniform, values));
+        this.getUniformHandle(uniformName).setFloat(values);
     }
 
     /**
@@ -217,7 +341,7 @@ public class ShaderInstance implements NativeResource
         if (values.length == 0)
             return;
         Validate.isTrue(values.length % 4 == 0);
-        this.getUniform(uniformName).ifPresent(uniform -> glUniform4fv(uniform, values));
+        this.getUniformHandle(uniformName).setFloat(values);
     }
 
     /**
@@ -267,21 +391,42 @@ public class ShaderInstance implements NativeResource
      */
     public void loadMatrix(CharSequence uniformName, Matrix4f matrix)
     {
-        this.getUniform(uniformName).ifPresent(uniform ->
-        {
-            matrix.store(MATRIX_4_4);
-            glUniformMatrix4fv(uniform, false, MATRIX_4_4);
-        });
+        this.getUniformHandle(uniformName).setMatrix(matrix);
     }
 
     /**
-     * Binds this shader for using with future render calls.
+     * Binds this shader for using with future render calls. Any uniforms changed while this shader was not bound are uploaded.
      */
     public void bind()
     {
+        this.link();
         if (this.program <= 0)
             return;
-        glUseProgram(this.program);
+        GlStateTracker.useProgram(this.program);
+        if (this.dirty)
+        {
+            this.dirty = false;
+            this.uniforms.forEach(uniform -> uniform.flush(0));
+        }
+    }
+
+    /**
+     * Uploads any uniforms changed while this shader was not bound without binding it. If <code>glProgramUniform</code> is not supported, the uniforms are uploaded the next time this shader is bound instead.
+     */
+    public void flush()
+    {
+        if (!this.dirty || this.program <= 0)
+            return;
+        if (this.isBound())
+        {
+            this.dirty = false;
+            this.uniforms.forEach(uniform -> uniform.flush(0));
+        }
+        else if (ShaderConst.isProgramUniformSupported())
+        {
+            this.dirty = false;
+            this.uniforms.forEach(uniform -> uniform.flush(this.program));
+        }
     }
 
     /**
@@ -289,23 +434,88 @@ public class ShaderInstance implements NativeResource
      */
     public static void unbind()
     {
-        glUseProgram(0);
+        GlStateTracker.useProgram(0);
+    }
+
+    /**
+     * @return The local size of each work group in the x, y, and z axes. Only valid for compute programs
+     */
+    int[] getWorkGroupSize()
+    {
+        if (this.workGroupSize == null)
+        {
+            this.workGroupSize = new int[3];
+            if (this.program > 0)
+                glGetProgramiv(this.program, GL_COMPUTE_WORK_GROUP_SIZE, this.workGroupSize);
+        }
+        return this.workGroupSize;
+    }
+
+    void markDirty()
+    {
+        this.dirty = true;
+    }
+
+    /**
+     * @return Whether this shader is known to be bound. Outside of a sequence anything may have bound another program since, so this is always <code>false</code>
+     */
+    boolean isBound()
+    {
+        return this.program > 0 && GlStateTracker.isInSequence() && GlStateTracker.getProgram() == this.program;
+    }
+
+    private void link()
+    {
+        if (!this.linkPending)
+            return;
+        this.linkPending = false;
+        ShaderLoader.link(this);
     }
 
     @Override
     public void free()
     {
+        if (this.base != this)
+        {
+            if (this.base.variants != null)
+                this.base.variants.remove(this.keywords);
+        }
+        else if (this.variants != null)
+        {
+            // Freeing a variant removes it from the map
+            new ArrayList<>(this.variants.values()).forEach(ShaderInstance::free);
+        }
+
+        this.linkPending = false;
         if (this.program == 0)
             return;
         if (this.program > 0)
+        {
             glDeleteProgram(this.program);
+            GlStateTracker.onProgramDeleted(this.program);
+        }
         this.setProgram(0);
     }
 
     void setProgram(int program)
     {
         this.program = program;
-        this.uniforms.clear();
+        this.dirty = false;
+        this.workGroupSize = null;
+        this.introspect();
+    }
+
+    void setLinkPending(boolean linkPending)
+    {
+        this.linkPending = linkPending;
+    }
+
+    /**
+     * @return Whether this instance will link its program the next time it is bound
+     */
+    public boolean isLinkPending()
+    {
+        return linkPending;
     }
 
     /**
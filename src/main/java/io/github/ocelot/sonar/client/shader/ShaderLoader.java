@@ -3,33 +3,43 @@ package io.github.ocelot.sonar.client.shader;
 import com.google.gson.JsonParser;
 import com.mojang.blaze3d.systems.RenderSystem;
 import com.mojang.serialization.JsonOps;
-import it.unimi.dsi.fastutil.objects.Object2IntArrayMap;
+import io.github.ocelot.sonar.client.util.FramePoller;
+import io.github.ocelot.sonar.client.util.GlStateTracker;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.Util;
 import net.minecraft.client.Minecraft;
 import net.minecraft.resources.ResourceLocation;
 import net.minecraft.server.packs.resources.PreparableReloadListener;
 import net.minecraft.server.packs.resources.ReloadableResourceManager;
 import net.minecraft.server.packs.resources.Resource;
 import net.minecraft.server.packs.resources.ResourceManager;
+import net.minecraft.util.profiling.InactiveProfiler;
 import net.minecraft.util.profiling.ProfilerFiller;
 import net.minecraftforge.client.event.ColorHandlerEvent;
 import net.minecraftforge.eventbus.api.EventPriority;
 import net.minecraftforge.eventbus.api.IEventBus;
+import net.minecraftforge.fml.loading.FMLEnvironment;
 import net.minecraftforge.resource.SelectiveReloadStateHandler;
 import net.minecraftforge.resource.VanillaResourceType;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.ApiStatus;
-import org.lwjgl.opengl.GL20C;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static org.lwjgl.opengl.GL20C.*;
+import static org.lwjgl.opengl.GL31C.*;
+import static org.lwjgl.opengl.GL43C.*;
 
 /**
  * <p>Loads GLSL shaders designed for rendering instead of Post-Processing.</p>
@@ -42,9 +52,14 @@ public final class ShaderLoader
     private static final Logger LOGGER = LogManager.getLogger();
     private static final List<ShaderPreProcessor> GLOBAL_PRE_PROCESSERS = new ArrayList<>(0);
     private static final Map<ResourceLocation, List<ShaderPreProcessor>> PRE_PROCESSERS = new HashMap<>(0);
-    private static final Map<ShaderProgram.Shader, Map<ResourceLocation, Integer>> SHADERS = new HashMap<>();
+    private static final Map<ShaderProgram.Shader, Map<ResourceLocation, ShaderSource>> SHADERS = new EnumMap<>(ShaderProgram.Shader.class);
     private static final Map<ResourceLocation, ShaderProgram> PROGRAMS = new HashMap<>();
     private static final Map<ShaderInstance, ResourceLocation> INSTANCES = new HashMap<>();
+    private static final Map<ShaderInstance, String> LINKED_KEYS = new HashMap<>();
+    private static final ShaderIncludes INCLUDES = new ShaderIncludes();
+    private static boolean lazyLinking = false;
+    private static CompletableFuture<Void> hotReloadFuture = CompletableFuture.completedFuture(null);
+    private static boolean hotReloadQueued = false;
 
     private ShaderLoader()
     {
@@ -61,9 +76,46 @@ public final class ShaderLoader
             {
                 ((ReloadableResourceManager) resourceManager).registerReloadListener(new Reloader());
             }
+            if (!FMLEnvironment.production || Boolean.getBoolean("sonar.shaderHotReload"))
+                ShaderFileWatcher.start();
         });
     }
 
+    /**
+     * Reloads shaders from the current resource packs without reloading any other resources. Only changed shaders are recompiled.
+     * <p>If a reload is already running, another reload is queued for when it finishes.</p>
+     */
+    static void hotReload()
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThread);
+        if (!hotReloadFuture.isDone())
+        {
+            hotReloadQueued = true;
+            return;
+        }
+
+        Minecraft minecraft = Minecraft.getInstance();
+        LOGGER.info("Hot reloading shaders");
+        hotReloadFuture = new Reloader().reload(new PreparableReloadListener.PreparationBarrier()
+        {
+            @Override
+            public <T> CompletableFuture<T> wait(T value)
+            {
+                return CompletableFuture.completedFuture(value);
+            }
+        }, minecraft.getResourceManager(), InactiveProfiler.INSTANCE, InactiveProfiler.INSTANCE, Util.backgroundExecutor(), minecraft);
+        hotReloadFuture.whenCompleteAsync((result, error) ->
+        {
+            if (error != null)
+                LOGGER.error("Failed to hot reload shaders", error);
+            if (hotReloadQueued)
+            {
+                hotReloadQueued = false;
+                hotReload();
+            }
+        }, task -> RenderSystem.recordRenderCall(task::run));
+    }
+
     /**
      * Adds a processor to change shader information just before it is compiled into a real shader.
      *
@@ -85,6 +137,17 @@ public final class ShaderLoader
         GLOBAL_PRE_PROCESSERS.add(processor);
     }
 
+    /**
+     * Sets whether new instances should wait until they are first bound to link their program. Programs marked with <code>warmup</code> in their JSON are always linked immediately. Disabled by default.
+     * <p>Lazy instances that have never been bound are skipped when resources reload.</p>
+     *
+     * @param lazyLinking Whether to link programs when they are first used
+     */
+    public static void setLazyLinking(boolean lazyLinking)
+    {
+        ShaderLoader.lazyLinking = lazyLinking;
+    }
+
     /**
      * Creates a new {@link ShaderInstance} of the specified type.
      *
@@ -94,11 +157,20 @@ public final class ShaderLoader
     public static ShaderInstance create(ResourceLocation program)
     {
         RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        if (lazyLinking && !isWarmup(program))
+        {
+            ShaderInstance instance = new ShaderInstance(-1);
+            instance.setLinkPending(true);
+            INSTANCES.put(instance, program);
+            return instance;
+        }
+
         try
         {
-            int programId = linkShaders(program, 0);
-            ShaderInstance instance = new ShaderInstance(programId);
+            ProgramLink link = startLink(program, 0);
+            ShaderInstance instance = new ShaderInstance(link.finish());
             INSTANCES.put(instance, program);
+            LINKED_KEYS.put(instance, link.key);
             return instance;
         }
         catch (Exception e)
@@ -110,15 +182,88 @@ public final class ShaderLoader
         }
     }
 
-    private static OptionalInt getShader(ShaderProgram.Shader type, ResourceLocation id)
+    /**
+     * Creates a variant of the specified instance with keywords enabled. Variants are linked the first time they are bound.
+     *
+     * @param base     The instance without any keywords enabled
+     * @param keywords The mask of keywords to enable
+     * @return A new variant
+     */
+    static ShaderInstance createVariant(ShaderInstance base, long keywords)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        ShaderInstance instance = new ShaderInstance(-1, base, keywords);
+        instance.setLinkPending(true);
+        ResourceLocation program = INSTANCES.get(base);
+        if (program != null)
+            INSTANCES.put(instance, program);
+        return instance;
+    }
+
+    /**
+     * Converts the specified keyword names into a mask for the program of the specified instance.
+     *
+     * @param instance The instance to get the keywords of
+     * @param keywords The names of the keywords to enable
+     * @return The mask of keywords. Unknown keywords are ignored
+     */
+    static long getKeywordMask(ShaderInstance instance, String... keywords)
+    {
+        ResourceLocation program = INSTANCES.get(instance);
+        List<String> programKeywords = program != null && PROGRAMS.containsKey(program) ? PROGRAMS.get(program).getKeywords() : Collections.emptyList();
+        long mask = 0;
+        for (String keyword : keywords)
+        {
+            int index = programKeywords.indexOf(keyword);
+            if (index == -1)
+            {
+                LOGGER.warn("Unknown keyword " + keyword + " for shader program: " + program);
+                continue;
+            }
+            mask |= 1L << index;
+        }
+        return mask;
+    }
+
+    /**
+     * Links the program of a lazy instance the first time it is used.
+     *
+     * @param instance The instance to link
+     */
+    static void link(ShaderInstance instance)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        ResourceLocation program = INSTANCES.get(instance);
+        if (program == null)
+            return;
+
+        try
+        {
+            ProgramLink link = startLink(program, instance.getKeywords());
+            instance.setProgram(link.finish());
+            LINKED_KEYS.put(instance, link.key);
+        }
+        catch (Exception e)
+        {
+            instance.setProgram(-1);
+            LOGGER.error("Failed to link shader program: " + program, e);
+        }
+    }
+
+    private static boolean isWarmup(ResourceLocation program)
+    {
+        return PROGRAMS.containsKey(program) && PROGRAMS.get(program).isWarmup();
+    }
+
+    @Nullable
+    private static ShaderSource getShader(ShaderProgram.Shader type, ResourceLocation id)
     {
         if (!SHADERS.containsKey(type))
-            return OptionalInt.empty();
-        Map<ResourceLocation, Integer> map = SHADERS.get(type);
-        return map.containsKey(id) ? OptionalInt.of(map.get(id)) : OptionalInt.empty();
+            return null;
+        return SHADERS.get(type).get(id);
     }
 
-    private static CharSequence preprocessShader(ResourceLocation id, String data, ShaderProgram.Shader type)
+    private static String preprocessShader(ResourceLocation id, String data, ShaderProgram.Shader type)
     {
         if (PRE_PROCESSERS.containsKey(id))
         {
@@ -148,60 +293,285 @@ public final class ShaderLoader
         return data;
     }
 
-    private static int loadShader(CharSequence data, ShaderProgram.Shader type) throws ShaderException
-    {
-        int shader = glCreateShader(type.getGLType());
-        glShaderSource(shader, data);
-        glCompileShader(shader);
-        if (glGetShaderi(shader, GL_COMPILE_STATUS) != GL_TRUE)
-            throw new ShaderException(glGetShaderInfoLog(shader, 512));
-        return shader;
-    }
-
-    private static int linkShaders(ResourceLocation program, int programId) throws ShaderException
+    /**
+     * Retrieves the shaders the specified program is made of.
+     *
+     * @param program  The program to get the shaders of
+     * @param keywords The mask of keywords enabled in the shaders
+     * @return The shaders to attach to the program
+     */
+    private static List<ShaderSource> getProgramShaders(ResourceLocation program, long keywords)
     {
         if (!PROGRAMS.containsKey(program))
             throw new IllegalStateException("Unknown program: " + program);
 
         ShaderProgram p = PROGRAMS.get(program);
-        OptionalInt vertex = p.getVertexShader().map(shader -> getShader(ShaderProgram.Shader.VERTEX, shader)).orElse(OptionalInt.empty());
-        OptionalInt fragment = p.getFragmentShader().map(shader -> getShader(ShaderProgram.Shader.FRAGMENT, shader)).orElse(OptionalInt.empty());
-        OptionalInt geometry = p.getGeometryShader().map(shader -> getShader(ShaderProgram.Shader.GEOMETRY, shader)).orElse(OptionalInt.empty());
-        OptionalInt[] compute = p.getComputeShaders().map(array -> Stream.of(array).map(shader -> getShader(ShaderProgram.Shader.COMPUTE, shader)).toArray(OptionalInt[]::new)).orElseGet(() -> new OptionalInt[0]);
+        ShaderSource vertex = p.getVertexShader().map(shader -> getShader(ShaderProgram.Shader.VERTEX, shader)).orElse(null);
+        ShaderSource fragment = p.getFragmentShader().map(shader -> getShader(ShaderProgram.Shader.FRAGMENT, shader)).orElse(null);
+        ShaderSource geometry = p.getGeometryShader().map(shader -> getShader(ShaderProgram.Shader.GEOMETRY, shader)).orElse(null);
+        ShaderSource[] compute = p.getComputeShaders().map(array -> Stream.of(array).map(shader -> getShader(ShaderProgram.Shader.COMPUTE, shader)).toArray(ShaderSource[]::new)).orElseGet(() -> new ShaderSource[0]);
 
+        List<ShaderSource> shaders = new ArrayList<>(3);
         if (compute.length > 0)
         {
-            if (vertex.isPresent() || fragment.isPresent() || geometry.isPresent())
+            if (vertex != null || fragment != null || geometry != null)
                 throw new IllegalStateException("Compute shaders must only have compute steps");
-            if (Arrays.stream(compute).anyMatch(optional -> !optional.isPresent()))
+            if (Arrays.stream(compute).anyMatch(Objects::isNull))
                 throw new IllegalStateException("All compute shaders must be valid");
+            shaders.addAll(Arrays.asList(compute));
         }
         else
         {
-            if (!vertex.isPresent() || !fragment.isPresent())
+            if (vertex == null || fragment == null)
                 throw new IllegalStateException("Both vertex and fragment shaders must be defined for a standard shader program");
+            shaders.add(vertex);
+            shaders.add(fragment);
+            if (geometry != null)
+                shaders.add(geometry);
+        }
+
+        if (keywords != 0)
+            shaders.replaceAll(shader -> shader.variant(p.getKeywords(), keywords));
+        return shaders;
+    }
+
+    private static String getProgramKey(List<ShaderSource> shaders)
+    {
+        return ProgramBinaryCache.getKey(shaders.stream().map(shader -> shader.type.name() + ":" + shader.hash).collect(Collectors.toList()));
+    }
+
+    /**
+     * Starts linking the specified program without waiting for the driver. All shaders the program needs are submitted for compilation first.
+     *
+     * @param program  The program to link
+     * @param keywords The mask of keywords enabled in the shaders
+     * @return The link in progress
+     */
+    private static ProgramLink startLink(ResourceLocation program, long keywords)
+    {
+        List<ShaderSource> shaders = getProgramShaders(program, keywords);
+        Map<String, Integer> blocks = PROGRAMS.get(program).getBlocks();
+        String key = getProgramKey(shaders);
+        OptionalInt cachedProgram = ProgramBinaryCache.load(key);
+        if (cachedProgram.isPresent())
+            return new ProgramLink(key, Collections.emptyList(), blocks, cachedProgram.getAsInt(), true);
+
+        int programId = glCreateProgram();
+        for (ShaderSource shader : shaders)
+            glAttachShader(programId, shader.submit());
+        ProgramBinaryCache.prepare(programId);
+        glLinkProgram(programId);
+        return new ProgramLink(key, shaders, blocks, programId, false);
+    }
+
+    /**
+     * Points every uniform and storage block declared in the program JSON at its binding point. Block bindings are reset by linking and are not part of program binaries, so this is done after every link and whenever the program JSON is reloaded.
+     *
+     * @param program The program to bind the blocks of
+     * @param blocks  The binding point of each block by name
+     */
+    private static void bindBlocks(int program, Map<String, Integer> blocks)
+    {
+        if (blocks.isEmpty() || !ShaderConst.isUniformBufferSupported())
+            return;
+        blocks.forEach((name, binding) ->
+        {
+            int index = glGetUniformBlockIndex(program, name);
+            if (index != GL_INVALID_INDEX)
+            {
+                glUniformBlockBinding(program, index, binding);
+                return;
+            }
+
+            if (ShaderConst.isStorageBufferSupported())
+            {
+                index = glGetProgramResourceIndex(program, GL_SHADER_STORAGE_BLOCK, name);
+                if (index != GL_INVALID_INDEX)
+                {
+                    glShaderStorageBlockBinding(program, index, binding);
+                    return;
+                }
+            }
+            LOGGER.debug("Unused block: " + name);
+        });
+    }
+
+    /**
+     * <p>A program that has been submitted to the driver and may still be compiling or linking.</p>
+     *
+     * @author Ocelot
+     */
+    private static class ProgramLink
+    {
+        private final String key;
+        private final List<ShaderSource> shaders;
+        private final Map<String, Integer> blocks;
+        private final int program;
+        private final boolean cached;
+
+        private ProgramLink(String key, List<ShaderSource> shaders, Map<String, Integer> blocks, int program, boolean cached)
+        {
+            this.key = key;
+            this.shaders = shaders;
+            this.blocks = blocks;
+            this.program = program;
+            this.cached = cached;
         }
 
-        if (programId > 0)
-            glDeleteProgram(programId);
+        /**
+         * @return Whether {@link #finish()} can be called without waiting for the driver
+         */
+        private boolean isComplete()
+        {
+            if (this.cached)
+                return true;
+            for (ShaderSource shader : this.shaders)
+            {
+                if (shader.error != null)
+                    return true;
+                if (!shader.isComplete())
+                    return false;
+            }
+            return ShaderConst.isProgramComplete(this.program);
+        }
 
-        programId = glCreateProgram();
-        if (compute.length <= 0)
+        /**
+         * Checks the result of compiling and linking, waiting for the driver if it is not complete.
+         *
+         * @return The linked program
+         * @throws ShaderException If any shader failed to compile or the program failed to link
+         */
+        private int finish() throws ShaderException
         {
-            glAttachShader(programId, vertex.getAsInt());
-            glAttachShader(programId, fragment.getAsInt());
-            if (geometry.isPresent())
-                glAttachShader(programId, geometry.getAsInt());
+            if (this.cached)
+            {
+                bindBlocks(this.program, this.blocks);
+                return this.program;
+            }
+            try
+            {
+                for (ShaderSource shader : this.shaders)
+                    shader.compile();
+                if (glGetProgrami(this.program, GL_LINK_STATUS) != GL_TRUE)
+                    throw new ShaderException(glGetProgramInfoLog(this.program, 512));
+            }
+            catch (ShaderException e)
+            {
+                glDeleteProgram(this.program);
+                throw e;
+            }
+            ProgramBinaryCache.save(this.key, this.program);
+            bindBlocks(this.program, this.blocks);
+            return this.program;
         }
-        else
+    }
+
+    /**
+     * <p>The preprocessed source of a shader that is only compiled once a program without a cached binary needs it.</p>
+     *
+     * @author Ocelot
+     */
+    private static class ShaderSource
+    {
+        private final ShaderProgram.Shader type;
+        private final ResourceLocation id;
+        private final ShaderIncludes.Expanded expanded;
+        private final String source;
+        private final String hash;
+        private final Long2ObjectMap<ShaderSource> variants;
+        private int shader;
+        private boolean checked;
+        private ShaderException error;
+
+        private ShaderSource(ShaderProgram.Shader type, ResourceLocation id, ShaderIncludes.Expanded expanded)
         {
-            for (OptionalInt shader : compute)
-                glAttachShader(programId, shader.orElseThrow(() -> new IllegalStateException("All compute shaders must be valid")));
+            this.type = type;
+            this.id = id;
+            this.expanded = expanded;
+            this.source = expanded.getSource();
+            this.hash = DigestUtils.sha1Hex(this.source);
+            this.variants = new Long2ObjectOpenHashMap<>();
+            this.shader = 0;
+            this.checked = false;
+            this.error = null;
+        }
+
+        /**
+         * Retrieves the variant of this shader with the specified keywords defined. Variants are created once and kept until this shader is freed.
+         *
+         * @param keywords The keywords of the program
+         * @param mask     The mask of keywords to define
+         * @return The variant of this shader
+         */
+        private ShaderSource variant(List<String> keywords, long mask)
+        {
+            if (mask == 0)
+                return this;
+
+            ShaderSource variant = this.variants.get(mask);
+            if (variant == null)
+            {
+                List<String> defines = new ArrayList<>(Long.bitCount(mask));
+                for (int i = 0; i < keywords.size(); i++)
+                    if ((mask & (1L << i)) != 0)
+                        defines.add(keywords.get(i));
+                variant = new ShaderSource(this.type, this.id, this.expanded.withDefines(defines));
+                this.variants.put(mask, variant);
+            }
+            return variant;
+        }
+
+        /**
+         * Submits this shader to the driver for compilation if it has not been already. The compile status is not checked.
+         *
+         * @return The id of the shader
+         */
+        private int submit()
+        {
+            if (this.shader == 0)
+            {
+                this.shader = glCreateShader(this.type.getGLType());
+                glShaderSource(this.shader, this.source);
+                glCompileShader(this.shader);
+                this.checked = false;
+            }
+            return this.shader;
+        }
+
+        private boolean isComplete()
+        {
+            return this.checked || this.error != null || ShaderConst.isShaderComplete(this.shader);
+        }
+
+        private int compile() throws ShaderException
+        {
+            this.submit();
+            if (this.error != null)
+                throw this.error;
+            if (!this.checked)
+            {
+                if (glGetShaderi(this.shader, GL_COMPILE_STATUS) != GL_TRUE)
+                {
+                    // The shader is kept until this source is freed, since other links may still be waiting on it
+                    this.error = new ShaderException(this.expanded.remapLog(glGetShaderInfoLog(this.shader, 512)));
+                    LOGGER.error("Failed to load " + this.type.getDisplayName() + " Shader: " + this.id, this.error);
+                    throw this.error;
+                }
+                this.checked = true;
+            }
+            return this.shader;
+        }
+
+        private void free()
+        {
+            if (this.shader > 0)
+                glDeleteShader(this.shader);
+            this.shader = 0;
+            this.checked = false;
+            this.error = null;
+            this.variants.values().forEach(ShaderSource::free);
+            this.variants.clear();
         }
-        glLinkProgram(programId);
-        if (glGetProgrami(programId, GL_LINK_STATUS) != GL_TRUE)
-            throw new ShaderException(glGetProgramInfoLog(programId, 512));
-        return programId;
     }
 
     private static class Reloader implements PreparableReloadListener
@@ -230,6 +600,23 @@ public final class ShaderLoader
                 }
                 return sources;
             }, backgroundExecutor);
+            CompletableFuture<Map<ResourceLocation, String>> includesFuture = CompletableFuture.supplyAsync(() ->
+            {
+                Map<ResourceLocation, String> sources = new HashMap<>();
+                for (ResourceLocation location : resourceManager.listResources("shaders/include", path -> true))
+                {
+                    ResourceLocation id = new ResourceLocation(location.getNamespace(), location.getPath().substring(16));
+                    try (Resource resource = resourceManager.getResource(location))
+                    {
+                        sources.put(id, IOUtils.toString(resource.getInputStream(), StandardCharsets.UTF_8));
+                    }
+                    catch (Exception e)
+                    {
+                        LOGGER.error("Failed to load shader include: " + id, e);
+                    }
+                }
+                return sources;
+            }, backgroundExecutor);
             CompletableFuture<Map<ResourceLocation, ShaderProgram>> programsFuture = CompletableFuture.supplyAsync(() ->
             {
                 Map<ResourceLocation, ShaderProgram> sources = new HashMap<>();
@@ -248,16 +635,19 @@ public final class ShaderLoader
                 return sources;
             }, backgroundExecutor);
 
-            return CompletableFuture.allOf(sourcesFuture, programsFuture).thenCompose(stage::wait).thenRunAsync(() ->
+            return CompletableFuture.allOf(sourcesFuture, includesFuture, programsFuture).thenCompose(stage::wait).thenApplyAsync(__ ->
             {
                 Map<ShaderProgram.Shader, Map<ResourceLocation, String>> sources = sourcesFuture.join();
                 Map<ResourceLocation, ShaderProgram> programs = programsFuture.join();
-                SHADERS.values().stream().flatMap(map -> map.values().stream()).forEach(GL20C::glDeleteShader);
+                Map<ShaderProgram.Shader, Map<ResourceLocation, ShaderSource>> oldShaders = new EnumMap<>(ShaderProgram.Shader.class);
+                SHADERS.forEach((type, map) -> oldShaders.put(type, new HashMap<>(map)));
                 SHADERS.clear();
                 PROGRAMS.clear();
                 PROGRAMS.putAll(programs);
+                Set<ResourceLocation> changedIncludes = INCLUDES.update(includesFuture.join());
 
-                // Load all shaders
+                // Preprocess all shaders. They are only compiled if a program has no cached binary. Unchanged shaders keep their compiled version
+                int changedShaders = 0;
                 for (ShaderProgram.Shader type : sources.keySet())
                 {
                     for (Map.Entry<ResourceLocation, String> entry : sources.get(type).entrySet())
@@ -266,36 +656,128 @@ public final class ShaderLoader
                         {
                             LOGGER.warn(type + "");
                         }
+                        ShaderSource shader;
                         try
                         {
-                            SHADERS.computeIfAbsent(type, key -> new Object2IntArrayMap<>()).put(entry.getKey(), loadShader(preprocessShader(entry.getKey(), entry.getValue(), type), type));
+                            shader = new ShaderSource(type, entry.getKey(), INCLUDES.expand(entry.getKey(), preprocessShader(entry.getKey(), entry.getValue(), type)));
                         }
-                        catch (Exception e)
+                        catch (ShaderException e)
                         {
                             LOGGER.error("Failed to load " + type.getDisplayName() + " Shader: " + entry.getKey(), e);
+                            continue;
+                        }
+
+                        ShaderSource oldShader = oldShaders.containsKey(type) ? oldShaders.get(type).get(entry.getKey()) : null;
+                        if (oldShader != null && oldShader.hash.equals(shader.hash))
+                        {
+                            shader = oldShader;
+                            oldShaders.get(type).remove(entry.getKey());
                         }
+                        else
+                        {
+                            changedShaders++;
+                            if (oldShader != null && !Collections.disjoint(oldShader.expanded.getDependencies(), changedIncludes))
+                                LOGGER.debug("Rebuilding " + type.getDisplayName() + " Shader " + entry.getKey() + " because an include changed");
+                        }
+                        SHADERS.computeIfAbsent(type, key -> new HashMap<>()).put(entry.getKey(), shader);
                     }
                 }
+                oldShaders.values().stream().flatMap(map -> map.values().stream()).forEach(ShaderSource::free);
 
                 INSTANCES.keySet().removeIf(instance -> instance.getProgram() == 0); // Remove freed shaders
+                LINKED_KEYS.keySet().retainAll(INSTANCES.keySet());
 
-                // Re-link all created instances with the new shader ids
+                // Submit every compile and link up front so the driver can work on them in parallel
+                Map<ShaderInstance, ProgramLink> links = new HashMap<>();
                 INSTANCES.forEach((shaderInstance, program) ->
                 {
+                    // Lazy instances that were never used stay lazy unless they are now marked for warm-up
+                    if (shaderInstance.isLinkPending())
+                    {
+                        if (!isWarmup(program))
+                            return;
+                        shaderInstance.setLinkPending(false);
+                    }
+
                     try
                     {
-                        shaderInstance.setProgram(linkShaders(program, shaderInstance.getProgram()));
+                        // Programs are only relinked if any of their shaders changed
+                        if (shaderInstance.getProgram() > 0 && getProgramKey(getProgramShaders(program, shaderInstance.getKeywords())).equals(LINKED_KEYS.get(shaderInstance)))
+                        {
+                            // Blocks are not part of the key, so changes to them are applied to the existing program
+                            bindBlocks(shaderInstance.getProgram(), PROGRAMS.get(program).getBlocks());
+                            return;
+                        }
+
+                        // The old program is kept drawing until the new one is swapped in
+                        links.put(shaderInstance, startLink(program, shaderInstance.getKeywords()));
                     }
                     catch (Exception e)
                     {
-                        shaderInstance.free();
-                        shaderInstance.setProgram(-1); // -1 indicates the program should still be refreshed, but that it is not valid
                         LOGGER.error("Failed to reload shader program: " + program, e);
                     }
                 });
 
-                LOGGER.info("Loaded " + sources.values().stream().mapToInt(Map::size).sum() + " shaders and " + programs.size() + " shader programs.");
-            }, task -> RenderSystem.recordRenderCall(task::run));
+                LOGGER.info("Loaded " + sources.values().stream().mapToInt(Map::size).sum() + " shaders (" + changedShaders + " changed) and " + programs.size() + " shader programs. Relinking " + links.size() + " shader instances.");
+                return finishLinks(links);
+            }, task -> RenderSystem.recordRenderCall(task::run)).thenCompose(future -> future);
+        }
+
+        /**
+         * Finishes all links that the driver has completed and checks the rest again at the start of every frame.
+         */
+        private static CompletableFuture<Void> finishLinks(Map<ShaderInstance, ProgramLink> links)
+        {
+            if (pollLinks(links))
+                return CompletableFuture.completedFuture(null);
+
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            FramePoller.poll(() ->
+            {
+                if (!pollLinks(links))
+                    return false;
+                future.complete(null);
+                return true;
+            });
+            return future;
+        }
+
+        private static boolean pollLinks(Map<ShaderInstance, ProgramLink> links)
+        {
+            links.entrySet().removeIf(entry ->
+            {
+                ShaderInstance shaderInstance = entry.getKey();
+                ProgramLink link = entry.getValue();
+                if (!link.isComplete())
+                    return false;
+
+                try
+                {
+                    int program = link.finish();
+                    int oldProgram = shaderInstance.getProgram();
+                    if (oldProgram == 0) // The instance was freed while linking
+                    {
+                        glDeleteProgram(program);
+                    }
+                    else
+                    {
+                        shaderInstance.setProgram(program);
+                        LINKED_KEYS.put(shaderInstance, link.key);
+                        if (oldProgram > 0 && oldProgram != program)
+                        {
+                            glDeleteProgram(oldProgram);
+                            GlStateTracker.onProgramDeleted(oldProgram);
+                        }
+                    }
+                }
+                catch (Exception e)
+                {
+                    // The old program is kept if there is one, so a broken edit doesn't stop the shader from drawing
+                    LOGGER.error("Failed to reload shader program: " + INSTANCES.get(shaderInstance), e);
+                }
+                return true;
+            });
+            return links.isEmpty();
         }
     }
 }
@@ -1,11 +1,15 @@
 package io.github.ocelot.sonar.client.shader;
 
 import com.mojang.serialization.Codec;
+import com.mojang.serialization.DataResult;
 import com.mojang.serialization.codecs.RecordCodecBuilder;
 import net.minecraft.resources.ResourceLocation;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import static org.lwjgl.opengl.GL20C.GL_FRAGMENT_SHADER;
@@ -21,24 +25,44 @@ import static org.lwjgl.opengl.GL43C.GL_COMPUTE_SHADER;
  */
 public class ShaderProgram
 {
+    public static final int MAX_KEYWORDS = 64;
     public static final Codec<ShaderProgram> CODEC = RecordCodecBuilder.create(instance -> instance.group(
             ResourceLocation.CODEC.optionalFieldOf("vertex").forGetter(ShaderProgram::getVertexShader),
             ResourceLocation.CODEC.optionalFieldOf("fragment").forGetter(ShaderProgram::getFragmentShader),
             ResourceLocation.CODEC.optionalFieldOf("geometry").forGetter(ShaderProgram::getGeometryShader),
-            ResourceLocation.CODEC.listOf().optionalFieldOf("compute").xmap(array -> array.map(list -> list.toArray(new ResourceLocation[0])), list -> list.map(Arrays::asList)).forGetter(ShaderProgram::getComputeShaders)
-    ).apply(instance, (vertex, fragment, geometry, computeShaders) -> new ShaderProgram(vertex.orElse(null), fragment.orElse(null), geometry.orElse(null), computeShaders.orElseGet(() -> new ResourceLocation[0]))));
+            ResourceLocation.CODEC.listOf().optionalFieldOf("compute").xmap(array -> array.map(list -> list.toArray(new ResourceLocation[0])), list -> list.map(Arrays::asList)).forGetter(ShaderProgram::getComputeShaders),
+            Codec.BOOL.optionalFieldOf("warmup", false).forGetter(ShaderProgram::isWarmup),
+            Codec.unboundedMap(Codec.STRING, Codec.INT).optionalFieldOf("blocks", Collections.emptyMap()).forGetter(ShaderProgram::getBlocks),
+            Codec.STRING.listOf().comapFlatMap(list -> list.size() > MAX_KEYWORDS ? DataResult.error("Programs can have at most " + MAX_KEYWORDS + " keywords") : DataResult.success(list), list -> list).optionalFieldOf("keywords", Collections.emptyList()).forGetter(ShaderProgram::getKeywords)
+    ).apply(instance, (vertex, fragment, geometry, computeShaders, warmup, blocks, keywords) -> new ShaderProgram(vertex.orElse(null), fragment.orElse(null), geometry.orElse(null), computeShaders.orElseGet(() -> new ResourceLocation[0]), warmup, blocks, keywords)));
 
     private final ResourceLocation vertexShader;
     private final ResourceLocation fragmentShader;
     private final ResourceLocation geometryShader;
     private final ResourceLocation[] computeShaders;
+    private final boolean warmup;
+    private final Map<String, Integer> blocks;
+    private final List<String> keywords;
 
-    public ShaderProgram(@Nullable ResourceLocation vertexShader, @Nullable ResourceLocation fragmentShader, @Nullable ResourceLocation geometryShader, ResourceLocation[] computeShaders)
+    public ShaderProgram(@Nullable ResourceLocation vertexShader, @Nullable ResourceLocation fragmentShader, @Nullable ResourceLocation geometryShader, ResourceLocation[] computeShaders, boolean warmup, Map<String, Integer> blocks, List<String> keywords)
     {
         this.vertexShader = vertexShader;
         this.fragmentShader = fragmentShader;
         this.geometryShader = geometryShader;
         this.computeShaders = computeShaders;
+        this.warmup = warmup;
+        this.blocks = blocks;
+        this.keywords = keywords;
+    }
+
+    public ShaderProgram(@Nullable ResourceLocation vertexShader, @Nullable ResourceLocation fragmentShader, @Nullable ResourceLocation geometryShader, ResourceLocation[] computeShaders, boolean warmup)
+    {
+        this(vertexShader, fragmentShader, geometryShader, computeShaders, warmup, Collections.emptyMap(), Collections.emptyList());
+    }
+
+    public ShaderProgram(@Nullable ResourceLocation vertexShader, @Nullable ResourceLocation fragmentShader, @Nullable ResourceLocation geometryShader, ResourceLocation[] computeShaders)
+    {
+        this(vertexShader, fragmentShader, geometryShader, computeShaders, false);
     }
 
     public Optional<ResourceLocation> getVertexShader()
@@ -61,6 +85,33 @@ public class ShaderProgram
         return this.computeShaders.length == 0 ? Optional.empty() : Optional.of(this.computeShaders);
     }
 
+    /**
+     * @return Whether this program should always be linked immediately, even if {@link ShaderLoader#setLazyLinking(boolean) lazy linking} is enabled
+     */
+    public boolean isWarmup()
+    {
+        return warmup;
+    }
+
+    /**
+     * @return The binding point of each uniform or storage block in this program by block name. Blocks are bound every time the program is linked
+     * @see UniformBuffer
+     * @see ShaderStorageBuffer
+     */
+    public Map<String, Integer> getBlocks()
+    {
+        return blocks;
+    }
+
+    /**
+     * @return The keywords variants of this program can enable. Each enabled keyword is defined after the <code>#version</code> directive of every shader in the variant
+     * @see ShaderInstance#withKeywords(String...)
+     */
+    public List<String> getKeywords()
+    {
+        return keywords;
+    }
+
     /**
      * <p>Types of shader supported by the shader pipeline.</p>
      *
@@ -0,0 +1,357 @@
+package io.github.ocelot.sonar.client.shader;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import io.github.ocelot.sonar.client.util.FramePoller;
+import org.apache.commons.lang3.Validate;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.system.NativeResource;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.lwjgl.opengl.GL32C.*;
+import static org.lwjgl.opengl.GL43C.*;
+import static org.lwjgl.opengl.GL44C.*;
+
+/**
+ * <p>A shader storage buffer holding a fixed number of elements that compute and render shaders can read and write.</p>
+ * <p>Elements are written and read through a {@link Layout}, which must match the <code>std430</code> layout of the block in GLSL. If buffer storage is supported, the buffer is persistently mapped and elements are written and read in place. Otherwise writes are collected and uploaded the next time the buffer is bound or dispatched.</p>
+ * <p>Results are read back with {@link #readAsync(int, int)}, which waits for a fence over several frames instead of stalling the driver. Results can also be drawn directly by binding the buffer with {@link #bindAsVertexBuffer()}, for example to render particles simulated by a compute shader.</p>
+ * <p>Writing to a mapped buffer with {@link #set(int, Object)} waits for the last dispatch that used it to finish, so elements should be written before dispatching rather than after.</p>
+ *
+ * @param <T> The type of element in the buffer
+ * @author Ocelot
+ * @since 7.1.0
+ */
+public class ShaderStorageBuffer<T> implements NativeResource
+{
+    private static final int WRITE_BARRIERS = GL_SHADER_STORAGE_BARRIER_BIT | GL_VERTEX_ATTRIB_ARRAY_BARRIER_BIT | GL_BUFFER_UPDATE_BARRIER_BIT | GL_CLIENT_MAPPED_BUFFER_BARRIER_BIT;
+
+    private final Layout<T> layout;
+    private final int count;
+    private final int size;
+    private int buffer;
+    private ByteBuffer data;
+    private ByteBuffer mapped;
+    private long fence;
+    private int pendingBarriers;
+    private int dirtyStart;
+    private int dirtyEnd;
+
+    public ShaderStorageBuffer(Layout<T> layout, int count)
+    {
+        Validate.isTrue(layout.getStride() > 0, "Element stride must be positive");
+        Validate.isTrue(count > 0, "Storage buffers must hold at least one element");
+        this.layout = layout;
+        this.count = count;
+        this.size = layout.getStride() * count;
+        this.buffer = -1;
+        this.dirtyStart = Integer.MAX_VALUE;
+        this.dirtyEnd = 0;
+    }
+
+    private void create()
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        if (!ShaderConst.isStorageBufferSupported())
+            throw new UnsupportedOperationException("Shader storage buffers are unsupported");
+
+        this.buffer = glGenBuffers();
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, this.buffer);
+        if (ShaderConst.isBufferStorageSupported())
+        {
+            int flags = GL_MAP_READ_BIT | GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+            glBufferStorage(GL_SHADER_STORAGE_BUFFER, this.size, flags);
+            this.mapped = glMapBufferRange(GL_SHADER_STORAGE_BUFFER, 0, this.size, flags);
+            MemoryUtil.memSet(this.mapped, 0);
+        }
+        else
+        {
+            this.data = MemoryUtil.memCalloc(this.size);
+            glBufferData(GL_SHADER_STORAGE_BUFFER, this.data, GL_DYNAMIC_COPY);
+        }
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+    }
+
+    /**
+     * Writes an element into this buffer. If the buffer is persistently mapped and a dispatch that uses it has not finished, this blocks the render thread until the dispatch finishes.
+     *
+     * @param index The index of the element to write
+     * @param value The value to write
+     */
+    public void set(int index, T value)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        Validate.inclusiveBetween(0, this.count - 1, index);
+        if (this.buffer == -1)
+            this.create();
+
+        int offset = index * this.layout.getStride();
+        if (this.mapped != null)
+        {
+            this.waitFence();
+            this.layout.write(this.mapped, offset, value);
+        }
+        else
+        {
+            this.layout.write(this.data, offset, value);
+            this.dirtyStart = Math.min(this.dirtyStart, offset);
+            this.dirtyEnd = Math.max(this.dirtyEnd, offset + this.layout.getStride());
+        }
+    }
+
+    /**
+     * Binds this buffer to the specified storage binding point. Writes from previous dispatches are made visible first.
+     *
+     * @param binding The binding point used by the storage block in the shader
+     */
+    public void bind(int binding)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        if (this.buffer == -1)
+            this.create();
+
+        this.uploadDirty();
+        this.barrier(GL_SHADER_STORAGE_BARRIER_BIT);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, binding, this.buffer);
+    }
+
+    /**
+     * Binds this buffer to <code>GL_ARRAY_BUFFER</code> so the results of previous dispatches can be used as vertex attributes. Writes from previous dispatches are made visible first.
+     */
+    public void bindAsVertexBuffer()
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        if (this.buffer == -1)
+            this.create();
+
+        this.uploadDirty();
+        this.barrier(GL_VERTEX_ATTRIB_ARRAY_BARRIER_BIT);
+        glBindBuffer(GL_ARRAY_BUFFER, this.buffer);
+    }
+
+    /**
+     * Makes writes from previous dispatches visible to the next dispatch. Buffers only need to be bound once, so without this back to back dispatches would race each other.
+     */
+    void prepareDispatch()
+    {
+        this.uploadDirty();
+        this.barrier(GL_SHADER_STORAGE_BARRIER_BIT);
+    }
+
+    private void uploadDirty()
+    {
+        if (this.dirtyEnd <= this.dirtyStart)
+            return;
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, this.buffer);
+        this.data.limit(this.dirtyEnd).position(this.dirtyStart);
+        glBufferSubData(GL_SHADER_STORAGE_BUFFER, this.dirtyStart, this.data);
+        this.data.clear();
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        this.dirtyStart = Integer.MAX_VALUE;
+        this.dirtyEnd = 0;
+    }
+
+    /**
+     * Reads elements from this buffer once all previously submitted dispatches have finished. The fence is checked by {@link FramePoller} at the start of every frame, so the render thread does not wait for the driver.
+     *
+     * @param first The index of the first element to read
+     * @param count The number of elements to read
+     * @return A future that completes on the render thread with the elements that were read
+     */
+    public CompletableFuture<List<T>> readAsync(int first, int count)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        Validate.isTrue(first >= 0 && count >= 0 && first + count <= this.count, "Invalid range: " + first + " to " + (first + count));
+        if (this.buffer == -1)
+            this.create();
+
+        // Writes that were never uploaded would be overwritten by the read
+        this.uploadDirty();
+        this.barrier(this.mapped != null ? GL_CLIENT_MAPPED_BUFFER_BARRIER_BIT : GL_BUFFER_UPDATE_BARRIER_BIT);
+        long readFence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        glFlush();
+
+        CompletableFuture<List<T>> future = new CompletableFuture<>();
+        FramePoller.poll(() -> this.pollRead(readFence, first, count, future));
+        return future;
+    }
+
+    private boolean pollRead(long readFence, int first, int count, CompletableFuture<List<T>> future)
+    {
+        if (this.buffer == -1)
+        {
+            glDeleteSync(readFence);
+            future.completeExceptionally(new IllegalStateException("Storage buffer was freed before it could be read"));
+            return true;
+        }
+
+        if (glClientWaitSync(readFence, 0, 0) == GL_TIMEOUT_EXPIRED)
+            return false;
+        glDeleteSync(readFence);
+
+        ByteBuffer result = null;
+        try
+        {
+            ByteBuffer source = this.mapped;
+            int offset = first * this.layout.getStride();
+            if (source == null)
+            {
+                // The dispatch has finished, so this copy does not wait for the driver. It is read into its own buffer so writes made since the read started are kept
+                result = MemoryUtil.memAlloc(count * this.layout.getStride());
+                glBindBuffer(GL_SHADER_STORAGE_BUFFER, this.buffer);
+                glGetBufferSubData(GL_SHADER_STORAGE_BUFFER, offset, result);
+                glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+                source = result;
+                offset = 0;
+            }
+
+            List<T> values = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                values.add(this.layout.read(source, offset + i * this.layout.getStride()));
+            future.complete(values);
+        }
+        catch (Throwable t)
+        {
+            future.completeExceptionally(t);
+        }
+        finally
+        {
+            if (result != null)
+                MemoryUtil.memFree(result);
+        }
+        return true;
+    }
+
+    /**
+     * Marks this buffer as used by a dispatch that was just submitted. The next write waits for the dispatch to finish and the next read inserts the required memory barrier.
+     */
+    void markUsed()
+    {
+        if (this.fence != 0)
+            glDeleteSync(this.fence);
+        this.fence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        this.pendingBarriers = WRITE_BARRIERS;
+    }
+
+    private void barrier(int barrier)
+    {
+        if ((this.pendingBarriers & barrier) == 0)
+            return;
+        ShaderConst.glMemoryBarrier(barrier);
+        this.pendingBarriers &= ~barrier;
+    }
+
+    private void waitFence()
+    {
+        if (this.fence == 0)
+            return;
+        while (true)
+        {
+            int result = glClientWaitSync(this.fence, GL_SYNC_FLUSH_COMMANDS_BIT, 1000000L);
+            if (result == GL_ALREADY_SIGNALED || result == GL_CONDITION_SATISFIED || result == GL_WAIT_FAILED)
+                break;
+        }
+        glDeleteSync(this.fence);
+        this.fence = 0;
+    }
+
+    /**
+     * @return The id of the OpenGL buffer or <code>-1</code> if it has not been created yet
+     */
+    public int getId()
+    {
+        return buffer;
+    }
+
+    /**
+     * @return The number of elements in this buffer
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * @return The size of this buffer in bytes
+     */
+    public int getSize()
+    {
+        return size;
+    }
+
+    @Override
+    public void free()
+    {
+        if (!RenderSystem.isOnRenderThreadOrInit())
+        {
+            RenderSystem.recordRenderCall(this::_free);
+        }
+        else
+        {
+            this._free();
+        }
+    }
+
+    private void _free()
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        if (this.fence != 0)
+        {
+            glDeleteSync(this.fence);
+            this.fence = 0;
+        }
+        if (this.buffer != -1)
+        {
+            if (this.mapped != null)
+            {
+                glBindBuffer(GL_SHADER_STORAGE_BUFFER, this.buffer);
+                glUnmapBuffer(GL_SHADER_STORAGE_BUFFER);
+                glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+                this.mapped = null;
+            }
+            glDeleteBuffers(this.buffer);
+            this.buffer = -1;
+        }
+        if (this.data != null)
+        {
+            MemoryUtil.memFree(this.data);
+            this.data = null;
+        }
+    }
+
+    /**
+     * <p>Converts elements to and from the bytes of a storage buffer.</p>
+     *
+     * @param <T> The type of element
+     * @author Ocelot
+     * @since 7.1.0
+     */
+    public interface Layout<T>
+    {
+        /**
+         * @return The size of each element in bytes, including any padding required by <code>std430</code>
+         */
+        int getStride();
+
+        /**
+         * Writes an element into the buffer using absolute puts.
+         *
+         * @param buffer The buffer to write into
+         * @param offset The offset of the element in bytes
+         * @param value  The element to write
+         */
+        void write(ByteBuffer buffer, int offset, T value);
+
+        /**
+         * Reads an element from the buffer using absolute gets.
+         *
+         * @param buffer The buffer to read from
+         * @param offset The offset of the element in bytes
+         * @return The element that was read
+         */
+        T read(ByteBuffer buffer, int offset);
+    }
+}
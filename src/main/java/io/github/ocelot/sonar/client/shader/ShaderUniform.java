@@ -0,0 +1,470 @@
+package io.github.ocelot.sonar.client.shader;
+
+import com.mojang.math.Matrix4f;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.lwjgl.BufferUtils;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL20C.*;
+import static org.lwjgl.opengl.GL21C.*;
+import static org.lwjgl.opengl.GL30C.*;
+import static org.lwjgl.opengl.GL41C.*;
+
+/**
+ * <p>A handle to a single uniform in a {@link ShaderInstance}.</p>
+ * <p>Handles are created once per name and stay valid when the program is relinked, so they can be stored and used every frame without looking up the uniform by name.</p>
+ * <p>Every handle keeps a copy of the last values set. Setting the same values again does nothing and values set while the program is not bound are uploaded the next time it is bound.</p>
+ *
+ * @author Ocelot
+ * @since 7.1.0
+ */
+public final class ShaderUniform
+{
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final FloatBuffer MATRIX_4_4 = BufferUtils.createFloatBuffer(4 * 4);
+
+    private final ShaderInstance owner;
+    private final String name;
+    private int location;
+    private int type;
+    private int size;
+    private float[] floatValues;
+    private int[] intValues;
+    private boolean dirty;
+    private boolean warned;
+
+    ShaderUniform(ShaderInstance owner, String name)
+    {
+        this.owner = owner;
+        this.name = name;
+        this.location = -1;
+        this.type = 0;
+        this.size = 0;
+        this.floatValues = null;
+        this.intValues = null;
+        this.dirty = false;
+        this.warned = false;
+    }
+
+    void update(int location, int type, int size)
+    {
+        this.location = location;
+        this.type = type;
+        this.size = size;
+        this.warned = false;
+        if (location == -1)
+            return;
+
+        // Values set before a relink are restored as long as the uniform still has the same shape
+        int floatComponents = getFloatComponents(type) * size;
+        int intComponents = getComponents(type) * size;
+        boolean restore = false;
+        if (floatComponents > 0)
+        {
+            restore = this.floatValues != null && this.floatValues.length == floatComponents;
+            if (!restore)
+                this.floatValues = new float[floatComponents];
+            this.intValues = null;
+        }
+        else if (intComponents > 0)
+        {
+            restore = this.intValues != null && this.intValues.length == intComponents;
+            if (!restore)
+                this.intValues = new int[intComponents];
+            this.floatValues = null;
+        }
+        this.dirty = restore;
+        if (restore)
+            this.owner.markDirty();
+    }
+
+    private void warnType(String expected)
+    {
+        if (this.warned)
+            return;
+        this.warned = true;
+        LOGGER.warn("Uniform " + this.name + " of type 0x" + Integer.toHexString(this.type) + " can not be set to " + expected);
+    }
+
+    /**
+     * Sets this uniform to the specified float values. The values are uploaded as scalars, vectors, or matrices depending on the type declared in the shader.
+     *
+     * @param values The values to upload
+     */
+    public void setFloat(float... values)
+    {
+        if (this.location == -1 || values.length == 0)
+            return;
+        if (this.floatValues == null)
+        {
+            this.warnType("float");
+            return;
+        }
+
+        int length = Math.min(values.length, this.floatValues.length);
+        boolean changed = false;
+        for (int i = 0; i < length; i++)
+        {
+            if (Float.floatToRawIntBits(this.floatValues[i]) != Float.floatToRawIntBits(values[i]))
+            {
+                changed = true;
+                break;
+            }
+        }
+        if (!changed)
+            return;
+
+        System.arraycopy(values, 0, this.floatValues, 0, length);
+        this.markChanged();
+    }
+
+    /**
+     * Sets this uniform to the specified integer values. The values are uploaded as scalars or vectors depending on the type declared in the shader. Samplers and booleans are set as integers.
+     *
+     * @param values The values to upload
+     */
+    public void setInt(int... values)
+    {
+        if (this.location == -1 || values.length == 0)
+            return;
+        if (this.intValues == null)
+        {
+            this.warnType("int");
+            return;
+        }
+
+        int length = Math.min(values.length, this.intValues.length);
+        boolean changed = false;
+        for (int i = 0; i < length; i++)
+        {
+            if (this.intValues[i] != values[i])
+            {
+                changed = true;
+                break;
+            }
+        }
+        if (!changed)
+            return;
+
+        System.arraycopy(values, 0, this.intValues, 0, length);
+        this.markChanged();
+    }
+
+    /**
+     * Sets this uniform to the specified matrix.
+     *
+     * @param matrix The matrix to upload
+     */
+    public void setMatrix(Matrix4f matrix)
+    {
+        if (this.location == -1)
+            return;
+        if (this.type != GL_FLOAT_MAT4)
+        {
+            this.warnType("mat4");
+            return;
+        }
+
+        matrix.store(MATRIX_4_4);
+        boolean changed = false;
+        for (int i = 0; i < 16; i++)
+        {
+            if (Float.floatToRawIntBits(this.floatValues[i]) != Float.floatToRawIntBits(MATRIX_4_4.get(i)))
+            {
+                changed = true;
+                break;
+            }
+        }
+        if (!changed)
+            return;
+
+        MATRIX_4_4.get(this.floatValues, 0, 16);
+        MATRIX_4_4.rewind();
+        this.markChanged();
+    }
+
+    private void markChanged()
+    {
+        if (this.owner.isBound())
+        {
+            this.upload(0);
+            this.dirty = false;
+        }
+        else if (!this.dirty)
+        {
+            this.dirty = true;
+            this.owner.markDirty();
+        }
+    }
+
+    /**
+     * Uploads the values of this uniform if they have changed since they were last uploaded.
+     *
+     * @param program The program to upload directly into with <code>glProgramUniform</code> or <code>0</code> to upload into the bound program
+     */
+    void flush(int program)
+    {
+        if (!this.dirty)
+            return;
+        this.dirty = false;
+        if (this.location != -1)
+            this.upload(program);
+    }
+
+    private void upload(int program)
+    {
+        boolean direct = program != 0;
+        int location = this.location;
+        float[] f = this.floatValues;
+        int[] i = this.intValues;
+        switch (this.type)
+        {
+            case GL_FLOAT:
+                if (direct)
+                    glProgramUniform1fv(program, location, f);
+                else
+                    glUniform1fv(location, f);
+                break;
+            case GL_FLOAT_VEC2:
+                if (direct)
+                    glProgramUniform2fv(program, location, f);
+                else
+                    glUniform2fv(location, f);
+                break;
+            case GL_FLOAT_VEC3:
+                if (direct)
+                    glProgramUniform3fv(program, location, f);
+                else
+                    glUniform3fv(location, f);
+                break;
+            case GL_FLOAT_VEC4:
+                if (direct)
+                    glProgramUniform4fv(program, location, f);
+                else
+                    glUniform4fv(location, f);
+                break;
+            case GL_FLOAT_MAT2:
+                if (direct)
+                    glProgramUniformMatrix2fv(program, location, false, f);
+                else
+                    glUniformMatrix2fv(location, false, f);
+                break;
+            case GL_FLOAT_MAT3:
+                if (direct)
+                    glProgramUniformMatrix3fv(program, location, false, f);
+                else
+                    glUniformMatrix3fv(location, false, f);
+                break;
+            case GL_FLOAT_MAT4:
+                if (direct)
+                    glProgramUniformMatrix4fv(program, location, false, f);
+                else
+                    glUniformMatrix4fv(location, false, f);
+                break;
+            case GL_FLOAT_MAT2x3:
+                if (direct)
+                    glProgramUniformMatrix2x3fv(program, location, false, f);
+                else
+                    glUniformMatrix2x3fv(location, false, f);
+                break;
+            case GL_FLOAT_MAT2x4:
+                if (direct)
+                    glProgramUniformMatrix2x4fv(program, location, false, f);
+                else
+                    glUniformMatrix2x4fv(location, false, f);
+                break;
+            case GL_FLOAT_MAT3x2:
+                if (direct)
+                    glProgramUniformMatrix3x2fv(program, location, false, f);
+                else
+                    glUniformMatrix3x2fv(location, false, f);
+                break;
+            case GL_FLOAT_MAT3x4:
+                if (direct)
+                    glProgramUniformMatrix3x4fv(program, location, false, f);
+                else
+                    glUniformMatrix3x4fv(location, false, f);
+                break;
+            case GL_FLOAT_MAT4x2:
+                if (direct)
+                    glProgramUniformMatrix4x2fv(program, location, false, f);
+                else
+                    glUniformMatrix4x2fv(location, false, f);
+                break;
+            case GL_FLOAT_MAT4x3:
+                if (direct)
+                    glProgramUniformMatrix4x3fv(program, location, false, f);
+                else
+                    glUniformMatrix4x3fv(location, false, f);
+                break;
+            case GL_UNSIGNED_INT:
+                if (direct)
+                    glProgramUniform1uiv(program, location, i);
+                else
+                    glUniform1uiv(location, i);
+                break;
+            case GL_UNSIGNED_INT_VEC2:
+                if (direct)
+                    glProgramUniform2uiv(program, location, i);
+                else
+                    glUniform2uiv(location, i);
+                break;
+            case GL_UNSIGNED_INT_VEC3:
+                if (direct)
+                    glProgramUniform3uiv(program, location, i);
+                else
+                    glUniform3uiv(location, i);
+                break;
+            case GL_UNSIGNED_INT_VEC4:
+                if (direct)
+                    glProgramUniform4uiv(program, location, i);
+                else
+                    glUniform4uiv(location, i);
+                break;
+            default:
+                switch (getComponents(this.type))
+                {
+                    case 1:
+                        if (direct)
+                            glProgramUniform1iv(program, location, i);
+                        else
+                            glUniform1iv(location, i);
+                        break;
+                    case 2:
+                        if (direct)
+                            glProgramUniform2iv(program, location, i);
+                        else
+                            glUniform2iv(location, i);
+                        break;
+                    case 3:
+                        if (direct)
+                            glProgramUniform3iv(program, location, i);
+                        else
+                            glUniform3iv(location, i);
+                        break;
+                    case 4:
+                        if (direct)
+                            glProgramUniform4iv(program, location, i);
+                        else
+                            glUniform4iv(location, i);
+                        break;
+                }
+                break;
+        }
+    }
+
+    /**
+     * @return The name of this uniform
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return The location of this uniform in the current program or <code>-1</code> if the program does not use it
+     */
+    public int getLocation()
+    {
+        return location;
+    }
+
+    /**
+     * @return The GL type of this uniform, for example {@link org.lwjgl.opengl.GL20C#GL_FLOAT_VEC3} or <code>0</code> if the program does not use it
+     */
+    public int getType()
+    {
+        return type;
+    }
+
+    /**
+     * @return The number of array elements in this uniform or <code>1</code> if it is not an array
+     */
+    public int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * @return Whether this uniform exists in the current program
+     */
+    public boolean isValid()
+    {
+        return this.location != -1;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ShaderUniform{name=" + this.name + ", location=" + this.location + ", values=" + (this.floatValues != null ? Arrays.toString(this.floatValues) : Arrays.toString(this.intValues)) + "}";
+    }
+
+    /**
+     * Retrieves the number of float components in the specified uniform type.
+     *
+     * @param type The GL type of the uniform
+     * @return The number of components or <code>0</code> if the type is not a float vector or matrix type
+     */
+    static int getFloatComponents(int type)
+    {
+        switch (type)
+        {
+            case GL_FLOAT:
+                return 1;
+            case GL_FLOAT_VEC2:
+                return 2;
+            case GL_FLOAT_VEC3:
+                return 3;
+            case GL_FLOAT_VEC4:
+            case GL_FLOAT_MAT2:
+                return 4;
+            case GL_FLOAT_MAT2x3:
+            case GL_FLOAT_MAT3x2:
+                return 6;
+            case GL_FLOAT_MAT2x4:
+            case GL_FLOAT_MAT4x2:
+                return 8;
+            case GL_FLOAT_MAT3:
+                return 9;
+            case GL_FLOAT_MAT3x4:
+            case GL_FLOAT_MAT4x3:
+                return 12;
+            case GL_FLOAT_MAT4:
+                return 16;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Retrieves the number of integer components in the specified uniform type.
+     *
+     * @param type The GL type of the uniform
+     * @return The number of components or <code>0</code> if the type is not an integer, boolean, or sampler type
+     */
+    static int getComponents(int type)
+    {
+        if (getFloatComponents(type) > 0)
+            return 0;
+        switch (type)
+        {
+            case GL_INT_VEC2:
+            case GL_UNSIGNED_INT_VEC2:
+            case GL_BOOL_VEC2:
+                return 2;
+            case GL_INT_VEC3:
+            case GL_UNSIGNED_INT_VEC3:
+            case GL_BOOL_VEC3:
+                return 3;
+            case GL_INT_VEC4:
+            case GL_UNSIGNED_INT_VEC4:
+            case GL_BOOL_VEC4:
+                return 4;
+            default:
+                return 1; // Scalars and every opaque sampler or image type
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package io.github.ocelot.sonar.client.shader;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import com.mojang.math.Matrix4f;
+import org.apache.commons.lang3.Validate;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.system.NativeResource;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL31C.*;
+import static org.lwjgl.opengl.GL32C.*;
+import static org.lwjgl.opengl.GL44C.*;
+
+/**
+ * <p>A std140 uniform block shared between every program that binds a block to the same binding point.</p>
+ * <p>Programs declare which binding point each of their blocks uses with the <code>blocks</code> object in their JSON, for example <code>"blocks": {"SonarGlobals": 0}</code>. Values are written into a local copy and only sent to the driver with {@link #upload()}, so per-frame globals can be written and uploaded once for all programs.</p>
+ * <p>Each upload is written into the next section of a ring so the driver never has to wait for draws that still read the previous values. If buffer storage is supported, the ring is persistently mapped and guarded with fences. The ring starts with {@value #MIN_SECTIONS} sections and doubles whenever the next section is still in use, so buffers uploaded for every draw end up with enough sections for several frames instead of waiting on the driver.</p>
+ *
+ * @author Ocelot
+ * @since 7.1.0
+ */
+public class UniformBuffer implements NativeResource
+{
+    private static final int MIN_SECTIONS = 3;
+    private static final int MAX_SECTIONS = 384;
+    private static final FloatBuffer MATRIX_4_4 = BufferUtils.createFloatBuffer(16);
+
+    private final int binding;
+    private final Map<String, Member> members;
+    private final int size;
+    private long[] fences;
+    private int sections;
+    private ByteBuffer data;
+    private int stride;
+    private int buffer;
+    private ByteBuffer mapped;
+    private int index;
+    private boolean dirty;
+
+    private UniformBuffer(int binding, Map<String, Member> members, int size)
+    {
+        this.binding = binding;
+        this.members = members;
+        this.size = size;
+        this.data = MemoryUtil.memCalloc(size);
+        this.sections = MIN_SECTIONS;
+        this.fences = new long[MIN_SECTIONS];
+        this.buffer = -1;
+        this.index = 0;
+        this.dirty = true;
+    }
+
+    private void create()
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        if (!ShaderConst.isUniformBufferSupported())
+            throw new UnsupportedOperationException("Uniform buffers are unsupported");
+
+        int alignment = glGetInteger(GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT);
+        this.stride = (this.size + alignment - 1) / alignment * alignment;
+        this.buffer = glGenBuffers();
+        glBindBuffer(GL_UNIFORM_BUFFER, this.buffer);
+        if (ShaderConst.isBufferStorageSupported())
+        {
+            int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+            glBufferStorage(GL_UNIFORM_BUFFER, (long) this.stride * this.sections, flags);
+            this.mapped = glMapBufferRange(GL_UNIFORM_BUFFER, 0, (long) this.stride * this.sections, flags);
+        }
+        else
+        {
+            glBufferData(GL_UNIFORM_BUFFER, (long) this.stride * this.sections, GL_DYNAMIC_DRAW);
+        }
+        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+    }
+
+    private Member getMember(String name, Type type)
+    {
+        Member member = this.members.get(name);
+        if (member == null)
+            throw new IllegalArgumentException("Unknown block member: " + name);
+        if (member.type != type)
+            throw new IllegalArgumentException("Block member " + name + " is " + member.type + ", not " + type);
+        return member;
+    }
+
+    /**
+     * Sets a float member of this block.
+     *
+     * @param name  The name of the member
+     * @param value The new value
+     */
+    public void setFloat(String name, float value)
+    {
+        this.putFloats(this.getMember(name, Type.FLOAT).offset, value);
+    }
+
+    /**
+     * Sets an int member of this block.
+     *
+     * @param name  The name of the member
+     * @param value The new value
+     */
+    public void setInt(String name, int value)
+    {
+        int offset = this.getMember(name, Type.INT).offset;
+        if (this.data.getInt(offset) == value)
+            return;
+        this.data.putInt(offset, value);
+        this.dirty = true;
+    }
+
+    /**
+     * Sets a vec2 member of this block.
+     *
+     * @param name The name of the member
+     * @param x    The x component
+     * @param y    The y component
+     */
+    public void setVector2(String name, float x, float y)
+    {
+        this.putFloats(this.getMember(name, Type.VEC2).offset, x, y);
+    }
+
+    /**
+     * Sets a vec3 member of this block.
+     *
+     * @param name The name of the member
+     * @param x    The x component
+     * @param y    The y component
+     * @param z    The z component
+     */
+    public void setVector3(String name, float x, float y, float z)
+    {
+        this.putFloats(this.getMember(name, Type.VEC3).offset, x, y, z);
+    }
+
+    /**
+     * Sets a vec4 member of this block.
+     *
+     * @param name The name of the member
+     * @param x    The x component
+     * @param y    The y component
+     * @param z    The z component
+     * @param w    The w component
+     */
+    public void setVector4(String name, float x, float y, float z, float w)
+    {
+        this.putFloats(this.getMember(name, Type.VEC4).offset, x, y, z, w);
+    }
+
+    /**
+     * Sets a mat4 member of this block.
+     *
+     * @param name   The name of the member
+     * @param matrix The new value
+     */
+    public void setMatrix(String name, Matrix4f matrix)
+    {
+        int offset = this.getMember(name, Type.MAT4).offset;
+        matrix.store(MATRIX_4_4);
+        for (int i = 0; i < 16; i++)
+        {
+            float value = MATRIX_4_4.get(i);
+            if (this.data.getFloat(offset + i * 4) != value)
+            {
+                this.data.putFloat(offset + i * 4, value);
+                this.dirty = true;
+            }
+        }
+    }
+
+    private void putFloats(int offset, float... values)
+    {
+        for (int i = 0; i < values.length; i++)
+        {
+            if (this.data.getFloat(offset + i * 4) != values[i])
+            {
+                this.data.putFloat(offset + i * 4, values[i]);
+                this.dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Sends any changed values to the driver and binds this buffer to its binding point. Nothing is copied if no values changed since the last upload.
+     */
+    public void upload()
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        if (this.buffer == -1)
+            this.create();
+
+        if (this.dirty)
+        {
+            this.dirty = false;
+            if (this.mapped != null)
+            {
+                // Everything that reads the current section has been submitted, so it can be reused once this fence is signaled
+                this.fences[this.index] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+                this.index = (this.index + 1) % this.sections;
+                if (!this.isSignaled(this.index) && this.sections < MAX_SECTIONS)
+                {
+                    this.grow();
+                }
+                else
+                {
+                    this.waitFence(this.index);
+                }
+                MemoryUtil.memCopy(MemoryUtil.memAddress(this.data), MemoryUtil.memAddress(this.mapped) + (long) this.index * this.stride, this.size);
+            }
+            else
+            {
+                this.index = (this.index + 1) % this.sections;
+                glBindBuffer(GL_UNIFORM_BUFFER, this.buffer);
+                glBufferSubData(GL_UNIFORM_BUFFER, (long) this.index * this.stride, this.data);
+                glBindBuffer(GL_UNIFORM_BUFFER, 0);
+            }
+        }
+        this.bind();
+    }
+
+    /**
+     * Binds the last uploaded values to the binding point of this buffer. Only needed if something else has been bound to the same binding point since {@link #upload()}.
+     */
+    public void bind()
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        if (this.buffer != -1)
+            glBindBufferRange(GL_UNIFORM_BUFFER, this.binding, this.buffer, (long) this.index * this.stride, this.size);
+    }
+
+    /**
+     * Replaces the ring with one twice the size. The old buffer is only deleted by the driver once the draws reading it have finished.
+     */
+    private void grow()
+    {
+        this.deleteBuffer();
+        this.sections = Math.min(MAX_SECTIONS, this.sections * 2);
+        this.fences = new long[this.sections];
+        this.index = 0;
+        this.create();
+    }
+
+    private boolean isSignaled(int index)
+    {
+        long fence = this.fences[index];
+        return fence == 0 || glClientWaitSync(fence, 0, 0) != GL_TIMEOUT_EXPIRED;
+    }
+
+    private void waitFence(int index)
+    {
+        long fence = this.fences[index];
+        if (fence == 0)
+            return;
+        while (true)
+        {
+            int result = glClientWaitSync(fence, GL_SYNC_FLUSH_COMMANDS_BIT, 1000000L);
+            if (result == GL_ALREADY_SIGNALED || result == GL_CONDITION_SATISFIED || result == GL_WAIT_FAILED)
+                break;
+        }
+        glDeleteSync(fence);
+        this.fences[index] = 0;
+    }
+
+    /**
+     * @return The binding point this buffer is bound to
+     */
+    public int getBinding()
+    {
+        return binding;
+    }
+
+    /**
+     * @return The size of this block in bytes, following the std140 layout rules
+     */
+    public int getSize()
+    {
+        return size;
+    }
+
+    @Override
+    public void free()
+    {
+        if (!RenderSystem.isOnRenderThreadOrInit())
+        {
+            RenderSystem.recordRenderCall(this::_free);
+        }
+        else
+        {
+            this._free();
+        }
+    }
+
+    private void _free()
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        this.deleteBuffer();
+        if (this.data != null)
+        {
+            MemoryUtil.memFree(this.data);
+            this.data = null;
+        }
+    }
+
+    private void deleteBuffer()
+    {
+        for (int i = 0; i < this.fences.length; i++)
+        {
+            if (this.fences[i] != 0)
+            {
+                glDeleteSync(this.fences[i]);
+                this.fences[i] = 0;
+            }
+        }
+        if (this.buffer != -1)
+        {
+            if (this.mapped != null)
+            {
+                glBindBuffer(GL_UNIFORM_BUFFER, this.buffer);
+                glUnmapBuffer(GL_UNIFORM_BUFFER);
+                glBindBuffer(GL_UNIFORM_BUFFER, 0);
+                this.mapped = null;
+            }
+            glDeleteBuffers(this.buffer);
+            this.buffer = -1;
+        }
+    }
+
+    /**
+     * <p>The types of member supported in a uniform block.</p>
+     *
+     * @author Ocelot
+     */
+    public enum Type
+    {
+        FLOAT(4, 4), INT(4, 4), VEC2(8, 8), VEC3(16, 12), VEC4(16, 16), MAT4(16, 64);
+
+        private final int alignment;
+        private final int size;
+
+        Type(int alignment, int size)
+        {
+            this.alignment = alignment;
+            this.size = size;
+        }
+    }
+
+    private static class Member
+    {
+        private final Type type;
+        private final int offset;
+
+        private Member(Type type, int offset)
+        {
+            this.type = type;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * <p>Lays out the members of a uniform block in the same order they are declared in GLSL.</p>
+     *
+     * @author Ocelot
+     */
+    public static final class Builder
+    {
+        private final Map<String, Member> members;
+        private int size;
+
+        public Builder()
+        {
+            this.members = new HashMap<>();
+            this.size = 0;
+        }
+
+        /**
+         * Adds the next member of the block.
+         *
+         * @param name The name of the member in GLSL
+         * @param type The type of the member
+         * @return This builder
+         */
+        public Builder add(String name, Type type)
+        {
+            Validate.isTrue(!this.members.containsKey(name), "Duplicate block member: " + name);
+            int offset = (this.size + type.alignment - 1) / type.alignment * type.alignment;
+            this.members.put(name, new Member(type, offset));
+            this.size = offset + type.size;
+            return this;
+        }
+
+        /**
+         * Creates a new buffer with the current members.
+         *
+         * @param binding The binding point programs use for this block
+         * @return A new uniform buffer. The buffer is created on the driver the first time it is uploaded
+         */
+        public UniformBuffer build(int binding)
+        {
+            Validate.isTrue(!this.members.isEmpty(), "Uniform blocks must have at least one member");
+            // The size of a std140 block is padded to the alignment of a vec4
+            return new UniformBuffer(binding, new HashMap<>(this.members), (this.size + 15) / 16 * 16);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package io.github.ocelot.sonar.client.shader;
+
+import javax.annotation.Nullable;
+import java.util.function.Consumer;
+
+/**
+ * <p>An open-addressed map from uniform names to their handles.</p>
+ * <p>Lookups accept any {@link CharSequence} and compare characters directly, so no strings are created or boxed when looking up uniforms.</p>
+ *
+ * @author Ocelot
+ * @since 7.1.0
+ */
+final class UniformMap
+{
+    private String[] keys;
+    private ShaderUniform[] values;
+    private int size;
+
+    UniformMap()
+    {
+        this.keys = new String[16];
+        this.values = new ShaderUniform[16];
+        this.size = 0;
+    }
+
+    /**
+     * Retrieves the handle with the specified name.
+     *
+     * @param name The name of the uniform
+     * @return The handle or <code>null</code> if there is no handle with that name
+     */
+    @Nullable
+    ShaderUniform get(CharSequence name)
+    {
+        int mask = this.keys.length - 1;
+        for (int i = hash(name) & mask; this.keys[i] != null; i = (i + 1) & mask)
+            if (equals(this.keys[i], name))
+                return this.values[i];
+        return null;
+    }
+
+    /**
+     * Adds a handle under the specified name, replacing any previous handle.
+     *
+     * @param name    The name of the uniform
+     * @param uniform The handle to add
+     */
+    void put(String name, ShaderUniform uniform)
+    {
+        if ((this.size + 1) * 2 > this.keys.length)
+            this.resize(this.keys.length * 2);
+
+        int mask = this.keys.length - 1;
+        int i = hash(name) & mask;
+        while (this.keys[i] != null)
+        {
+            if (this.keys[i].equals(name))
+            {
+                this.values[i] = uniform;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        this.keys[i] = name;
+        this.values[i] = uniform;
+        this.size++;
+    }
+
+    /**
+     * Runs the specified action for every handle in this map. Handles added under multiple names are visited once per name.
+     *
+     * @param action The action to run
+     */
+    void forEach(Consumer<ShaderUniform> action)
+    {
+        for (ShaderUniform uniform : this.values)
+            if (uniform != null)
+                action.accept(uniform);
+    }
+
+    private void resize(int capacity)
+    {
+        String[] oldKeys = this.keys;
+        ShaderUniform[] oldValues = this.values;
+        this.keys = new String[capacity];
+        this.values = new ShaderUniform[capacity];
+        this.size = 0;
+        for (int i = 0; i < oldKeys.length; i++)
+            if (oldKeys[i] != null)
+                this.put(oldKeys[i], oldValues[i]);
+    }
+
+    private static int hash(CharSequence name)
+    {
+        int hash;
+        if (name instanceof String)
+        {
+            hash = name.hashCode();
+        }
+        else
+        {
+            hash = 0;
+            for (int i = 0; i < name.length(); i++)
+                hash = 31 * hash + name.charAt(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equals(String key, CharSequence name)
+    {
+        if (key.length() != name.length())
+            return false;
+        for (int i = 0; i < key.length(); i++)
+            if (key.charAt(i) != name.charAt(i))
+                return false;
+        return true;
+    }
+}
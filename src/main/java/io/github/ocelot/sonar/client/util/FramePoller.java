@@ -0,0 +1,85 @@
+package io.github.ocelot.sonar.client.util;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import net.minecraftforge.api.distmarker.Dist;
+import net.minecraftforge.api.distmarker.OnlyIn;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.event.TickEvent;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * <p>Checks tasks waiting on the driver once at the start of every frame.</p>
+ * <p>Re-recording a render call from inside a render call runs it again before the frame ends, which waits for the driver in a loop. Tasks added here are only checked again the next frame.</p>
+ *
+ * @author Ocelot
+ * @since 7.1.0
+ */
+@OnlyIn(Dist.CLIENT)
+public final class FramePoller
+{
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final List<BooleanSupplier> TASKS = new ArrayList<>();
+    private static final List<BooleanSupplier> ADDED = new ArrayList<>();
+    private static boolean polling;
+
+    static
+    {
+        MinecraftForge.EVENT_BUS.addListener(FramePoller::onRenderTick);
+    }
+
+    private FramePoller()
+    {
+    }
+
+    private static void onRenderTick(TickEvent.RenderTickEvent event)
+    {
+        if (event.phase != TickEvent.Phase.START)
+            return;
+
+        polling = true;
+        try
+        {
+            TASKS.removeIf(task ->
+            {
+                try
+                {
+                    return task.getAsBoolean();
+                }
+                catch (Throwable t)
+                {
+                    LOGGER.error("Error polling task", t);
+                    return true;
+                }
+            });
+        }
+        finally
+        {
+            polling = false;
+            TASKS.addAll(ADDED);
+            ADDED.clear();
+        }
+    }
+
+    /**
+     * Adds a task to check at the start of every frame. The task is not run right away.
+     *
+     * @param task Checks the driver and returns <code>true</code> once it is finished and should no longer be checked
+     */
+    public static void poll(BooleanSupplier task)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        if (polling)
+        {
+            ADDED.add(task);
+        }
+        else
+        {
+            TASKS.add(task);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package io.github.ocelot.sonar.client.util;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import net.minecraftforge.api.distmarker.Dist;
+import net.minecraftforge.api.distmarker.OnlyIn;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.fml.loading.FMLEnvironment;
+import org.apache.commons.lang3.Validate;
+
+import static org.lwjgl.opengl.GL30C.*;
+
+/**
+ * <p>Tracks the framebuffers, program, and textures bound by Sonar so binding an object that is already bound does not call into the driver.</p>
+ * <p>Vanilla and other mods bind framebuffers and programs without going through this class, so binds are only skipped between {@link #beginSequence()} and {@link #endSequence()}, where Sonar owns every bind. Outside of a sequence every bind is issued. The tracked state is forgotten when the outermost sequence begins and at the start of every frame, and {@link #invalidate()} must be called after code inside a sequence that binds framebuffers or programs directly. Active texture units and 2D textures are passed on to {@link RenderSystem}, which already skips redundant binds, so vanilla's own state stays correct.</p>
+ * <p>Outside of production, the number of binds issued and skipped each frame are counted and can be read with {@link #getIssuedBinds(BindType)} and {@link #getSkippedBinds(BindType)}.</p>
+ *
+ * @author Ocelot
+ * @since 7.1.0
+ */
+@OnlyIn(Dist.CLIENT)
+public final class GlStateTracker
+{
+    private static final boolean DEBUG = !FMLEnvironment.production;
+    private static final int UNKNOWN = -1;
+    private static final Int2IntMap TEXTURES = new Int2IntOpenHashMap();
+    private static final BindType[] BIND_TYPES = BindType.values();
+    private static final int[] ISSUED = new int[BIND_TYPES.length];
+    private static final int[] SKIPPED = new int[BIND_TYPES.length];
+    private static final int[] LAST_ISSUED = new int[BIND_TYPES.length];
+    private static final int[] LAST_SKIPPED = new int[BIND_TYPES.length];
+
+    private static int readFramebuffer = UNKNOWN;
+    private static int drawFramebuffer = UNKNOWN;
+    private static int program = UNKNOWN;
+    private static int sequenceDepth = 0;
+
+    static
+    {
+        TEXTURES.defaultReturnValue(UNKNOWN);
+        MinecraftForge.EVENT_BUS.addListener(GlStateTracker::onRenderTick);
+    }
+
+    private GlStateTracker()
+    {
+    }
+
+    private static void onRenderTick(TickEvent.RenderTickEvent event)
+    {
+        if (event.phase == TickEvent.Phase.START)
+        {
+            // Vanilla binds whatever it needs between frames. A sequence left open by an error would otherwise skip binds forever
+            invalidate();
+            sequenceDepth = 0;
+        }
+        else if (DEBUG)
+        {
+            System.arraycopy(ISSUED, 0, LAST_ISSUED, 0, ISSUED.length);
+            System.arraycopy(SKIPPED, 0, LAST_SKIPPED, 0, SKIPPED.length);
+            for (int i = 0; i < ISSUED.length; i++)
+            {
+                ISSUED[i] = 0;
+                SKIPPED[i] = 0;
+            }
+        }
+    }
+
+    private static boolean count(BindType type, boolean bound)
+    {
+        boolean skipped = bound && sequenceDepth > 0;
+        if (DEBUG)
+        {
+            if (skipped)
+            {
+                SKIPPED[type.ordinal()]++;
+            }
+            else
+            {
+                ISSUED[type.ordinal()]++;
+            }
+        }
+        return skipped;
+    }
+
+    /**
+     * Starts a sequence of binds that are all made through this class, so binds of objects that are already bound can be skipped. Sequences may be nested and each must be ended with {@link #endSequence()}.
+     */
+    public static void beginSequence()
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        // Anything may have been bound since the last sequence
+        if (sequenceDepth++ == 0)
+            invalidate();
+    }
+
+    /**
+     * Ends a sequence started with {@link #beginSequence()}. Once the outermost sequence ends, every bind is issued again.
+     *
+     * @throws IllegalStateException If no sequence was started
+     */
+    public static void endSequence()
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        Validate.validState(sequenceDepth > 0, "No sequence was started");
+        sequenceDepth--;
+    }
+
+    /**
+     * Binds a framebuffer. Inside a sequence, the bind is skipped if the framebuffer is already bound, so any framebuffer bound without this class must be followed by {@link #invalidate()}.
+     *
+     * @param target      The framebuffer target. One of <code>GL_FRAMEBUFFER</code>, <code>GL_READ_FRAMEBUFFER</code>, or <code>GL_DRAW_FRAMEBUFFER</code>
+     * @param framebuffer The id of the framebuffer to bind
+     */
+    public static void bindFramebuffer(int target, int framebuffer)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        switch (target)
+        {
+            case GL_FRAMEBUFFER:
+                if (count(BindType.FRAMEBUFFER, readFramebuffer == framebuffer && drawFramebuffer == framebuffer))
+                    return;
+                readFramebuffer = framebuffer;
+                drawFramebuffer = framebuffer;
+                break;
+            case GL_READ_FRAMEBUFFER:
+                if (count(BindType.FRAMEBUFFER, readFramebuffer == framebuffer))
+                    return;
+                readFramebuffer = framebuffer;
+                break;
+            case GL_DRAW_FRAMEBUFFER:
+                if (count(BindType.FRAMEBUFFER, drawFramebuffer == framebuffer))
+                    return;
+                drawFramebuffer = framebuffer;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown framebuffer target: 0x" + Integer.toHexString(target));
+        }
+        glBindFramebuffer(target, framebuffer);
+    }
+
+    /**
+     * Uses a program. Inside a sequence, the bind is skipped if the program is already in use.
+     *
+     * @param program The id of the program to use or <code>0</code> for the fixed function pipeline
+     */
+    public static void useProgram(int program)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        if (count(BindType.PROGRAM, GlStateTracker.program == program))
+            return;
+        GlStateTracker.program = program;
+        glUseProgram(program);
+    }
+
+    /**
+     * Binds a texture to the specified unit. Inside a sequence, non-2D binds are skipped if the texture is already bound. The unit is left active afterwards.
+     *
+     * @param unit    The texture unit to bind to, starting at <code>0</code>
+     * @param target  The texture target, such as <code>GL_TEXTURE_2D</code>
+     * @param texture The id of the texture to bind
+     */
+    public static void bindTexture(int unit, int target, int texture)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        RenderSystem.activeTexture(GL_TEXTURE0 + unit);
+        if (target == GL_TEXTURE_2D)
+        {
+            RenderSystem.bindTexture(texture);
+            return;
+        }
+
+        // Vanilla only binds 2D textures, so other targets can be tracked here safely
+        int key = unit << 16 | (target & 0xFFFF);
+        if (count(BindType.TEXTURE, TEXTURES.get(key) == texture))
+            return;
+        TEXTURES.put(key, texture);
+        glBindTexture(target, texture);
+    }
+
+    /**
+     * Forgets a deleted framebuffer. The driver binds the default framebuffer in place of a deleted framebuffer.
+     *
+     * @param framebuffer The id of the framebuffer that was deleted
+     */
+    public static void onFramebufferDeleted(int framebuffer)
+    {
+        if (readFramebuffer == framebuffer)
+            readFramebuffer = 0;
+        if (drawFramebuffer == framebuffer)
+            drawFramebuffer = 0;
+    }
+
+    /**
+     * Forgets a deleted program. The id may be reused by a new program, so the next program used is always bound.
+     *
+     * @param program The id of the program that was deleted
+     */
+    public static void onProgramDeleted(int program)
+    {
+        if (GlStateTracker.program == program)
+            GlStateTracker.program = UNKNOWN;
+    }
+
+    /**
+     * Forgets a deleted texture. The id may be reused by a new texture, so the next texture bound to the same unit is always bound.
+     *
+     * @param texture The id of the texture that was deleted
+     */
+    public static void onTextureDeleted(int texture)
+    {
+        TEXTURES.int2IntEntrySet().removeIf(entry -> entry.getIntValue() == texture);
+    }
+
+    /**
+     * Forgets the tracked non-2D texture bindings. This must be called after binding a non-2D texture without this class.
+     */
+    public static void invalidateTextures()
+    {
+        TEXTURES.clear();
+    }
+
+    /**
+     * Forgets all tracked state so the next binds always call into the driver. This must be called after anything inside a sequence binds framebuffers, programs, or non-2D textures without this class.
+     */
+    public static void invalidate()
+    {
+        readFramebuffer = UNKNOWN;
+        drawFramebuffer = UNKNOWN;
+        program = UNKNOWN;
+        TEXTURES.clear();
+    }
+
+    /**
+     * @return Whether binds are currently inside a sequence and may be skipped
+     */
+    public static boolean isInSequence()
+    {
+        return sequenceDepth > 0;
+    }
+
+    /**
+     * @return The id of the last framebuffer bound for reading through this class or <code>-1</code> if it is not known. Outside of a sequence, it may have been replaced since
+     */
+    public static int getReadFramebuffer()
+    {
+        return readFramebuffer;
+    }
+
+    /**
+     * @return The id of the last framebuffer bound for drawing through this class or <code>-1</code> if it is not known. Outside of a sequence, it may have been replaced since
+     */
+    public static int getDrawFramebuffer()
+    {
+        return drawFramebuffer;
+    }
+
+    /**
+     * @return The id of the last program used through this class or <code>-1</code> if it is not known. Outside of a sequence, it may have been replaced since
+     */
+    public static int getProgram()
+    {
+        return program;
+    }
+
+    /**
+     * Checks how many binds of the specified type called into the driver last frame. Always <code>0</code> in production.
+     *
+     * @param type The type of bind to check
+     * @return The number of binds issued
+     */
+    public static int getIssuedBinds(BindType type)
+    {
+        return LAST_ISSUED[type.ordinal()];
+    }
+
+    /**
+     * Checks how many binds of the specified type were skipped last frame because the object was already bound. Always <code>0</code> in production.
+     *
+     * @param type The type of bind to check
+     * @return The number of binds skipped
+     */
+    public static int getSkippedBinds(BindType type)
+    {
+        return LAST_SKIPPED[type.ordinal()];
+    }
+
+    /**
+     * <p>The kinds of binds counted by the tracker.</p>
+     *
+     * @author Ocelot
+     * @since 7.1.0
+     */
+    public enum BindType
+    {
+        FRAMEBUFFER, PROGRAM, TEXTURE
+    }
+}
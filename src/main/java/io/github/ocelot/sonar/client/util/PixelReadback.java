@@ -0,0 +1,173 @@
+package io.github.ocelot.sonar.client.util;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import net.minecraftforge.api.distmarker.Dist;
+import net.minecraftforge.api.distmarker.OnlyIn;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntFunction;
+
+import static org.lwjgl.opengl.GL32C.*;
+
+/**
+ * <p>Reads pixels from the driver into a small ring of pixel pack buffers without waiting for the driver.</p>
+ * <p>Each read is copied into a pack buffer and followed by a fence. The fence is checked by {@link FramePoller} at the start of every frame and the pixels are copied out once the driver has finished, so the render thread does not wait for the driver. Without fences the pixels are copied out right away.</p>
+ * <p>Pack buffers larger than {@value #MAX_POOLED_SIZE} bytes are deleted once their read completes, so a single large read does not keep its memory for the rest of the session.</p>
+ *
+ * @author Ocelot
+ * @since 7.1.0
+ */
+@OnlyIn(Dist.CLIENT)
+public final class PixelReadback
+{
+    private static final int RING_SIZE = 4;
+    private static final int MAX_POOLED_SIZE = 16 * 1024 * 1024;
+    private static final Deque<PackBuffer> AVAILABLE = new ArrayDeque<>(RING_SIZE);
+
+    private PixelReadback()
+    {
+    }
+
+    /**
+     * Reads pixels into a pack buffer and copies them out once the driver has finished.
+     *
+     * @param size        The number of bytes that will be read
+     * @param readCommand Reads the pixels with an offset of <code>0</code>, for example with <code>glReadPixels</code> or <code>glGetTexImage</code>. A pack buffer with enough space is bound while this runs
+     * @param allocator   Creates the buffer to copy the pixels into once they are ready
+     * @return A future that completes on the render thread with the buffer returned by the allocator
+     */
+    public static CompletableFuture<ByteBuffer> read(int size, Runnable readCommand, IntFunction<ByteBuffer> allocator)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        PackBuffer buffer = AVAILABLE.poll();
+        if (buffer == null)
+            buffer = new PackBuffer();
+        buffer.resize(size);
+
+        int lastAlignment = glGetInteger(GL_PACK_ALIGNMENT);
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, buffer.id);
+        RenderSystem.pixelStore(GL_PACK_ALIGNMENT, 1);
+        try
+        {
+            readCommand.run();
+        }
+        finally
+        {
+            glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+            RenderSystem.pixelStore(GL_PACK_ALIGNMENT, lastAlignment);
+        }
+
+        CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+        GLCapabilities capabilities = GL.getCapabilities();
+        if (capabilities.OpenGL32 || capabilities.GL_ARB_sync)
+        {
+            long fence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+            glFlush();
+            PackBuffer readBuffer = buffer;
+            FramePoller.poll(() ->
+            {
+                if (glClientWaitSync(fence, 0, 0) == GL_TIMEOUT_EXPIRED)
+                    return false;
+                glDeleteSync(fence);
+                complete(readBuffer, size, allocator, future);
+                return true;
+            });
+        }
+        else
+        {
+            // Without fences the only option is to copy right away
+            complete(buffer, size, allocator, future);
+        }
+        return future;
+    }
+
+    private static void complete(PackBuffer buffer, int size, IntFunction<ByteBuffer> allocator, CompletableFuture<ByteBuffer> future)
+    {
+        try
+        {
+            ByteBuffer pixels = allocator.apply(size);
+            glBindBuffer(GL_PIXEL_PACK_BUFFER, buffer.id);
+            nglGetBufferSubData(GL_PIXEL_PACK_BUFFER, 0, size, MemoryUtil.memAddress(pixels));
+            future.complete(pixels);
+        }
+        catch (Throwable t)
+        {
+            future.completeExceptionally(t);
+        }
+        finally
+        {
+            glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+            release(buffer);
+        }
+    }
+
+    private static void release(PackBuffer buffer)
+    {
+        // Buffers created while the ring was exhausted are only kept if there is room, and large buffers are never kept
+        if (AVAILABLE.size() < RING_SIZE && buffer.capacity <= MAX_POOLED_SIZE)
+        {
+            AVAILABLE.push(buffer);
+        }
+        else
+        {
+            glDeleteBuffers(buffer.id);
+        }
+    }
+
+    /**
+     * Calculates the number of components for each pixel in the specified format.
+     *
+     * @param format The GL format of the pixels
+     * @return The number of components
+     * @throws IllegalArgumentException If the format is not a color format
+     */
+    public static int getComponents(int format)
+    {
+        switch (format)
+        {
+            case GL_RED:
+            case GL_GREEN:
+            case GL_BLUE:
+            case GL_ALPHA:
+                return 1;
+            case GL_RG:
+                return 2;
+            case GL_RGB:
+            case GL_BGR:
+                return 3;
+            case GL_RGBA:
+            case GL_BGRA:
+                return 4;
+            default:
+                throw new IllegalArgumentException("Unsupported pixel format: 0x" + Integer.toHexString(format));
+        }
+    }
+
+    private static class PackBuffer
+    {
+        private final int id;
+        private int capacity;
+
+        private PackBuffer()
+        {
+            this.id = glGenBuffers();
+            this.capacity = 0;
+        }
+
+        private void resize(int size)
+        {
+            if (this.capacity >= size)
+                return;
+            glBindBuffer(GL_PIXEL_PACK_BUFFER, this.id);
+            glBufferData(GL_PIXEL_PACK_BUFFER, size, GL_STREAM_READ);
+            glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+            this.capacity = size;
+        }
+    }
+}
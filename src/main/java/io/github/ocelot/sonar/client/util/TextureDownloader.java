@@ -1,20 +1,31 @@
 package io.github.ocelot.sonar.client.util;
 
+import com.mojang.blaze3d.systems.RenderSystem;
 import net.minecraft.Util;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.renderer.texture.AbstractTexture;
 import net.minecraft.client.renderer.texture.MissingTextureAtlasSprite;
 import net.minecraft.resources.ResourceLocation;
-import org.lwjgl.BufferUtils;
+import org.lwjgl.system.MemoryUtil;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import static org.lwjgl.opengl.GL11C.*;
 import static org.lwjgl.opengl.GL12C.GL_TEXTURE_BASE_LEVEL;
@@ -23,14 +34,19 @@ import static org.lwjgl.stb.STBImageWrite.stbi_write_png;
 
 /**
  * <p>Properly downloads textures from OpenGL and writes them to a file asynchronously.</p>
+ * <p>Levels are read through {@link PixelReadback}, so the copy is only collected once its fence has signaled at the start of a later frame and the render thread does not wait for the driver. Each level is then encoded in parallel on the IO pool.</p>
  *
  * @author Ocelot
  * @since 7.1.0
  */
 public class TextureDownloader
 {
+    private static final long MAX_POOLED_BYTES = 64L * 1024 * 1024;
+    private static final List<ByteBuffer> BUFFER_POOL = new ArrayList<>();
+    private static long pooledBytes = 0;
+
     /**
-     * Writes the specified texture to file with the specified name. If the texture specifies mipmap levels, then the file name will be <code>name-#.png</code>.
+     * Writes the specified texture to file with the specified name as a PNG. If the texture specifies mipmap levels, then the file name will be <code>name-#.png</code>.
      *
      * @param name         The name of the file to save to
      * @param outputFolder The folder to place the file in
@@ -39,7 +55,43 @@ public class TextureDownloader
      */
     public static CompletableFuture<?> save(String name, Path outputFolder, int texture)
     {
-        glBindTexture(GL_TEXTURE_2D, texture);
+        return save(name, outputFolder, texture, Encoder.PNG);
+    }
+
+    /**
+     * Writes the specified texture to file with the specified name. If the texture specifies mipmap levels, then the file name will be <code>name-#</code> followed by the extension of the encoder.
+     *
+     * @param name         The name of the file to save to
+     * @param outputFolder The folder to place the file in
+     * @param texture      The id of the texture to download
+     * @param encoder      The encoder to write each level with
+     * @return A future for when all texture levels have been downloaded and saved
+     */
+    public static CompletableFuture<?> save(String name, Path outputFolder, int texture, Encoder encoder)
+    {
+        if (!RenderSystem.isOnRenderThreadOrInit())
+        {
+            CompletableFuture<Object> future = new CompletableFuture<>();
+            RenderSystem.recordRenderCall(() -> _save(name, outputFolder, texture, encoder).whenComplete((result, error) ->
+            {
+                if (error != null)
+                {
+                    future.completeExceptionally(error);
+                }
+                else
+                {
+                    future.complete(result);
+                }
+            }));
+            return future;
+        }
+        return _save(name, outputFolder, texture, encoder);
+    }
+
+    private static CompletableFuture<?> _save(String name, Path outputFolder, int texture, Encoder encoder)
+    {
+        RenderSystem.assertThread(RenderSystem::isOnRenderThreadOrInit);
+        RenderSystem.bindTexture(texture);
         int base = glGetTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL);
         int max = glGetTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL);
         if (max == 1000)
@@ -48,38 +100,35 @@ public class TextureDownloader
         List<CompletableFuture<?>> result = new ArrayList<>(max - base + 1);
         for (int level = base; level <= max; level++)
         {
-            Path outputFile = outputFolder.resolve(name + (base == max ? "" : "-" + level) + ".png");
-            if (!Files.exists(outputFile))
+            Path outputFile = outputFolder.resolve(name + (base == max ? "" : "-" + level) + encoder.getExtension());
+            int width = glGetTexLevelParameteri(GL_TEXTURE_2D, level, GL_TEXTURE_WIDTH);
+            int height = glGetTexLevelParameteri(GL_TEXTURE_2D, level, GL_TEXTURE_HEIGHT);
+            if (width <= 0 || height <= 0)
+                continue;
+
+            int textureLevel = level;
+            result.add(PixelReadback.read(width * height * 4, () -> glGetTexImage(GL_TEXTURE_2D, textureLevel, GL_RGBA, GL_UNSIGNED_BYTE, 0L), TextureDownloader::allocate).thenAcceptAsync(image ->
             {
                 try
                 {
-                    Files.createFile(outputFile);
+                    Files.createDirectories(outputFolder);
+                    encoder.write(outputFile, width, height, image);
                 }
-                catch (Exception e)
+                catch (IOException e)
                 {
-                    result.add(Util.failedFuture(e));
-                    continue;
+                    throw new CompletionException(e);
                 }
-            }
-
-            int width = glGetTexLevelParameteri(GL_TEXTURE_2D, level, GL_TEXTURE_WIDTH);
-            int height = glGetTexLevelParameteri(GL_TEXTURE_2D, level, GL_TEXTURE_HEIGHT);
-
-            ByteBuffer image = BufferUtils.createByteBuffer(width * height * 4);
-            glGetTexImage(GL_TEXTURE_2D, level, GL_RGBA, GL_UNSIGNED_BYTE, image);
-
-            CompletableFuture<?> future = CompletableFuture.runAsync(() ->
-            {
-                if (!stbi_write_png(outputFile.toString(), width, height, 4, image, 0))
-                    throw new CompletionException(new IOException("Failed to write image to: " + outputFile));
-            }, Util.ioPool());
-            result.add(future);
+                finally
+                {
+                    release(image);
+                }
+            }, Util.ioPool()));
         }
         return Util.sequence(result);
     }
 
     /**
-     * Writes the specified texture to file with the specified name. If the texture specifies mipmap levels, then the file name will be <code>name-#.png</code>.
+     * Writes the specified texture to file with the specified name as a PNG. If the texture specifies mipmap levels, then the file name will be <code>name-#.png</code>.
      *
      * @param name         The name of the file to save to
      * @param outputFolder The folder to place the file in
@@ -92,7 +141,21 @@ public class TextureDownloader
     }
 
     /**
-     * Writes the specified texture to file with the specified name. If the texture specifies mipmap levels, then the file name will be <code>name-#.png</code>. The missing texture will be written if there is no texture with that id.
+     * Writes the specified texture to file with the specified name. If the texture specifies mipmap levels, then the file name will be <code>name-#</code> followed by the extension of the encoder.
+     *
+     * @param name         The name of the file to save to
+     * @param outputFolder The folder to place the file in
+     * @param texture      The texture object to download
+     * @param encoder      The encoder to write each level with
+     * @return A future for when all texture levels have been downloaded and saved
+     */
+    public static CompletableFuture<?> save(String name, Path outputFolder, AbstractTexture texture, Encoder encoder)
+    {
+        return save(name, outputFolder, texture.getId(), encoder);
+    }
+
+    /**
+     * Writes the specified texture to file with the specified name as a PNG. If the texture specifies mipmap levels, then the file name will be <code>name-#.png</code>. The missing texture will be written if there is no texture with that id.
      *
      * @param name         The name of the file to save to
      * @param outputFolder The folder to place the file in
@@ -100,8 +163,243 @@ public class TextureDownloader
      * @return A future for when all texture levels have been downloaded and saved
      */
     public static CompletableFuture<?> save(String name, Path outputFolder, ResourceLocation texture)
+    {
+        return save(name, outputFolder, texture, Encoder.PNG);
+    }
+
+    /**
+     * Writes the specified texture to file with the specified name. If the texture specifies mipmap levels, then the file name will be <code>name-#</code> followed by the extension of the encoder. The missing texture will be written if there is no texture with that id.
+     *
+     * @param name         The name of the file to save to
+     * @param outputFolder The folder to place the file in
+     * @param texture      The id of the registered texture object
+     * @param encoder      The encoder to write each level with
+     * @return A future for when all texture levels have been downloaded and saved
+     */
+    public static CompletableFuture<?> save(String name, Path outputFolder, ResourceLocation texture, Encoder encoder)
     {
         AbstractTexture abstractTexture = Minecraft.getInstance().getTextureManager().getTexture(texture);
-        return save(name, outputFolder, abstractTexture != null ? abstractTexture : MissingTextureAtlasSprite.getTexture());
+        return save(name, outputFolder, abstractTexture != null ? abstractTexture : MissingTextureAtlasSprite.getTexture(), encoder);
+    }
+
+    /**
+     * Takes the smallest pooled buffer that can fit the specified size or allocates a new one.
+     */
+    private static synchronized ByteBuffer allocate(int size)
+    {
+        ByteBuffer best = null;
+        for (ByteBuffer buffer : BUFFER_POOL)
+            if (buffer.capacity() >= size && (best == null || buffer.capacity() < best.capacity()))
+                best = buffer;
+
+        if (best == null)
+            return MemoryUtil.memAlloc(size);
+
+        BUFFER_POOL.remove(best);
+        pooledBytes -= best.capacity();
+        best.clear().limit(size);
+        return best;
+    }
+
+    /**
+     * Returns a buffer to the pool, freeing the largest buffers if the pool grows too large.
+     */
+    private static synchronized void release(ByteBuffer buffer)
+    {
+        BUFFER_POOL.add(buffer);
+        pooledBytes += buffer.capacity();
+        while (pooledBytes > MAX_POOLED_BYTES)
+        {
+            ByteBuffer largest = null;
+            for (ByteBuffer pooled : BUFFER_POOL)
+                if (largest == null || pooled.capacity() > largest.capacity())
+                    largest = pooled;
+            BUFFER_POOL.remove(largest);
+            pooledBytes -= largest.capacity();
+            MemoryUtil.memFree(largest);
+        }
+    }
+
+    private static void writePng(Path file, int width, int height, ByteBuffer pixels, int level) throws IOException
+    {
+        Deflater deflater = new Deflater(level);
+        try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(file)))
+        {
+            stream.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'});
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+            DataOutputStream headerStream = new DataOutputStream(header);
+            headerStream.writeInt(width);
+            headerStream.writeInt(height);
+            headerStream.writeByte(8); // Bit depth
+            headerStream.writeByte(6); // RGBA
+            headerStream.writeByte(0); // Deflate
+            headerStream.writeByte(0); // Adaptive filtering
+            headerStream.writeByte(0); // No interlacing
+            writeChunk(stream, "IHDR", header.toByteArray(), header.size());
+
+            try (DeflaterOutputStream imageStream = new DeflaterOutputStream(new ImageDataStream(stream), deflater, 65536))
+            {
+                byte[] row = new byte[width * 4];
+                for (int y = 0; y < height; y++)
+                {
+                    pixels.position(y * row.length);
+                    pixels.get(row);
+                    imageStream.write(0); // No filter, which compresses worse but is much faster to encode
+                    imageStream.write(row);
+                }
+            }
+
+            writeChunk(stream, "IEND", new byte[0], 0);
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    private static void writeChunk(OutputStream stream, String type, byte[] data, int length) throws IOException
+    {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        DataOutputStream dataStream = new DataOutputStream(stream);
+        dataStream.writeInt(length);
+        dataStream.write(typeBytes);
+        dataStream.write(data, 0, length);
+        dataStream.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * <p>The formats textures can be written in.</p>
+     *
+     * @author Ocelot
+     * @since 7.1.0
+     */
+    public enum Encoder
+    {
+        /**
+         * A PNG compressed by STB. Produces the smallest files, but is the slowest to encode.
+         */
+        PNG(".png")
+                {
+                    @Override
+                    void write(Path file, int width, int height, ByteBuffer pixels) throws IOException
+                    {
+                        if (!stbi_write_png(file.toString(), width, height, 4, pixels, 0))
+                            throw new IOException("Failed to write image to: " + file);
+                    }
+                },
+        /**
+         * A PNG with the fastest deflate level and no filtering.
+         */
+        PNG_FAST(".png")
+                {
+                    @Override
+                    void write(Path file, int width, int height, ByteBuffer pixels) throws IOException
+                    {
+                        writePng(file, width, height, pixels, Deflater.BEST_SPEED);
+                    }
+                },
+        /**
+         * A PNG with uncompressed image data. Large, but almost free to encode.
+         */
+        PNG_UNCOMPRESSED(".png")
+                {
+                    @Override
+                    void write(Path file, int width, int height, ByteBuffer pixels) throws IOException
+                    {
+                        writePng(file, width, height, pixels, Deflater.NO_COMPRESSION);
+                    }
+                },
+        /**
+         * The raw RGBA bytes of the texture, one row after another with no header.
+         */
+        RAW(".rgba")
+                {
+                    @Override
+                    void write(Path file, int width, int height, ByteBuffer pixels) throws IOException
+                    {
+                        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+                        {
+                            while (pixels.hasRemaining())
+                                channel.write(pixels);
+                        }
+                    }
+                };
+
+        private final String extension;
+
+        Encoder(String extension)
+        {
+            this.extension = extension;
+        }
+
+        abstract void write(Path file, int width, int height, ByteBuffer pixels) throws IOException;
+
+        /**
+         * @return The file extension of files written with this encoder
+         */
+        public String getExtension()
+        {
+            return this.extension;
+        }
+    }
+
+    /**
+     * <p>Splits compressed image data into PNG <code>IDAT</code> chunks as it is written.</p>
+     */
+    private static class ImageDataStream extends OutputStream
+    {
+        private final OutputStream parent;
+        private final byte[] buffer;
+        private int size;
+
+        private ImageDataStream(OutputStream parent)
+        {
+            this.parent = parent;
+            this.buffer = new byte[65536];
+            this.size = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            if (this.size == this.buffer.length)
+                this.flushChunk();
+            this.buffer[this.size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            while (len > 0)
+            {
+                if (this.size == this.buffer.length)
+                    this.flushChunk();
+                int count = Math.min(len, this.buffer.length - this.size);
+                System.arraycopy(b, off, this.buffer, this.size, count);
+                this.size += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        private void flushChunk() throws IOException
+        {
+            if (this.size == 0)
+                return;
+            writeChunk(this.parent, "IDAT", this.buffer, this.size);
+            this.size = 0;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            // The parent stream is still needed for the end chunk
+            this.flushChunk();
+        }
     }
 }
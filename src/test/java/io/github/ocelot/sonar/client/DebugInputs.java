@@ -1,6 +1,9 @@
 package io.github.ocelot.sonar.client;
 
+import com.mojang.blaze3d.systems.RenderSystem;
 import io.github.ocelot.sonar.TestMod;
+import io.github.ocelot.sonar.client.framebuffer.AdvancedFbo;
+import io.github.ocelot.sonar.client.shader.ShaderConst;
 import net.minecraft.Util;
 import net.minecraft.client.Minecraft;
 import net.minecraftforge.api.distmarker.Dist;
@@ -8,21 +11,36 @@ import net.minecraftforge.client.event.InputEvent;
 import net.minecraftforge.eventbus.api.SubscribeEvent;
 import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.fml.loading.FMLLoader;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.lwjgl.BufferUtils;
 import org.lwjgl.glfw.GLFW;
+import org.lwjgl.system.MemoryStack;
 
 import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.lwjgl.opengl.GL11.GL_TEXTURE_COMPONENTS;
 import static org.lwjgl.opengl.GL11C.*;
+import static org.lwjgl.opengl.GL20C.*;
+import static org.lwjgl.opengl.GL30C.GL_COLOR_ATTACHMENT0;
+import static org.lwjgl.opengl.GL30C.GL_COLOR_ATTACHMENT1;
+import static org.lwjgl.opengl.GL30C.GL_DRAW_FRAMEBUFFER_BINDING;
+import static org.lwjgl.opengl.GL41C.GL_PROGRAM_BINARY_LENGTH;
+import static org.lwjgl.opengl.GL41C.GL_PROGRAM_BINARY_RETRIEVABLE_HINT;
 import static org.lwjgl.stb.STBImageWrite.stbi_write_png;
 
 @Mod.EventBusSubscriber(modid = TestMod.MOD_ID, value = Dist.CLIENT)
 public class DebugInputs
 {
+    private static final Logger LOGGER = LogManager.getLogger();
+
     @SubscribeEvent
     public static void onEvent(InputEvent.KeyInputEvent event)
     {
@@ -64,5 +82,174 @@ public class DebugInputs
                 e.printStackTrace();
             }
         }
+        if (event.getKey() == GLFW.GLFW_KEY_O && event.getAction() == GLFW.GLFW_PRESS)
+            checkLoadActions();
+        if (event.getKey() == GLFW.GLFW_KEY_I && event.getAction() == GLFW.GLFW_PRESS)
+            checkProgramBinary();
+    }
+
+    /**
+     * Links a small program, loads its binary into a second program, and checks that the driver accepts it. Launch with <code>LIBGL_ALWAYS_SOFTWARE=1</code> to check Mesa's software renderer.
+     */
+    private static void checkProgramBinary()
+    {
+        if (!ShaderConst.isProgramBinarySupported())
+        {
+            LOGGER.info("Program binaries are unsupported by " + glGetString(GL_RENDERER) + ", programs will always be linked from source");
+            return;
+        }
+
+        int vertex = compileShader(GL_VERTEX_SHADER, "#version 110\nvoid main() { gl_Position = gl_Vertex; }");
+        int fragment = compileShader(GL_FRAGMENT_SHADER, "#version 110\nvoid main() { gl_FragColor = vec4(1.0); }");
+        int program = glCreateProgram();
+        int loaded = glCreateProgram();
+        try (MemoryStack stack = MemoryStack.stackPush())
+        {
+            ShaderConst.glProgramParameteri(program, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+            glAttachShader(program, vertex);
+            glAttachShader(program, fragment);
+            glLinkProgram(program);
+
+            int length = glGetProgrami(program, GL_PROGRAM_BINARY_LENGTH);
+            if (length <= 0)
+            {
+                LOGGER.error("Program binary check failed. " + glGetString(GL_RENDERER) + " returned no binary");
+                return;
+            }
+
+            ByteBuffer binary = BufferUtils.createByteBuffer(length);
+            IntBuffer binaryLength = stack.mallocInt(1);
+            IntBuffer format = stack.mallocInt(1);
+            ShaderConst.glGetProgramBinary(program, binaryLength, format, binary);
+            binary.limit(binaryLength.get(0));
+            ShaderConst.glProgramBinary(loaded, format.get(0), binary);
+            if (glGetProgrami(loaded, GL_LINK_STATUS) == GL_TRUE)
+            {
+                LOGGER.info(glGetString(GL_RENDERER) + " accepted a " + binaryLength.get(0) + " byte program binary in format 0x" + Integer.toHexString(format.get(0)));
+            }
+            else
+            {
+                LOGGER.error("Program binary check failed. " + glGetString(GL_RENDERER) + " rejected its own binary: " + glGetProgramInfoLog(loaded));
+            }
+        }
+        finally
+        {
+            glDeleteProgram(program);
+            glDeleteProgram(loaded);
+            glDeleteShader(vertex);
+            glDeleteShader(fragment);
+        }
+    }
+
+    private static int compileShader(int type, String source)
+    {
+        int shader = glCreateShader(type);
+        glShaderSource(shader, source);
+        glCompileShader(shader);
+        return shader;
+    }
+
+    /**
+     * Runs each load and store action on a framebuffer with two draw buffers and a depth buffer. Clears must only touch their own attachment and keep the draw buffers, discards must leave the other attachments alone, and discarding on end must bind the previous draw framebuffer again.
+     */
+    private static void checkLoadActions()
+    {
+        AdvancedFbo fbo = AdvancedFbo.withSize(4, 4).addColorTextureBuffer().addColorTextureBuffer().setDepthRenderBuffer().build(true);
+        AdvancedFbo other = AdvancedFbo.withSize(4, 4).addColorTextureBuffer().build(true);
+        List<String> failures = new ArrayList<>();
+        try
+        {
+            // Errors from before the check would otherwise be reported as failures
+            while (glGetError() != GL_NO_ERROR)
+            {
+            }
+
+            fbo.setDrawBuffers(0, 1);
+            RenderSystem.clearColor(1.0F, 0.0F, 0.0F, 1.0F);
+            RenderSystem.clearDepth(1.0);
+            fbo.bind(true);
+            fbo.clear();
+
+            fbo.setLoadAction(1, AdvancedFbo.LoadAction.CLEAR);
+            fbo.setDepthLoadAction(AdvancedFbo.LoadAction.CLEAR);
+            RenderSystem.clearColor(0.0F, 0.0F, 1.0F, 1.0F);
+            RenderSystem.clearDepth(0.5);
+            fbo.begin(true);
+            if (glGetInteger(GL_DRAW_BUFFER0) != GL_COLOR_ATTACHMENT0 || glGetInteger(GL_DRAW_BUFFER1) != GL_COLOR_ATTACHMENT1)
+                failures.add("clearing changed the draw buffers");
+            checkPixel(failures, "attachment 0 after clearing attachment 1", readPixel(0), 0xFF0000FF);
+            checkPixel(failures, "attachment 1 after clearing it", readPixel(1), 0xFFFF0000);
+            float depth = readDepth();
+            if (Math.abs(depth - 0.5F) > 0.01F)
+                failures.add("depth was " + depth + " after clearing it to 0.5");
+
+            fbo.setLoadAction(1, AdvancedFbo.LoadAction.DONT_CARE);
+            fbo.setDepthLoadAction(AdvancedFbo.LoadAction.DONT_CARE);
+            fbo.begin(true);
+            checkPixel(failures, "attachment 0 after discarding attachment 1 and depth on begin", readPixel(0), 0xFF0000FF);
+
+            fbo.setStoreAction(1, AdvancedFbo.StoreAction.DONT_CARE);
+            fbo.setDepthStoreAction(AdvancedFbo.StoreAction.DONT_CARE);
+            other.bindDraw(false);
+            fbo.end();
+            if (glGetInteger(GL_DRAW_FRAMEBUFFER_BINDING) != other.getId())
+                failures.add("discarding on end did not bind the previous draw framebuffer again");
+
+            fbo.bind(false);
+            fbo.end();
+            if (glGetInteger(GL_DRAW_FRAMEBUFFER_BINDING) != Minecraft.getInstance().getMainRenderTarget().frameBufferId)
+                failures.add("discarding on end did not bind the main framebuffer when the discarded framebuffer was bound");
+            fbo.bindRead();
+            checkPixel(failures, "attachment 0 after discarding attachment 1 and depth on end", readPixel(0), 0xFF0000FF);
+
+            int error = glGetError();
+            if (error != GL_NO_ERROR)
+                failures.add("GL error 0x" + Integer.toHexString(error));
+        }
+        finally
+        {
+            RenderSystem.clearColor(0.0F, 0.0F, 0.0F, 0.0F);
+            RenderSystem.clearDepth(1.0);
+            AdvancedFbo.unbind();
+            fbo.free();
+            other.free();
+        }
+
+        if (failures.isEmpty())
+        {
+            LOGGER.info("Load and store actions passed");
+        }
+        else
+        {
+            LOGGER.error("Load and store action check failed: " + String.join(", ", failures));
+        }
+    }
+
+    private static void checkPixel(List<String> failures, String name, int actual, int expected)
+    {
+        if (actual != expected)
+            failures.add(name + " was 0x" + Integer.toHexString(actual) + " instead of 0x" + Integer.toHexString(expected));
+    }
+
+    private static float readDepth()
+    {
+        try (MemoryStack stack = MemoryStack.stackPush())
+        {
+            FloatBuffer depth = stack.mallocFloat(1);
+            glReadPixels(0, 0, 1, 1, GL_DEPTH_COMPONENT, GL_FLOAT, depth);
+            return depth.get(0);
+        }
+    }
+
+    private static int readPixel(int attachment)
+    {
+        try (MemoryStack stack = MemoryStack.stackPush())
+        {
+            IntBuffer pixel = stack.mallocInt(1);
+            glReadBuffer(GL_COLOR_ATTACHMENT0 + attachment);
+            glReadPixels(0, 0, 1, 1, GL_RGBA, GL_UNSIGNED_BYTE, pixel);
+            glReadBuffer(GL_COLOR_ATTACHMENT0);
+            return pixel.get(0);
+        }
     }
 }
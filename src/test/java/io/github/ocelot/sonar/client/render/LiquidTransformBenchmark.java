@@ -0,0 +1,78 @@
+package io.github.ocelot.sonar.client.render;
+
+import com.mojang.math.Matrix3f;
+import com.mojang.math.Matrix4f;
+import com.mojang.math.Vector3f;
+import com.mojang.math.Vector4f;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures vertices per second and bytes allocated per vertex for the liquid vertex transform, comparing a new vector per vertex with the reused scratch vectors of <code>StructureTemplateRenderer.LiquidVertexBuffer</code>.
+ */
+public class LiquidTransformBenchmark
+{
+    private static final int VERTICES = 10_000_000;
+    private static final int ROUNDS = 5;
+
+    private static final Matrix4f POSITION = new Matrix4f(Vector3f.YP.rotationDegrees(30.0F));
+    private static final Matrix3f NORMAL = new Matrix3f(Vector3f.YP.rotationDegrees(30.0F));
+    private static final Vector4f POSITION_VECTOR = new Vector4f();
+    private static final Vector3f NORMAL_VECTOR = new Vector3f();
+
+    private static float sink;
+
+    private static void allocating(int i)
+    {
+        Vector4f position = new Vector4f(i & 15, (i >> 4) & 15, (i >> 8) & 15, 1.0F);
+        position.transform(POSITION);
+        Vector3f normal = new Vector3f(0.0F, 1.0F, 0.0F);
+        normal.transform(NORMAL);
+        sink += position.x() + normal.y();
+    }
+
+    private static void scratch(int i)
+    {
+        POSITION_VECTOR.set(i & 15, (i >> 4) & 15, (i >> 8) & 15, 1.0F);
+        POSITION_VECTOR.transform(POSITION);
+        NORMAL_VECTOR.set(0.0F, 1.0F, 0.0F);
+        NORMAL_VECTOR.transform(NORMAL);
+        sink += POSITION_VECTOR.x() + NORMAL_VECTOR.y();
+    }
+
+    private static long getAllocatedBytes()
+    {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void runPhase(String name, boolean reuse)
+    {
+        long startBytes = getAllocatedBytes();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < VERTICES; i++)
+        {
+            if (reuse)
+            {
+                scratch(i);
+            }
+            else
+            {
+                allocating(i);
+            }
+        }
+        long time = System.nanoTime() - startTime;
+        long bytes = getAllocatedBytes() - startBytes;
+        System.out.printf("%s: %.1fM vertices/s, %.1f bytes/vertex%n", name, VERTICES / (time / 1_000_000_000.0) / 1_000_000.0, (double) bytes / VERTICES);
+    }
+
+    public static void main(String[] args)
+    {
+        // The first rounds warm up the JIT, so only the last round of each is representative
+        for (int i = 0; i < ROUNDS; i++)
+        {
+            runPhase("Allocating", false);
+            runPhase("Scratch", true);
+        }
+        System.out.println("Checksum " + sink);
+    }
+}